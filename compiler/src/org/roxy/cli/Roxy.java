@@ -0,0 +1,257 @@
+package org.roxy.cli;
+
+import org.roxy.common.Json;
+import org.roxy.parser.Grammar;
+import org.roxy.parser.ParseService;
+import org.roxy.parser.Summary;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** Command-line driver which parses files with the specified grammar and prints their summaries.
+ *
+ * Usage: roxy [--format=json|text] [--jobs=N] &lt;grammar-class&gt;:&lt;root-node&gt;
+ * &lt;file|directory|glob&gt;...
+ *
+ * Grammar class should be Grammar subclass with public default constructor which compiles the
+ * grammar (same as for ParseDaemon). Directories are parsed recursively, globs (e.g.
+ * "src/**&#47;*.rx") are expanded by the driver so they can be passed quoted. In JSON format (the
+ * default) one object per file is printed on a separate line:
+ * {"file": "a.rx", "status": "OK", "summary": {...}} (see Summary.WriteJson()), with additional
+ * "error" field if the status is FAILED. Results are printed in the arguments order.
+ *
+ * Exit code is 0 if no errors reported, 1 if any file has errors or failed to parse, 2 on invalid
+ * arguments. bin/roxy script runs the driver with class data sharing archive for fast start.
+ */
+public class Roxy {
+
+public enum Format {
+    JSON,
+    TEXT
+}
+
+public static void
+main(String[] args)
+    throws Exception
+{
+    System.exit(Run(args, System.out, System.err));
+}
+
+/** Run the driver.
+ *
+ * @return Exit code.
+ */
+public static int
+Run(String[] args, PrintStream out, PrintStream err)
+    throws InterruptedException
+{
+    Format format = Format.JSON;
+    int jobs = Runtime.getRuntime().availableProcessors();
+    int argIdx = 0;
+    try {
+        for (; argIdx < args.length && args[argIdx].startsWith("--"); argIdx++) {
+            String arg = args[argIdx];
+            if (arg.startsWith("--format=")) {
+                format = Format.valueOf(arg.substring(9).toUpperCase());
+            } else if (arg.startsWith("--jobs=")) {
+                jobs = Integer.parseInt(arg.substring(7));
+                if (jobs <= 0) {
+                    throw new IllegalArgumentException("Invalid number of jobs: " + jobs);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+    } catch (IllegalArgumentException e) {
+        err.println(e.getMessage());
+        return 2;
+    }
+    if (args.length - argIdx < 2) {
+        err.println("Usage: roxy [--format=json|text] [--jobs=N] <grammar-class>:<root-node> " +
+                    "<file|directory|glob>...");
+        return 2;
+    }
+
+    Grammar.Node root;
+    LinkedHashSet<Path> files = new LinkedHashSet<>();
+    try {
+        root = LoadGrammar(args[argIdx]);
+        for (int i = argIdx + 1; i < args.length; i++) {
+            files.addAll(ExpandPath(args[i]));
+        }
+    } catch (ClassNotFoundException e) {
+        err.println("Grammar class not found: " + e.getMessage());
+        return 2;
+    } catch (NoSuchFileException e) {
+        err.println("No such file: " + e.getMessage());
+        return 2;
+    } catch (Exception e) {
+        err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+        return 2;
+    }
+
+    boolean failed = false;
+    /* Bounded number of submitted requests, so that not all the files are open at once. */
+    int maxPending = jobs * 2;
+    try (ParseService service = new ParseService(jobs)) {
+        ArrayDeque<Future<ParseService.Result>> pending = new ArrayDeque<>();
+        for (Path file: files) {
+            if (pending.size() == maxPending) {
+                failed |= PrintResult(GetResult(pending.poll()), format, out);
+            }
+            Reader reader;
+            try {
+                reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                /* Keep the output order. */
+                while (!pending.isEmpty()) {
+                    failed |= PrintResult(GetResult(pending.poll()), format, out);
+                }
+                out.println(Format(file.toString(), ParseService.Status.FAILED, new Summary(), e,
+                                   format));
+                failed = true;
+                continue;
+            }
+            pending.add(service.Submit(file.toString(), root, reader, 0));
+        }
+        while (!pending.isEmpty()) {
+            failed |= PrintResult(GetResult(pending.poll()), format, out);
+        }
+    }
+    out.flush();
+    return failed ? 1 : 0;
+}
+
+/** Load grammar by specification in form &lt;grammar-class&gt;:&lt;root-node&gt;. */
+public static Grammar.Node
+LoadGrammar(String spec)
+    throws ReflectiveOperationException
+{
+    int colonIdx = spec.lastIndexOf(':');
+    if (colonIdx <= 0 || colonIdx == spec.length() - 1) {
+        throw new IllegalArgumentException("Invalid grammar specification: " + spec);
+    }
+    Grammar grammar =
+        (Grammar)Class.forName(spec.substring(0, colonIdx)).getDeclaredConstructor().newInstance();
+    String rootName = spec.substring(colonIdx + 1);
+    Grammar.Node root = grammar.FindNode(rootName);
+    if (root == null) {
+        throw new IllegalArgumentException("Root node not found: " + rootName);
+    }
+    return root;
+}
+
+/** Expand file argument into list of files. Directories are listed recursively, paths with glob
+ * characters are matched against files under the longest directory prefix without glob characters.
+ * Listed files are sorted.
+ *
+ * @throws NoSuchFileException If the file does not exist or no files match the glob.
+ */
+public static List<Path>
+ExpandPath(String arg)
+    throws IOException
+{
+    int globIdx = -1;
+    for (int i = 0; i < arg.length(); i++) {
+        if ("*?[{".indexOf(arg.charAt(i)) != -1) {
+            globIdx = i;
+            break;
+        }
+    }
+    if (globIdx == -1) {
+        Path path = Paths.get(arg);
+        if (Files.isDirectory(path)) {
+            return ListFiles(path, p -> true);
+        }
+        if (!Files.isRegularFile(path)) {
+            throw new NoSuchFileException(arg);
+        }
+        return Collections.singletonList(path);
+    }
+    int sepIdx = arg.lastIndexOf('/', globIdx);
+    if (sepIdx == -1) {
+        sepIdx = arg.lastIndexOf(FileSystems.getDefault().getSeparator(), globIdx);
+    }
+    Path base = Paths.get(sepIdx == -1 ? "" : arg.substring(0, sepIdx + 1));
+    PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+    List<Path> files = Files.isDirectory(base) ? ListFiles(base, matcher::matches) :
+        Collections.emptyList();
+    if (files.isEmpty()) {
+        throw new NoSuchFileException(arg);
+    }
+    return files;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static List<Path>
+ListFiles(Path dir, Predicate<Path> filter)
+    throws IOException
+{
+    try (Stream<Path> paths = Files.walk(dir)) {
+        return paths.filter(p -> Files.isRegularFile(p) && filter.test(p)).sorted()
+            .collect(Collectors.toList());
+    }
+}
+
+private static ParseService.Result
+GetResult(Future<ParseService.Result> future)
+    throws InterruptedException
+{
+    try {
+        return future.get();
+    } catch (ExecutionException e) {
+        /* Requests are always completed with a result. */
+        throw new RuntimeException(e.getCause());
+    }
+}
+
+/**
+ * @return True if the result has errors.
+ */
+private static boolean
+PrintResult(ParseService.Result result, Format format, PrintStream out)
+{
+    out.println(Format(result.name, result.status, result.summary, result.error, format));
+    return result.status != ParseService.Status.OK || result.summary.GetErrorsCount() != 0;
+}
+
+static String
+Format(String file, ParseService.Status status, Summary summary, Throwable error, Format format)
+{
+    StringBuilder sb = new StringBuilder();
+    if (format == Format.TEXT) {
+        sb.append(file).append(":\n");
+        if (status != ParseService.Status.OK) {
+            sb.append(status);
+            if (error != null) {
+                sb.append(": ").append(error);
+            }
+            sb.append('\n');
+        }
+        sb.append(summary);
+        return sb.toString();
+    }
+    sb.append("{\"file\": ");
+    Json.AppendString(sb, file);
+    sb.append(", \"status\": \"").append(status.name()).append('"');
+    if (error != null) {
+        sb.append(", \"error\": ");
+        Json.AppendString(sb, error.toString());
+    }
+    sb.append(", \"summary\": ");
+    summary.WriteJson(sb);
+    sb.append('}');
+    return sb.toString();
+}
+
+}
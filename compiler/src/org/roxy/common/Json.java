@@ -0,0 +1,43 @@
+package org.roxy.common;
+
+/** JSON output helpers. */
+public class Json {
+
+/** Append the string as quoted JSON string, "null" if the string is null. */
+public static StringBuilder
+AppendString(StringBuilder sb, String s)
+{
+    if (s == null) {
+        return sb.append("null");
+    }
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        switch (c) {
+        case '"':
+            sb.append("\\\"");
+            break;
+        case '\\':
+            sb.append("\\\\");
+            break;
+        case '\n':
+            sb.append("\\n");
+            break;
+        case '\r':
+            sb.append("\\r");
+            break;
+        case '\t':
+            sb.append("\\t");
+            break;
+        default:
+            if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+    return sb.append('"');
+}
+
+}
@@ -0,0 +1,204 @@
+package org.roxy.daemon;
+
+import org.roxy.parser.Summary;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Client for ParseDaemon. Sends batch parse requests over one connection. Not thread-safe. */
+public class ParseClient implements Closeable {
+
+/** Parse files by running daemon. Thin replacement for per-invocation parsing.
+ *
+ * Usage: ParseClient &lt;socket-file&gt; &lt;grammar-name&gt; &lt;file&gt;...
+ *
+ * Prints summary for each file, exit code is 1 if any errors reported.
+ */
+public static void
+main(String[] args)
+    throws IOException
+{
+    if (args.length < 3) {
+        System.err.println("Usage: ParseClient <socket-file> <grammar-name> <file>...");
+        System.exit(2);
+    }
+    Path[] files = new Path[args.length - 2];
+    for (int i = 2; i < args.length; i++) {
+        files[i - 2] = Paths.get(args[i]);
+    }
+    boolean failed = false;
+    try (ParseClient client = new ParseClient(Paths.get(args[0]))) {
+        for (Result result: client.Parse(args[1], false, files)) {
+            System.out.println(result.name + ":");
+            System.out.println(result.summary);
+            if (result.summary.GetErrorsCount() != 0) {
+                failed = true;
+            }
+        }
+    }
+    System.exit(failed ? 1 : 0);
+}
+
+public static class Result {
+    /** Input name as specified in the request. */
+    public final String name;
+    public final Summary summary;
+    /** Null if AST not requested or not produced. */
+    public final RemoteAstNode ast;
+
+    Result(String name, Summary summary, RemoteAstNode ast)
+    {
+        this.name = name;
+        this.summary = summary;
+        this.ast = ast;
+    }
+}
+
+/** Connect to daemon using its socket file. */
+public
+ParseClient(Path socketFile)
+    throws IOException
+{
+    String[] content =
+        new String(Files.readAllBytes(socketFile), StandardCharsets.UTF_8).trim().split(" ");
+    if (content.length != 2) {
+        throw new IOException("Invalid socket file: " + socketFile);
+    }
+    int port;
+    try {
+        port = Integer.parseInt(content[0]);
+    } catch (NumberFormatException e) {
+        throw new IOException("Invalid socket file: " + socketFile);
+    }
+    socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    try {
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(Protocol.MAGIC);
+        out.writeInt(Protocol.VERSION);
+        Protocol.WriteString(out, content[1]);
+        out.flush();
+        CheckStatus();
+    } catch (IOException e) {
+        socket.close();
+        throw e;
+    }
+}
+
+/** Parse batch of inputs. Batch size is limited (see Protocol).
+ *
+ * @param grammar Grammar name as registered in the daemon.
+ * @param wantAst Transfer resulting AST.
+ * @param names Input names, used for results identification only.
+ * @param contents Input contents.
+ * @return Result for each input in the same order.
+ */
+public List<Result>
+Parse(String grammar, boolean wantAst, String[] names, String[] contents)
+    throws IOException
+{
+    if (names.length != contents.length) {
+        throw new IllegalArgumentException("Names and contents count mismatch");
+    }
+    byte[][] data = new byte[contents.length][];
+    for (int i = 0; i < contents.length; i++) {
+        data[i] = contents[i].getBytes(StandardCharsets.UTF_8);
+    }
+    return Parse(grammar, wantAst, names, data);
+}
+
+/** Parse batch of files. Result names are file paths. */
+public List<Result>
+Parse(String grammar, boolean wantAst, Path... files)
+    throws IOException
+{
+    String[] names = new String[files.length];
+    byte[][] data = new byte[files.length][];
+    for (int i = 0; i < files.length; i++) {
+        names[i] = files[i].toString();
+        data[i] = Files.readAllBytes(files[i]);
+    }
+    return Parse(grammar, wantAst, names, data);
+}
+
+/** Request daemon shutdown. The connection is closed after that. */
+public void
+Shutdown()
+    throws IOException
+{
+    out.writeByte(Protocol.CMD_SHUTDOWN);
+    out.flush();
+    CheckStatus();
+    close();
+}
+
+@Override public void
+close()
+    throws IOException
+{
+    socket.close();
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private final Socket socket;
+private final DataInputStream in;
+private final DataOutputStream out;
+
+private void
+CheckStatus()
+    throws IOException
+{
+    int status = in.readByte();
+    if (status != Protocol.STATUS_OK) {
+        throw new IOException("Daemon request failed: " + Protocol.ReadString(in));
+    }
+}
+
+private List<Result>
+Parse(String grammar, boolean wantAst, String[] names, byte[][] data)
+    throws IOException
+{
+    /* Checked here as well since the daemon closes the connection on rejected request. */
+    if (data.length > Protocol.MAX_INPUTS) {
+        throw new IllegalArgumentException(String.format(
+            "Number of inputs %d exceeds limit %d", data.length, Protocol.MAX_INPUTS));
+    }
+    long requestSize = 0;
+    for (byte[] content: data) {
+        requestSize += content.length;
+        if (content.length > Protocol.MAX_INPUT_SIZE || requestSize > Protocol.MAX_REQUEST_SIZE) {
+            throw new IllegalArgumentException("Input size exceeds limit");
+        }
+    }
+    out.writeByte(Protocol.CMD_PARSE);
+    Protocol.WriteString(out, grammar);
+    out.writeByte(wantAst ? Protocol.FLAG_AST : 0);
+    out.writeInt(data.length);
+    for (int i = 0; i < data.length; i++) {
+        Protocol.WriteString(out, names[i]);
+        Protocol.WriteBytes(out, data[i]);
+    }
+    out.flush();
+    CheckStatus();
+    ArrayList<Result> results = new ArrayList<>(data.length);
+    for (String name: names) {
+        Summary summary = new Summary().Read(in);
+        RemoteAstNode ast = null;
+        if (wantAst && in.readBoolean()) {
+            ast = Protocol.ReadAst(in, null);
+        }
+        results.add(new Result(name, summary, ast));
+    }
+    return results;
+}
+
+}
@@ -0,0 +1,419 @@
+package org.roxy.daemon;
+
+import org.roxy.common.Log;
+import org.roxy.parser.Grammar;
+import org.roxy.parser.Parser;
+import org.roxy.parser.Summary;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Long-living process which keeps compiled grammars and serves parse requests from ParseClient.
+ *
+ * The daemon listens on loopback TCP socket. Its port and random access token are written into
+ * socket file which is readable by the owner only, so only the owner can connect. Each client
+ * connection is served in a dedicated thread, the same compiled grammar is shared between
+ * connections (compiled grammar is immutable, parser state is per parser instance). Number of
+ * concurrent connections is limited, connections over the limit are closed right after accepting.
+ * A client should complete the handshake within a timeout, so that unauthenticated connections do
+ * not occupy the threads.
+ */
+public class ParseDaemon {
+
+/** Run the daemon.
+ *
+ * Usage: ParseDaemon &lt;socket-file&gt; &lt;name&gt;=&lt;grammar-class&gt;:&lt;root-node&gt;...
+ *
+ * Grammar class should be Grammar subclass with public default constructor which compiles the
+ * grammar.
+ */
+public static void
+main(String[] args)
+    throws Exception
+{
+    if (args.length < 2) {
+        System.err.println("Usage: ParseDaemon <socket-file> <name>=<grammar-class>:<root-node>...");
+        System.exit(2);
+    }
+    ParseDaemon daemon = new ParseDaemon();
+    HashMap<String, Grammar> grammars = new HashMap<>();
+    for (int i = 1; i < args.length; i++) {
+        String arg = args[i];
+        int eqIdx = arg.indexOf('=');
+        int colonIdx = arg.lastIndexOf(':');
+        if (eqIdx <= 0 || colonIdx < eqIdx + 2 || colonIdx == arg.length() - 1) {
+            throw new IllegalArgumentException("Invalid grammar specification: " + arg);
+        }
+        String className = arg.substring(eqIdx + 1, colonIdx);
+        Grammar grammar = grammars.get(className);
+        if (grammar == null) {
+            grammar = (Grammar)Class.forName(className).getDeclaredConstructor().newInstance();
+            grammars.put(className, grammar);
+        }
+        String rootName = arg.substring(colonIdx + 1);
+        Grammar.Node root = grammar.FindNode(rootName);
+        if (root == null) {
+            throw new IllegalArgumentException("Root node not found: " + rootName);
+        }
+        daemon.AddGrammar(arg.substring(0, eqIdx), root);
+    }
+    daemon.Start(Paths.get(args[0]));
+    daemon.Join();
+}
+
+/** Register grammar for serving requests. Can be called while the daemon is running.
+ *
+ * @param name Name clients refer the grammar by.
+ * @param root Root node of compiled grammar.
+ */
+public ParseDaemon
+AddGrammar(String name, Grammar.Node root)
+{
+    /* Validates the grammar, throws if not suitable for parsing. */
+    new Parser(root, "");
+    grammars.put(name, root);
+    return this;
+}
+
+/** Set maximal number of concurrently served connections. Should be called before Start(). */
+public ParseDaemon
+SetMaxConnections(int maxConnections)
+{
+    if (maxConnections <= 0) {
+        throw new IllegalArgumentException("Invalid number of connections: " + maxConnections);
+    }
+    this.maxConnections = maxConnections;
+    return this;
+}
+
+/** Set time in milliseconds a client has to complete the handshake after connecting. Should be
+ * called before Start().
+ */
+public ParseDaemon
+SetHandshakeTimeout(int timeoutMs)
+{
+    if (timeoutMs <= 0) {
+        throw new IllegalArgumentException("Invalid timeout: " + timeoutMs);
+    }
+    handshakeTimeoutMs = timeoutMs;
+    return this;
+}
+
+/** Start listening. Socket file is created (replaced if exists) and contains daemon port and
+ * access token.
+ */
+public synchronized void
+Start(Path socketFile)
+    throws IOException
+{
+    if (serverSocket != null) {
+        throw new IllegalStateException("Already started");
+    }
+    byte[] tokenBytes = new byte[TOKEN_SIZE];
+    new SecureRandom().nextBytes(tokenBytes);
+    StringBuilder sb = new StringBuilder();
+    for (byte b: tokenBytes) {
+        sb.append(String.format("%02x", b & 0xff));
+    }
+    token = sb.toString();
+
+    serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+    try {
+        WriteSocketFile(socketFile, serverSocket.getLocalPort() + " " + token);
+    } catch (IOException e) {
+        serverSocket.close();
+        serverSocket = null;
+        throw e;
+    }
+    this.socketFile = socketFile;
+    acceptThread = new Thread(this::AcceptLoop, "ParseDaemon-accept");
+    acceptThread.start();
+}
+
+/** Stop listening, close all client connections and remove socket file. */
+public void
+Stop()
+{
+    synchronized (this) {
+        if (serverSocket == null || stopped) {
+            return;
+        }
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            /* Ignore. */
+        }
+        for (Socket socket: connections.keySet()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /* Ignore. */
+            }
+        }
+        try {
+            Files.deleteIfExists(socketFile);
+        } catch (IOException e) {
+            /* Ignore. */
+        }
+    }
+}
+
+/** Wait until the daemon is stopped. */
+public void
+Join()
+    throws InterruptedException
+{
+    Thread t;
+    synchronized (this) {
+        t = acceptThread;
+    }
+    if (t != null) {
+        t.join();
+    }
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int TOKEN_SIZE = 16;
+private static final int DEFAULT_MAX_CONNECTIONS = 64;
+private static final int DEFAULT_HANDSHAKE_TIMEOUT_MS = 10_000;
+
+private final Map<String, Grammar.Node> grammars = new ConcurrentHashMap<>();
+private final Map<Socket, Boolean> connections = new ConcurrentHashMap<>();
+private ServerSocket serverSocket;
+private Thread acceptThread;
+private Path socketFile;
+private String token;
+private volatile boolean stopped;
+private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+private int handshakeTimeoutMs = DEFAULT_HANDSHAKE_TIMEOUT_MS;
+
+private static void
+WriteSocketFile(Path path, String content)
+    throws IOException
+{
+    Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.deleteIfExists(tmpPath);
+    /* Permissions are set on creation, so that the file is never accessible by others. */
+    try {
+        Files.createFile(tmpPath, PosixFilePermissions.asFileAttribute(
+            EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+    } catch (UnsupportedOperationException e) {
+        /* Non-POSIX file system, rely on default permissions. */
+        Files.createFile(tmpPath);
+    }
+    Files.write(tmpPath, content.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+}
+
+private void
+AcceptLoop()
+{
+    while (!stopped) {
+        Socket socket;
+        try {
+            socket = serverSocket.accept();
+        } catch (IOException e) {
+            if (!stopped) {
+                System.err.println("Failed to accept connection: " + e.getMessage());
+            }
+            break;
+        }
+        if (connections.size() >= maxConnections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /* Ignore. */
+            }
+            continue;
+        }
+        connections.put(socket, Boolean.TRUE);
+        Thread t = new Thread(() -> HandleConnection(socket), "ParseDaemon-client");
+        t.setDaemon(true);
+        t.start();
+    }
+    Stop();
+}
+
+private void
+HandleConnection(Socket socket)
+{
+    try {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(handshakeTimeoutMs);
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (!Handshake(in, out)) {
+            return;
+        }
+        /* Authenticated client may stay idle between requests. */
+        socket.setSoTimeout(0);
+        while (true) {
+            int cmd = in.read();
+            if (cmd == -1) {
+                break;
+            }
+            if (cmd == Protocol.CMD_PARSE) {
+                if (!HandleParse(in, out)) {
+                    break;
+                }
+            } else if (cmd == Protocol.CMD_SHUTDOWN) {
+                out.writeByte(Protocol.STATUS_OK);
+                out.flush();
+                Stop();
+                break;
+            } else {
+                out.writeByte(Protocol.STATUS_FAILED);
+                Protocol.WriteString(out, "Unknown command: " + cmd);
+                out.flush();
+                break;
+            }
+        }
+    } catch (SocketException | EOFException e) {
+        /* Connection closed. */
+    } catch (SocketTimeoutException e) {
+        /* Handshake not completed in time. */
+    } catch (IOException e) {
+        if (!stopped) {
+            System.err.println("Client connection failed: " + e.getMessage());
+        }
+    } finally {
+        connections.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            /* Ignore. */
+        }
+    }
+}
+
+private boolean
+Handshake(DataInputStream in, DataOutputStream out)
+    throws IOException
+{
+    if (in.readInt() != Protocol.MAGIC) {
+        return false;
+    }
+    int version = in.readInt();
+    /* Not authenticated yet, so only a small buffer is allowed. */
+    byte[] clientToken;
+    try {
+        clientToken = Protocol.ReadBytes(in, token.length() * 2);
+    } catch (Protocol.LimitException e) {
+        clientToken = null;
+    }
+    if (version != Protocol.VERSION) {
+        out.writeByte(Protocol.STATUS_FAILED);
+        Protocol.WriteString(out, "Unsupported protocol version: " + version);
+        out.flush();
+        return false;
+    }
+    /* Constant-time comparison does not reveal matched prefix length. */
+    if (clientToken == null ||
+        !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), clientToken)) {
+        out.writeByte(Protocol.STATUS_FAILED);
+        Protocol.WriteString(out, "Access denied");
+        out.flush();
+        return false;
+    }
+    out.writeByte(Protocol.STATUS_OK);
+    out.flush();
+    return true;
+}
+
+/**
+ * @return False if the request is rejected and the connection should be closed since the stream
+ *         is not in sync anymore.
+ */
+private boolean
+HandleParse(DataInputStream in, DataOutputStream out)
+    throws IOException
+{
+    String grammarName;
+    int flags, numInputs;
+    String[] names;
+    byte[][] contents;
+    /* Read the whole request first so the stream stays in sync when failing. Sizes are checked
+     * before allocating, requests exceeding the limits are rejected.
+     */
+    try {
+        grammarName = Protocol.ReadString(in, Protocol.MAX_NAME_SIZE);
+        flags = in.readByte();
+        numInputs = in.readInt();
+        if (numInputs < 0) {
+            throw new IOException("Invalid number of inputs: " + numInputs);
+        }
+        if (numInputs > Protocol.MAX_INPUTS) {
+            throw new Protocol.LimitException(String.format(
+                "Number of inputs %d exceeds limit %d", numInputs, Protocol.MAX_INPUTS));
+        }
+        names = new String[numInputs];
+        contents = new byte[numInputs][];
+        long requestSize = 0;
+        for (int i = 0; i < numInputs; i++) {
+            names[i] = Protocol.ReadString(in, Protocol.MAX_NAME_SIZE);
+            int maxSize = (int)Math.min(Protocol.MAX_INPUT_SIZE,
+                                        Protocol.MAX_REQUEST_SIZE - requestSize);
+            contents[i] = Protocol.ReadBytes(in, maxSize);
+            if (contents[i] == null) {
+                throw new IOException("No content for input " + i);
+            }
+            requestSize += contents[i].length;
+        }
+    } catch (Protocol.LimitException e) {
+        out.writeByte(Protocol.STATUS_FAILED);
+        Protocol.WriteString(out, "Request rejected: " + e.getMessage());
+        out.flush();
+        return false;
+    }
+    Grammar.Node root = grammarName == null ? null : grammars.get(grammarName);
+    if (root == null) {
+        out.writeByte(Protocol.STATUS_FAILED);
+        Protocol.WriteString(out, "Grammar not found: " + grammarName);
+        out.flush();
+        return true;
+    }
+    out.writeByte(Protocol.STATUS_OK);
+    for (int i = 0; i < numInputs; i++) {
+        Summary summary = new Summary();
+        Parser parser = null;
+        try {
+            parser = new Parser(root, new ByteArrayInputStream(contents[i])).Parse(summary);
+        } catch (RuntimeException e) {
+            summary.Error("Internal parser error: %s", Log.GetStackTrace(e));
+            parser = null;
+        }
+        /* Drop reference early, batch may be large. */
+        contents[i] = null;
+        summary.Write(out);
+        if ((flags & Protocol.FLAG_AST) != 0) {
+            if (parser != null && parser.GetResult().GetRoot() != null) {
+                out.writeBoolean(true);
+                Protocol.WriteAst(out, parser.GetResult().GetRoot());
+            } else {
+                out.writeBoolean(false);
+            }
+        }
+    }
+    out.flush();
+    return true;
+}
+
+}
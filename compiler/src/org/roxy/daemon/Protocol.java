@@ -0,0 +1,169 @@
+package org.roxy.daemon;
+
+import org.roxy.parser.Ast;
+import org.roxy.parser.Parser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/** Binary protocol between parse daemon and its clients. All values are big-endian.
+ *
+ * Connection starts with handshake: magic, version, access token. Then any number of requests
+ * follow, each one answered before the next one is sent:
+ *
+ * Parse request: CMD_PARSE, grammar name, flags, number of inputs, for each input: name, content
+ * (UTF-8 bytes with length prefix).
+ * Parse response: status (error message follows if failed), for each input: summary records, AST
+ * if requested.
+ *
+ * Shutdown request: CMD_SHUTDOWN. Response: status.
+ */
+class Protocol {
+
+static final int MAGIC = 0x524f5859;
+static final int VERSION = 1;
+
+static final int CMD_PARSE = 1,
+                 CMD_SHUTDOWN = 2;
+
+static final int FLAG_AST = 1;
+
+static final int STATUS_OK = 0,
+                 STATUS_FAILED = 1;
+
+/** Maximal length of a string or input content. */
+static final int MAX_DATA_SIZE = Integer.MAX_VALUE - 8;
+
+/* Parse request limits enforced by the daemon, requests exceeding them are rejected. */
+/** Maximal length of grammar and input names. */
+static final int MAX_NAME_SIZE = 4096;
+/** Maximal number of inputs in one request. */
+static final int MAX_INPUTS = 10000;
+/** Maximal size of one input content. */
+static final int MAX_INPUT_SIZE = 64 << 20;
+/** Maximal total size of all inputs contents in one request. */
+static final long MAX_REQUEST_SIZE = 256 << 20;
+
+/** Thrown when received data length exceeds the specified limit. The stream is not in sync after
+ * that.
+ */
+static class LimitException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    LimitException(String message)
+    {
+        super(message);
+    }
+}
+
+/** Write string as UTF-8 bytes with length prefix, -1 length for null. */
+static void
+WriteString(DataOutputStream out, String s)
+    throws IOException
+{
+    if (s == null) {
+        out.writeInt(-1);
+        return;
+    }
+    WriteBytes(out, s.getBytes(StandardCharsets.UTF_8));
+}
+
+static String
+ReadString(DataInputStream in)
+    throws IOException
+{
+    return ReadString(in, MAX_DATA_SIZE);
+}
+
+/**
+ * @throws LimitException If the string is longer than maxSize bytes.
+ */
+static String
+ReadString(DataInputStream in, int maxSize)
+    throws IOException
+{
+    byte[] bytes = ReadBytes(in, maxSize);
+    return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+}
+
+static void
+WriteBytes(DataOutputStream out, byte[] bytes)
+    throws IOException
+{
+    out.writeInt(bytes.length);
+    out.write(bytes);
+}
+
+static byte[]
+ReadBytes(DataInputStream in)
+    throws IOException
+{
+    return ReadBytes(in, MAX_DATA_SIZE);
+}
+
+/** Read bytes with length prefix. The length is checked before allocating the buffer.
+ *
+ * @throws LimitException If the length is greater than maxSize.
+ */
+static byte[]
+ReadBytes(DataInputStream in, int maxSize)
+    throws IOException
+{
+    int len = in.readInt();
+    if (len == -1) {
+        return null;
+    }
+    if (len < 0) {
+        throw new IOException("Invalid data length: " + len);
+    }
+    if (len > maxSize) {
+        throw new LimitException(String.format("Data length %d exceeds limit %d", len, maxSize));
+    }
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return bytes;
+}
+
+/** Write AST subtree in pre-order. Tags are not transferred. */
+static void
+WriteAst(DataOutputStream out, Ast.Node node)
+    throws IOException
+{
+    WriteString(out, node.grammarNode.GetName());
+    WriteString(out, node.str);
+    Parser.InputPosition.Write(out, node.startPosition);
+    Parser.InputPosition.Write(out, node.endPosition);
+    int numChildren = node.children == null ? 0 : node.children.size();
+    out.writeInt(numChildren);
+    for (int i = 0; i < numChildren; i++) {
+        WriteAst(out, node.children.get(i));
+    }
+}
+
+static RemoteAstNode
+ReadAst(DataInputStream in, RemoteAstNode parent)
+    throws IOException
+{
+    RemoteAstNode node = new RemoteAstNode();
+    node.parent = parent;
+    node.name = ReadString(in);
+    node.str = ReadString(in);
+    node.startPosition = Parser.InputPosition.Read(in);
+    node.endPosition = Parser.InputPosition.Read(in);
+    int numChildren = in.readInt();
+    if (numChildren < 0) {
+        throw new IOException("Invalid number of children: " + numChildren);
+    }
+    if (numChildren != 0) {
+        node.children = new ArrayList<>(numChildren);
+        for (int i = 0; i < numChildren; i++) {
+            node.children.add(ReadAst(in, node));
+        }
+    }
+    return node;
+}
+
+}
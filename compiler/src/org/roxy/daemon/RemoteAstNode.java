@@ -0,0 +1,20 @@
+package org.roxy.daemon;
+
+import org.roxy.parser.Parser;
+
+import java.util.ArrayList;
+
+/** AST node received from parse daemon. Mirrors Ast.Node without tags and grammar node references
+ * which cannot be transferred, grammar node is identified by its name.
+ */
+public class RemoteAstNode {
+
+/** Grammar node name, null for unnamed grammar node. */
+public String name;
+public String str;
+public RemoteAstNode parent;
+/** Null if no children. */
+public ArrayList<RemoteAstNode> children;
+public Parser.InputPosition startPosition, endPosition;
+
+}
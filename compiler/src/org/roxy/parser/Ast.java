@@ -1,5 +1,6 @@
 package org.roxy.parser;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /** Abstract syntax tree. Result of text parsing. */
@@ -28,10 +29,16 @@ public class Node {
     public StringBuilder strBuf;
     /** String content is stored here after commit if requested by grammar node. */
     public String str;
+    /** Id of the string in the attached symbol table if the grammar node is a symbol, -1
+     * otherwise (see SymbolTable).
+     */
+    public int symbolId = -1;
     public Node parent;
     public ArrayList<Node> children;
     public Parser.InputPosition startPosition, endPosition;
     public Tag tag;
+    /** Tag production state when tags are produced asynchronously. */
+    TagScheduler.Task tagTask;
 
     void
     AppendChar(int c)
@@ -42,6 +49,15 @@ public class Node {
         strBuf.append((char)c);
     }
 
+    void
+    AppendChars(char[] chars, int offset, int len)
+    {
+        if (strBuf == null) {
+            strBuf = new StringBuilder();
+        }
+        strBuf.append(chars, offset, len);
+    }
+
     void
     AppendChild(Ast.Node child)
     {
@@ -50,6 +66,9 @@ public class Node {
         }
         children.add(child);
         child.parent = this;
+        if (tagScheduler != null) {
+            tagScheduler.OnAppendChild(this);
+        }
     }
 
     /** Called when all characters or sub-nodes added. */
@@ -59,12 +78,23 @@ public class Node {
         assert this.endPosition == null;
         this.endPosition = endPosition;
         if (grammarNode.wantValString && strBuf != null) {
-            str = strBuf.toString();
+            if (symbols != null && grammarNode.isSymbol) {
+                /* Existing symbol is found without creating a string. */
+                symbolId = symbols.Intern(utf8Strings ? GetString(strBuf, true) : strBuf);
+                str = symbols.GetSymbol(symbolId);
+            } else {
+                str = GetString(strBuf, utf8Strings);
+            }
             strBuf = null;
         }
-        if (grammarNode.valTagFabric != null) {
+        if (tagScheduler != null) {
+            tagScheduler.OnCommit(this, summary);
+        } else if (produceTags && grammarNode.valTagFabric != null) {
             tag = grammarNode.valTagFabric.Produce(this, summary);
         }
+        if (index != null) {
+            index.Add(this);
+        }
         if (parent == null) {
             root = this;
         }
@@ -105,7 +135,87 @@ public class Node {
     }
 }
 
+/** Get root node, null if nothing committed. */
+public Node
+GetRoot()
+{
+    return root;
+}
+
 Node root;
+/** Tags are produced on nodes commit if true. Otherwise they can be produced later by
+ * ProduceTags().
+ */
+boolean produceTags = true;
+/** Tags are produced asynchronously by this scheduler if not null. */
+TagScheduler tagScheduler;
+/** Accumulated strings contain UTF-8 bytes (one per character) if true (byte mode parsing). */
+boolean utf8Strings;
+/** Symbol nodes strings are interned here if not null. */
+SymbolTable symbols;
+
+/** Committed nodes are indexed here if not null. */
+AstIndex index;
+
+/** Get symbol table the symbol nodes are interned in, null if none. */
+public SymbolTable
+GetSymbolTable()
+{
+    return symbols;
+}
+
+/** Get index of committed nodes, null if indexing is not enabled. */
+public AstIndex
+GetIndex()
+{
+    return index;
+}
+
+/** Get string value from accumulated characters.
+ *
+ * @param utf8 Characters are UTF-8 bytes which should be decoded.
+ */
+static String
+GetString(CharSequence chars, boolean utf8)
+{
+    int len = chars.length();
+    if (utf8) {
+        for (int i = 0; i < len; i++) {
+            if (chars.charAt(i) >= 0x80) {
+                byte[] bytes = new byte[len];
+                for (int j = 0; j < len; j++) {
+                    bytes[j] = (byte)chars.charAt(j);
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+    }
+    return chars.toString();
+}
+
+/** Produce tags for the whole tree in the same order as it is done on nodes commit (children
+ * before parent).
+ */
+void
+ProduceTags(Summary summary)
+{
+    if (root != null) {
+        ProduceTags(root, summary);
+    }
+}
+
+private static void
+ProduceTags(Node node, Summary summary)
+{
+    if (node.children != null) {
+        for (Node child: node.children) {
+            ProduceTags(child, summary);
+        }
+    }
+    if (node.grammarNode.valTagFabric != null) {
+        node.tag = node.grammarNode.valTagFabric.Produce(node, summary);
+    }
+}
 
 Node
 CreateNode()
@@ -0,0 +1,383 @@
+package org.roxy.parser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/** Compact binary AST format which is read through memory mapping.
+ *
+ * The file consists of a header, a node table and a string table. Node table has fixed-size records
+ * in breadth-first order, so children of a node are adjacent and addressed by the first child index
+ * and children count. Grammar nodes are referred by CompiledGrammar ids, the file is bound to the
+ * grammar fingerprint. Node strings are stored UTF-8 encoded in the string table. Tags are not
+ * stored.
+ *
+ * Opening a file does not read nodes, Node views are created on access and do not hold any data
+ * besides the node index, so memory consumption depends only on the nodes being touched. Node table
+ * and string table are limited to 2 GB each.
+ */
+public class AstFile implements Closeable {
+
+/** View of a node stored in the file. */
+public class Node {
+
+    /** Node index in the file, root node has index 0. */
+    public int
+    GetIndex()
+    {
+        return index;
+    }
+
+    public Grammar.Node
+    GetGrammarNode()
+    {
+        return grammar.GetNode(nodes.getInt(offset + REC_GRAMMAR_NODE));
+    }
+
+    /** Get parent node, null for root node. */
+    public Node
+    GetParent()
+    {
+        int parent = nodes.getInt(offset + REC_PARENT);
+        return parent == -1 ? null : new Node(parent);
+    }
+
+    public int
+    GetChildrenCount()
+    {
+        return nodes.getInt(offset + REC_NUM_CHILDREN);
+    }
+
+    public Node
+    GetChild(int idx)
+    {
+        if (idx < 0 || idx >= GetChildrenCount()) {
+            throw new IndexOutOfBoundsException("Child index out of range: " + idx);
+        }
+        return new Node(nodes.getInt(offset + REC_FIRST_CHILD) + idx);
+    }
+
+    /** Get node string, null if not stored. Decoded on each call. */
+    public String
+    GetStr()
+    {
+        int strOffset = nodes.getInt(offset + REC_STR_OFFSET);
+        if (strOffset == -1) {
+            return null;
+        }
+        int strSize = nodes.getInt(offset + REC_STR_SIZE);
+        byte[] bytes = new byte[strSize];
+        ByteBuffer buf = strings.duplicate();
+        buf.position(strOffset);
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Null if not stored. */
+    public Parser.InputPosition
+    GetStartPosition()
+    {
+        return ReadPosition(offset + REC_START_POS);
+    }
+
+    /** Null if not stored. */
+    public Parser.InputPosition
+    GetEndPosition()
+    {
+        return ReadPosition(offset + REC_END_POS);
+    }
+
+    /** Materialize AST nodes for the whole subtree of this node. */
+    public Ast.Node
+    ToAstNode()
+    {
+        return ToAstNode(new Ast());
+    }
+
+    /** Views of the same node are equal. */
+    @Override public boolean
+    equals(Object o)
+    {
+        return o instanceof Node && ((Node)o).index == index && ((Node)o).GetFile() == AstFile.this;
+    }
+
+    @Override public int
+    hashCode()
+    {
+        return index;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final int index, offset;
+
+    private
+    Node(int index)
+    {
+        this.index = index;
+        offset = index * REC_SIZE;
+    }
+
+    private AstFile
+    GetFile()
+    {
+        return AstFile.this;
+    }
+
+    private Parser.InputPosition
+    ReadPosition(int recOffset)
+    {
+        int curOffset = nodes.getInt(recOffset);
+        if (curOffset == -1) {
+            return null;
+        }
+        Parser.InputPosition pos = new Parser.InputPosition();
+        pos.curOffset = curOffset;
+        pos.curLine = nodes.getInt(recOffset + 4);
+        pos.curCol = nodes.getInt(recOffset + 8);
+        return pos;
+    }
+
+    private Ast.Node
+    ToAstNode(Ast ast)
+    {
+        Ast.Node node = ast.CreateNode();
+        node.grammarNode = GetGrammarNode();
+        node.str = GetStr();
+        node.startPosition = GetStartPosition();
+        node.endPosition = GetEndPosition();
+        int numChildren = GetChildrenCount();
+        for (int i = 0; i < numChildren; i++) {
+            node.AppendChild(GetChild(i).ToAstNode(ast));
+        }
+        return node;
+    }
+}
+
+/** Write AST into the file.
+ *
+ * @param grammar Compiled grammar the AST is produced by.
+ */
+public static void
+Write(Ast ast, CompiledGrammar grammar, Path file)
+    throws IOException
+{
+    Ast.Node root = ast.GetRoot();
+    int numNodes = root == null ? 0 : CountNodes(root);
+    ByteArrayOutputStream stringsBuf = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file.toFile())))) {
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(grammar.GetFingerprint().getBytes(StandardCharsets.US_ASCII));
+        out.writeInt(numNodes);
+
+        /* Breadth-first traversal, index of node children is known when the node is written. */
+        ArrayDeque<Ast.Node> queue = new ArrayDeque<>();
+        ArrayDeque<Integer> parents = new ArrayDeque<>();
+        if (root != null) {
+            queue.add(root);
+            parents.add(-1);
+        }
+        int index = 0, nextIndex = 1;
+        while (!queue.isEmpty()) {
+            Ast.Node node = queue.poll();
+            int parent = parents.poll();
+            int grammarNodeId = grammar.GetNodeId(node.grammarNode);
+            if (grammarNodeId == -1) {
+                throw new IllegalArgumentException("AST node does not belong to the grammar: " +
+                                                   node.grammarNode);
+            }
+            out.writeInt(grammarNodeId);
+            out.writeInt(parent);
+            int numChildren = node.children == null ? 0 : node.children.size();
+            out.writeInt(nextIndex);
+            out.writeInt(numChildren);
+            for (int i = 0; i < numChildren; i++) {
+                queue.add(node.children.get(i));
+                parents.add(index);
+            }
+            nextIndex += numChildren;
+            if (node.str != null) {
+                byte[] str = node.str.getBytes(StandardCharsets.UTF_8);
+                if ((long)stringsBuf.size() + str.length > Integer.MAX_VALUE) {
+                    throw new IOException("String table size exceeded");
+                }
+                out.writeInt(stringsBuf.size());
+                out.writeInt(str.length);
+                stringsBuf.write(str);
+            } else {
+                out.writeInt(-1);
+                out.writeInt(0);
+            }
+            WritePosition(out, node.startPosition);
+            WritePosition(out, node.endPosition);
+            index++;
+        }
+
+        out.writeInt(stringsBuf.size());
+        stringsBuf.writeTo(out);
+    }
+}
+
+/** Open file for reading.
+ *
+ * @param grammar Compiled grammar the AST is produced by. Should have the same fingerprint as the
+ *                written one.
+ */
+public static AstFile
+Open(Path file, CompiledGrammar grammar)
+    throws IOException
+{
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+        return new AstFile(channel, grammar);
+    } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+    }
+}
+
+public int
+GetNodesCount()
+{
+    return numNodes;
+}
+
+/** Get root node, null if the AST is empty. */
+public Node
+GetRoot()
+{
+    return numNodes == 0 ? null : new Node(0);
+}
+
+public Node
+GetNode(int index)
+{
+    if (index < 0 || index >= numNodes) {
+        throw new IndexOutOfBoundsException("Node index out of range: " + index);
+    }
+    return new Node(index);
+}
+
+/** Materialize the whole AST. */
+public Ast
+ToAst()
+{
+    Ast ast = new Ast();
+    if (numNodes != 0) {
+        ast.root = GetRoot().ToAstNode(ast);
+    }
+    return ast;
+}
+
+/** Close the file. Mapped memory is released when node views become unreachable. */
+@Override public void
+close()
+    throws IOException
+{
+    channel.close();
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int MAGIC = 0x524f5842;
+private static final int VERSION = 1;
+/** Fingerprint length in characters (hexadecimal SHA-256). */
+private static final int FINGERPRINT_SIZE = 64;
+private static final int HEADER_SIZE = 4 + 4 + FINGERPRINT_SIZE + 4;
+
+/** Node record fields offsets. */
+private static final int REC_GRAMMAR_NODE = 0,
+                         REC_PARENT = 4,
+                         REC_FIRST_CHILD = 8,
+                         REC_NUM_CHILDREN = 12,
+                         REC_STR_OFFSET = 16,
+                         REC_STR_SIZE = 20,
+                         REC_START_POS = 24,
+                         REC_END_POS = 36,
+                         REC_SIZE = 48;
+
+private final FileChannel channel;
+private final CompiledGrammar grammar;
+private final int numNodes;
+private final MappedByteBuffer nodes, strings;
+
+private
+AstFile(FileChannel channel, CompiledGrammar grammar)
+    throws IOException
+{
+    this.channel = channel;
+    this.grammar = grammar;
+    long fileSize = channel.size();
+    if (fileSize < HEADER_SIZE + 4) {
+        throw new IOException("Invalid AST file: too short");
+    }
+    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+    if (header.getInt() != MAGIC) {
+        throw new IOException("Invalid AST file: bad magic");
+    }
+    int version = header.getInt();
+    if (version != VERSION) {
+        throw new IOException("Unsupported AST file version: " + version);
+    }
+    byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+    header.get(fingerprint);
+    if (!new String(fingerprint, StandardCharsets.US_ASCII).equals(grammar.GetFingerprint())) {
+        throw new IOException("AST file grammar fingerprint mismatch");
+    }
+    numNodes = header.getInt();
+    long nodesSize = (long)numNodes * REC_SIZE;
+    if (numNodes < 0 || nodesSize > Integer.MAX_VALUE ||
+        HEADER_SIZE + nodesSize + 4 > fileSize) {
+        throw new IOException("Invalid AST file: bad nodes count");
+    }
+    nodes = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, nodesSize);
+    long stringsOffset = HEADER_SIZE + nodesSize;
+    int stringsSize = channel.map(FileChannel.MapMode.READ_ONLY, stringsOffset, 4).getInt();
+    if (stringsSize < 0 || stringsOffset + 4 + stringsSize != fileSize) {
+        throw new IOException("Invalid AST file: bad string table size");
+    }
+    strings = channel.map(FileChannel.MapMode.READ_ONLY, stringsOffset + 4, stringsSize);
+}
+
+private static int
+CountNodes(Ast.Node root)
+{
+    int count = 0;
+    ArrayDeque<Ast.Node> stack = new ArrayDeque<>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+        Ast.Node node = stack.pop();
+        count++;
+        if (node.children != null) {
+            for (Ast.Node child: node.children) {
+                stack.push(child);
+            }
+        }
+    }
+    return count;
+}
+
+private static void
+WritePosition(DataOutputStream out, Parser.InputPosition pos)
+    throws IOException
+{
+    if (pos == null) {
+        out.writeInt(-1);
+        out.writeInt(0);
+        out.writeInt(0);
+    } else {
+        out.writeInt(pos.curOffset);
+        out.writeInt(pos.curLine);
+        out.writeInt(pos.curCol);
+    }
+}
+
+}
@@ -0,0 +1,155 @@
+package org.roxy.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Indexes of committed AST nodes, built while parsing if enabled (see Parser.SetAstIndex()).
+ * Nodes are looked up by grammar node and by source offset without walking the tree. The index is
+ * kept in primitive arrays: per grammar node id lists of node ordinals, and node start offsets
+ * sorted on first offset query after new nodes are added. Indexed nodes are retained by the index
+ * even if a tag fabric detaches them from the tree.
+ */
+public class AstIndex {
+
+/** Get number of indexed nodes. */
+public int
+GetNodesCount()
+{
+    return numNodes;
+}
+
+/** Get number of committed nodes of the specified grammar node. */
+public int
+GetCount(Grammar.Node grammarNode)
+{
+    int id = compiled.GetNodeId(grammarNode);
+    return id == -1 ? 0 : kindCounts[id];
+}
+
+/** Get committed node of the specified grammar node by its index in commit order (children before
+ * parents, otherwise source order).
+ */
+public Ast.Node
+Get(Grammar.Node grammarNode, int idx)
+{
+    if (idx < 0 || idx >= GetCount(grammarNode)) {
+        throw new IndexOutOfBoundsException("Invalid node index: " + idx);
+    }
+    return nodes[kindNodes[grammarNode.id][idx]];
+}
+
+/** Get all committed nodes of the specified grammar node in commit order. */
+public List<Ast.Node>
+GetNodes(Grammar.Node grammarNode)
+{
+    int count = GetCount(grammarNode);
+    ArrayList<Ast.Node> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+        result.add(nodes[kindNodes[grammarNode.id][i]]);
+    }
+    return result;
+}
+
+/** Find innermost node which contains the specified offset.
+ *
+ * @return Null if no node contains the offset.
+ */
+public Ast.Node
+FindInnermost(int offset)
+{
+    if (numSorted != numNodes) {
+        Sort();
+    }
+    /* Last node starting not after the offset. */
+    int lo = 0, hi = numSorted;
+    while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if ((int)(sortedKeys[mid] >> 32) <= offset) {
+            lo = mid + 1;
+        } else {
+            hi = mid;
+        }
+    }
+    if (lo == 0) {
+        return null;
+    }
+    /* Nodes are nested, so the innermost containing node is this one or its ancestor. */
+    Ast.Node node = nodes[Integer.MAX_VALUE - (int)sortedKeys[lo - 1]];
+    while (node != null && node.endPosition != null && node.endPosition.curOffset < offset) {
+        node = node.parent;
+    }
+    return node;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int INITIAL_CAPACITY = 64;
+
+private final CompiledGrammar compiled;
+/** Indexed nodes by ordinal (commit order). */
+private Ast.Node[] nodes = new Ast.Node[INITIAL_CAPACITY];
+private int numNodes;
+/** Ordinals of nodes for each grammar node id, allocated on first node. */
+private final int[][] kindNodes;
+private final int[] kindCounts;
+/** Start offset in high half, inverted ordinal in low half, so that nodes starting at the same
+ * offset are ordered from outer to inner ones.
+ */
+private long[] sortedKeys = new long[0];
+private int numSorted;
+
+/**
+ * @param grammar Any node of the compiled grammar the indexed nodes belong to.
+ * @throws IllegalStateException If the grammar is not compiled.
+ */
+AstIndex(Grammar.Node grammar)
+{
+    compiled = grammar.GetGrammar().GetCompiled();
+    if (compiled == null) {
+        throw new IllegalStateException("Grammar is not compiled");
+    }
+    kindNodes = new int[compiled.GetNodesCount()][];
+    kindCounts = new int[compiled.GetNodesCount()];
+}
+
+/** Add committed node. */
+void
+Add(Ast.Node node)
+{
+    int id = compiled.GetNodeId(node.grammarNode);
+    if (id == -1) {
+        throw new IllegalStateException("Node does not belong to the indexed grammar\n" +
+                                        node.grammarNode);
+    }
+    int ordinal = numNodes++;
+    if (ordinal == nodes.length) {
+        nodes = Arrays.copyOf(nodes, ordinal * 2);
+    }
+    nodes[ordinal] = node;
+    int[] list = kindNodes[id];
+    int count = kindCounts[id]++;
+    if (list == null) {
+        list = kindNodes[id] = new int[4];
+    } else if (count == list.length) {
+        list = kindNodes[id] = Arrays.copyOf(list, count * 2);
+    }
+    list[count] = ordinal;
+}
+
+/** Add keys of the nodes indexed since the last sorting and sort all the keys. */
+private void
+Sort()
+{
+    if (sortedKeys.length < numNodes) {
+        sortedKeys = Arrays.copyOf(sortedKeys, nodes.length);
+    }
+    for (int ordinal = numSorted; ordinal < numNodes; ordinal++) {
+        sortedKeys[ordinal] = ((long)nodes[ordinal].startPosition.curOffset << 32) |
+            (Integer.MAX_VALUE - ordinal);
+    }
+    Arrays.sort(sortedKeys, 0, numNodes);
+    numSorted = numNodes;
+}
+
+}
@@ -0,0 +1,196 @@
+package org.roxy.parser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.concurrent.locks.LockSupport;
+
+/** Reads input in a separate thread and passes decoded character blocks to the parser thread
+ * through a preallocated lock-free single-producer/single-consumer ring buffer.
+ *
+ * The producer thread fills free blocks from the reader (so input decoding and I/O happen there),
+ * the consumer takes filled blocks in order and releases each one after processing. Positions are
+ * published through volatile counters, a side waits by spinning shortly and then parking until the
+ * other side unparks it.
+ */
+class BlockRing {
+
+/** Returned by Take() when cancelled. */
+static final int CANCELLED = -2;
+
+/**
+ * @param numBlocks Number of blocks in the ring, rounded up to power of two.
+ * @param blockSize Size of each block in characters.
+ */
+BlockRing(Reader reader, int numBlocks, int blockSize)
+{
+    this.reader = reader;
+    int capacity = Integer.highestOneBit(Math.max(numBlocks, 2) - 1) << 1;
+    mask = capacity - 1;
+    blocks = new char[capacity][blockSize];
+    sizes = new int[capacity];
+}
+
+/** Start producer thread. */
+void
+Start()
+{
+    Thread producer = new Thread(this::Produce, "Parser-reader");
+    producer.setDaemon(true);
+    producer.start();
+}
+
+/** Wait for next filled block.
+ *
+ * @return Number of characters in the block returned by GetBlock(), -1 on end of input, CANCELLED
+ * if Cancel() was called while waiting.
+ * @throws InterruptedIOException If the consumer thread is interrupted while waiting. Interrupt
+ * status is left set.
+ */
+int
+Take()
+    throws IOException
+{
+    long _head = head;
+    int spins = 0;
+    while (tail == _head) {
+        if (spins < SPIN_COUNT) {
+            spins++;
+            continue;
+        }
+        if (cancelled) {
+            return CANCELLED;
+        }
+        /* Park returns immediately while interrupt status is set. */
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+        consumerWaiting = Thread.currentThread();
+        if (tail == _head && !cancelled) {
+            LockSupport.park(this);
+        }
+        consumerWaiting = null;
+    }
+    int size = sizes[(int)_head & mask];
+    if (size == SIZE_ERROR) {
+        if (error instanceof IOException) {
+            throw (IOException)error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException)error;
+        }
+        if (error instanceof Error) {
+            throw (Error)error;
+        }
+        throw new IOException(error);
+    }
+    return size;
+}
+
+/** Wake up the consumer waiting in Take() so that it returns CANCELLED. Can be called from any
+ * thread.
+ */
+void
+Cancel()
+{
+    cancelled = true;
+    Thread t = consumerWaiting;
+    if (t != null) {
+        LockSupport.unpark(t);
+    }
+}
+
+/** Get block taken by the last Take() call. Valid until Release(). */
+char[]
+GetBlock()
+{
+    return blocks[(int)head & mask];
+}
+
+/** Return the taken block to the producer. */
+void
+Release()
+{
+    head = head + 1;
+    Thread t = producerWaiting;
+    if (t != null) {
+        LockSupport.unpark(t);
+    }
+}
+
+/** Stop the producer. Blocking read in progress is not interrupted, the producer exits after it
+ * returns.
+ */
+void
+Close()
+{
+    closed = true;
+    Thread t = producerWaiting;
+    if (t != null) {
+        LockSupport.unpark(t);
+    }
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int SPIN_COUNT = 100;
+private static final int SIZE_ERROR = -3;
+
+private final Reader reader;
+private final int mask;
+private final char[][] blocks;
+private final int[] sizes;
+/** Index of the next block to take. Written by consumer only. */
+private volatile long head;
+/** Index of the next block to fill. Written by producer only. */
+private volatile long tail;
+private volatile Thread consumerWaiting, producerWaiting;
+private volatile boolean closed, cancelled;
+/** Published by tail update. */
+private Throwable error;
+
+private void
+Produce()
+{
+    long _tail = tail;
+    while (!closed) {
+        int spins = 0;
+        while (_tail - head > mask && !closed) {
+            if (spins < SPIN_COUNT) {
+                spins++;
+                continue;
+            }
+            producerWaiting = Thread.currentThread();
+            if (_tail - head > mask && !closed) {
+                LockSupport.park(this);
+            }
+            producerWaiting = null;
+        }
+        if (closed) {
+            break;
+        }
+        int idx = (int)_tail & mask;
+        int size;
+        try {
+            do {
+                size = reader.read(blocks[idx]);
+            } while (size == 0);
+        } catch (Throwable e) {
+            /* Any failure is passed to the consumer, otherwise it would wait forever. */
+            error = e;
+            size = SIZE_ERROR;
+        }
+        sizes[idx] = size;
+        _tail++;
+        tail = _tail;
+        Thread t = consumerWaiting;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        if (size < 0) {
+            break;
+        }
+    }
+}
+
+}
@@ -0,0 +1,205 @@
+package org.roxy.parser;
+
+import java.util.Arrays;
+
+/** Immutable set of characters represented by sorted disjoint ranges. */
+public final class CharSet {
+
+public static final int MAX_CHAR = Character.MAX_CODE_POINT;
+
+public static final CharSet EMPTY = new CharSet(new int[0]),
+                            ALL = new CharSet(new int[]{0, MAX_CHAR});
+
+public static CharSet
+Range(int cMin, int cMax)
+{
+    if (cMin > cMax) {
+        return EMPTY;
+    }
+    return new CharSet(new int[]{cMin, cMax});
+}
+
+public static CharSet
+Of(int... chars)
+{
+    CharSet result = EMPTY;
+    for (int c: chars) {
+        result = result.Union(Range(c, c));
+    }
+    return result;
+}
+
+public boolean
+IsEmpty()
+{
+    return ranges.length == 0;
+}
+
+public boolean
+Contains(int c)
+{
+    /* Index of the first range bound greater than the character. Odd index means the character is
+     * inside of some range.
+     */
+    int idx = Arrays.binarySearch(ranges, c);
+    if (idx >= 0) {
+        return true;
+    }
+    return ((-idx - 1) & 1) == 1;
+}
+
+/** Get number of ranges in the set. */
+public int
+GetRangesCount()
+{
+    return ranges.length / 2;
+}
+
+public int
+GetRangeMin(int idx)
+{
+    return ranges[idx * 2];
+}
+
+public int
+GetRangeMax(int idx)
+{
+    return ranges[idx * 2 + 1];
+}
+
+/** Get maximal character in the set, -1 for empty set. */
+public int
+GetMaxChar()
+{
+    return ranges.length == 0 ? -1 : ranges[ranges.length - 1];
+}
+
+public CharSet
+Union(CharSet other)
+{
+    return Combine(other, OP_UNION);
+}
+
+public CharSet
+Intersect(CharSet other)
+{
+    return Combine(other, OP_INTERSECT);
+}
+
+public CharSet
+Subtract(CharSet other)
+{
+    return Combine(other, OP_SUBTRACT);
+}
+
+@Override public boolean
+equals(Object obj)
+{
+    return obj instanceof CharSet && Arrays.equals(ranges, ((CharSet)obj).ranges);
+}
+
+@Override public int
+hashCode()
+{
+    return Arrays.hashCode(ranges);
+}
+
+@Override public String
+toString()
+{
+    StringBuilder sb = new StringBuilder();
+    sb.append('[');
+    for (int i = 0; i < ranges.length; i += 2) {
+        AppendChar(sb, ranges[i]);
+        if (ranges[i + 1] != ranges[i]) {
+            sb.append('-');
+            AppendChar(sb, ranges[i + 1]);
+        }
+    }
+    sb.append(']');
+    return sb.toString();
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int OP_UNION = 0,
+                         OP_INTERSECT = 1,
+                         OP_SUBTRACT = 2;
+
+/** Pairs of inclusive range bounds. */
+private final int[] ranges;
+
+private
+CharSet(int[] ranges)
+{
+    this.ranges = ranges;
+}
+
+/** Merge two sets by sweeping all range bounds in order. */
+private CharSet
+Combine(CharSet other, int op)
+{
+    int[] result = new int[ranges.length + other.ranges.length + 2];
+    int size = 0;
+    int i = 0, j = 0;
+    boolean inThis = false, inOther = false, inResult = false;
+    /* Each bound is converted to half-open form: range start, first character after range. */
+    while (i < ranges.length || j < other.ranges.length) {
+        long pos1 = i < ranges.length ? GetBound(ranges, i) : Long.MAX_VALUE,
+             pos2 = j < other.ranges.length ? GetBound(other.ranges, j) : Long.MAX_VALUE;
+        long pos = Math.min(pos1, pos2);
+        if (pos1 == pos) {
+            inThis = !inThis;
+            i++;
+        }
+        if (pos2 == pos) {
+            inOther = !inOther;
+            j++;
+        }
+        boolean in;
+        switch (op) {
+        case OP_UNION:
+            in = inThis || inOther;
+            break;
+        case OP_INTERSECT:
+            in = inThis && inOther;
+            break;
+        default:
+            in = inThis && !inOther;
+        }
+        if (in != inResult) {
+            result[size++] = in ? (int)pos : (int)(pos - 1);
+            inResult = in;
+        }
+    }
+    /* Merge adjacent ranges. */
+    int[] merged = new int[size];
+    int mergedSize = 0;
+    for (int k = 0; k < size; k += 2) {
+        if (mergedSize != 0 && merged[mergedSize - 1] + 1 >= result[k]) {
+            merged[mergedSize - 1] = result[k + 1];
+        } else {
+            merged[mergedSize++] = result[k];
+            merged[mergedSize++] = result[k + 1];
+        }
+    }
+    return new CharSet(Arrays.copyOf(merged, mergedSize));
+}
+
+private static long
+GetBound(int[] ranges, int idx)
+{
+    return (idx & 1) == 0 ? ranges[idx] : (long)ranges[idx] + 1;
+}
+
+private static void
+AppendChar(StringBuilder sb, int c)
+{
+    if (c >= 0x20 && c < 0x7f && c != '-' && c != '[' && c != ']' && c != '\\') {
+        sb.append((char)c);
+    } else {
+        sb.append(String.format("\\u%04x", c));
+    }
+}
+
+}
@@ -0,0 +1,238 @@
+package org.roxy.parser;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/** Immutable snapshot of a compiled grammar, returned by Grammar.Compile().
+ *
+ * Each grammar node reachable from the named nodes gets a dense id in range [0; GetNodesCount()).
+ * Ids are assigned in depth-first order starting from the named nodes sorted by name, so the same
+ * grammar definition gets the same ids in every run. Node properties are copied into arrays indexed
+ * by id. All fields are final, so the snapshot is safely published to other threads without
+ * synchronization. Nodes are frozen by the compilation, their modification methods throw
+ * IllegalStateException. Per-node side data of grammar users can be stored in plain arrays indexed
+ * by the node id.
+ *
+ * Since the ids are stable, they are also used to refer grammar nodes in persisted data (see
+ * AstFile, ParseCache), which is bound to the grammar fingerprint. The fingerprint is a hash of the
+ * grammar structure, it changes whenever parsing result may change. Tag fabrics are not part of
+ * the fingerprint since their code cannot be inspected.
+ */
+public final class CompiledGrammar {
+
+public int
+GetNodesCount()
+{
+    return nodes.length;
+}
+
+/** Get node by id. */
+public Grammar.Node
+GetNode(int id)
+{
+    return nodes[id];
+}
+
+/** Get node id, -1 if the node does not belong to this grammar. */
+public int
+GetNodeId(Grammar.Node node)
+{
+    int id = node.id;
+    return id >= 0 && id < nodes.length && nodes[id] == node ? id : -1;
+}
+
+/** Get id of the named node, -1 if not found. */
+public int
+FindNodeId(String name)
+{
+    int idx = Arrays.binarySearch(sortedNames, name);
+    return idx >= 0 ? sortedNameIds[idx] : -1;
+}
+
+/** Get named node, null if not found. */
+public Grammar.Node
+FindNode(String name)
+{
+    int id = FindNodeId(name);
+    return id == -1 ? null : nodes[id];
+}
+
+/** Get node name, null if not named. */
+public String
+GetName(int id)
+{
+    return names[id];
+}
+
+public int
+GetChildrenCount(int id)
+{
+    return children[id].length;
+}
+
+public int
+GetChildId(int id, int childIdx)
+{
+    return children[id][childIdx];
+}
+
+/** Get id of the next sibling node in a sequence, -1 for the last node. */
+public int
+GetNextSiblingId(int id)
+{
+    return nextSiblings[id];
+}
+
+public int
+GetMinQuantity(int id)
+{
+    return minQuantities[id];
+}
+
+/** @return Maximal quantity, -1 for unlimited. */
+public int
+GetMaxQuantity(int id)
+{
+    return maxQuantities[id];
+}
+
+public boolean
+IsVal(int id)
+{
+    return isVal[id];
+}
+
+public boolean
+IsToken(int id)
+{
+    return isToken[id];
+}
+
+public boolean
+IsCut(int id)
+{
+    return isCut[id];
+}
+
+public boolean
+IsSymbol(int id)
+{
+    return isSymbol[id];
+}
+
+/** Get grammar fingerprint, hexadecimal string of SHA-256 hash. */
+public String
+GetFingerprint()
+{
+    return fingerprint;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private final Grammar.Node[] nodes;
+private final String[] names;
+private final int[][] children;
+private final int[] nextSiblings, minQuantities, maxQuantities;
+private final boolean[] isVal, isToken, isCut, isSymbol;
+/** Node names in ascending order, and corresponding node ids. */
+private final String[] sortedNames;
+private final int[] sortedNameIds;
+private final String fingerprint;
+
+/**
+ * @param namedNodes Compiled named nodes sorted by name.
+ */
+CompiledGrammar(Map<String, Grammar.Node> namedNodes)
+{
+    ArrayList<Grammar.Node> nodesList = new ArrayList<>();
+    for (Grammar.Node node: namedNodes.values()) {
+        AddNode(node, nodesList);
+    }
+    int n = nodesList.size();
+    nodes = nodesList.toArray(new Grammar.Node[n]);
+    names = new String[n];
+    children = new int[n][];
+    nextSiblings = new int[n];
+    minQuantities = new int[n];
+    maxQuantities = new int[n];
+    isVal = new boolean[n];
+    isToken = new boolean[n];
+    isCut = new boolean[n];
+    isSymbol = new boolean[n];
+    for (int id = 0; id < n; id++) {
+        Grammar.Node node = nodes[id];
+        names[id] = node.name;
+        ArrayList<Integer> childIds = new ArrayList<>();
+        for (Grammar.Node child: node) {
+            childIds.add(child.id);
+        }
+        children[id] = childIds.stream().mapToInt(Integer::intValue).toArray();
+        nextSiblings[id] = node.next == null ? -1 : node.next.id;
+        minQuantities[id] = node.numMin;
+        maxQuantities[id] = node.numMax;
+        isVal[id] = node.isVal;
+        isToken[id] = node.isToken;
+        isCut[id] = node.isCut;
+        isSymbol[id] = node.isSymbol;
+    }
+    sortedNames = namedNodes.keySet().toArray(new String[0]);
+    sortedNameIds = new int[sortedNames.length];
+    int idx = 0;
+    for (Grammar.Node node: namedNodes.values()) {
+        sortedNameIds[idx++] = node.id;
+    }
+    fingerprint = CalculateFingerprint();
+}
+
+static String
+ToHex(byte[] bytes)
+{
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b: bytes) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+}
+
+private String
+CalculateFingerprint()
+{
+    StringBuilder sb = new StringBuilder();
+    for (int id = 0; id < nodes.length; id++) {
+        nodes[id].AppendSignature(sb);
+        sb.append(" (");
+        for (int childId: children[id]) {
+            sb.append(' ');
+            sb.append(childId);
+        }
+        sb.append(" )\n");
+    }
+    MessageDigest md;
+    try {
+        md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+    }
+    return ToHex(md.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+}
+
+/** Assign id to the node and its descendants if not yet done. */
+private static void
+AddNode(Grammar.Node node, ArrayList<Grammar.Node> nodesList)
+{
+    if (node.id >= 0) {
+        return;
+    }
+    node.id = nodesList.size();
+    nodesList.add(node);
+    for (Grammar.Node child: node) {
+        AddNode(child, nodesList);
+    }
+}
+
+}
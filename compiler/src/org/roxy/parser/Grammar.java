@@ -23,6 +23,7 @@ public abstract class Node implements Iterable<Node> {
     public final Node
     Name(String name)
     {
+        CheckNotFrozen();
         if (this.name != null) {
             throw new IllegalStateException("Node name already defined: " + this.name);
         }
@@ -34,6 +35,13 @@ public abstract class Node implements Iterable<Node> {
         return this;
     }
 
+    /** Get node name, null if not named. */
+    public final String
+    GetName()
+    {
+        return name;
+    }
+
     public final Node
     Optional()
     {
@@ -55,6 +63,7 @@ public abstract class Node implements Iterable<Node> {
     public final Node
     Quantity(int numMin, int numMax)
     {
+        CheckNotFrozen();
         if (quantityValid) {
             throw new IllegalStateException("Node quantity already defined");
         }
@@ -91,6 +100,7 @@ public abstract class Node implements Iterable<Node> {
     public final Node
     Val(Ast.TagFabric valTagFabric, boolean wantValString)
     {
+        CheckNotFrozen();
         isVal = true;
         this.valTagFabric = valTagFabric;
         this.wantValString = wantValString;
@@ -103,6 +113,72 @@ public abstract class Node implements Iterable<Node> {
         return Val(valTagFabric, false);
     }
 
+    /** Mark the node as a token. Token content is compiled into a deterministic automaton on
+     * grammar compilation and matched by a single parser branch instead of a branch per grammar
+     * path. The longest possible match is taken, i.e. the token does not end while the next
+     * character continues it. The node should not be recursive, should not contain valuable nodes
+     * (the node itself can be valuable) and should not match empty string. Each repetition of a
+     * quantified token node is matched as a separate token.
+     *
+     * @return This node.
+     */
+    public final Node
+    Token()
+    {
+        CheckNotFrozen();
+        isToken = true;
+        return this;
+    }
+
+    public final boolean
+    IsToken()
+    {
+        return isToken;
+    }
+
+    /** Mark the node as a cut point. Once a parser branch completes the node, the branches
+     * competing with it are dropped except the ones within the same instance of the nearest named
+     * ancestor node. The matched prefix is then committed as soon as no alternatives remain, so
+     * grammar author can limit the parser memory and branches number explicitly, e.g. by cutting
+     * after a statement keyword. Cut is ignored in predicates content and in tokens content, and
+     * by the packrat parser which commits to the first matched alternative anyway.
+     *
+     * @return This node.
+     */
+    public final Node
+    Cut()
+    {
+        CheckNotFrozen();
+        isCut = true;
+        return this;
+    }
+
+    public final boolean
+    IsCut()
+    {
+        return isCut;
+    }
+
+    /** Mark the node as a symbol. Its string value is interned in the symbol table attached to the
+     * parser if any (see SymbolTable), AST nodes then share equal strings and get the symbol id.
+     * The node should be valuable with string value saved.
+     *
+     * @return This node.
+     */
+    public final Node
+    Symbol()
+    {
+        CheckNotFrozen();
+        isSymbol = true;
+        return this;
+    }
+
+    public final boolean
+    IsSymbol()
+    {
+        return isSymbol;
+    }
+
     @Override public String
     toString()
     {
@@ -159,15 +235,47 @@ public abstract class Node implements Iterable<Node> {
         return next;
     }
 
+    /** Get node id in the compiled grammar (see CompiledGrammar), -1 if the node is not compiled.
+     */
+    public final int
+    GetId()
+    {
+        return id;
+    }
+
     // /////////////////////////////////////////////////////////////////////////////////////////////
 
     protected String name;
-    boolean isVal, wantValString;
+    boolean isVal, wantValString, isToken, isCut, isSymbol;
     Ast.TagFabric valTagFabric;
+    /** Compiled automaton if the node is token. */
+    TokenAutomaton token;
+    /** Parser branch tip when matching the token. */
+    TokenStepNode tokenStep;
     protected int numMin = 1, numMax = 1;
     protected boolean quantityValid = false;
     /** Next sibling node when in a sequence. */
     protected Node next;
+    /** Dense id assigned on grammar compilation, -1 if not compiled. The node is frozen once the id
+     * is assigned.
+     */
+    int id = -1;
+
+    /** Get grammar the node belongs to. */
+    final Grammar
+    GetGrammar()
+    {
+        return Grammar.this;
+    }
+
+    /** Throw IllegalStateException if the node is already compiled. */
+    protected final void
+    CheckNotFrozen()
+    {
+        if (id >= 0) {
+            throw new IllegalStateException("Node is frozen by grammar compilation");
+        }
+    }
 
     protected Node
     CopyTo(Node node)
@@ -176,6 +284,8 @@ public abstract class Node implements Iterable<Node> {
         node.quantityValid = quantityValid;
         node.numMin = numMin;
         node.numMax = numMax;
+        node.isToken = isToken;
+        node.isCut = isCut;
         return node;
     }
 
@@ -189,6 +299,26 @@ public abstract class Node implements Iterable<Node> {
     protected abstract String
     toString(String indent, HashSet<Node> visitedNodes);
 
+    /** Append description of the node own properties (excluding child nodes) which affect parsing
+     * result. Used for grammar fingerprint calculation.
+     */
+    void
+    AppendSignature(StringBuilder sb)
+    {
+        sb.append(getClass().getSimpleName());
+        sb.append(' ');
+        sb.append(name == null ? "-" : name);
+        sb.append(' ');
+        sb.append(numMin);
+        sb.append(' ');
+        sb.append(numMax);
+        sb.append(isVal ? " val" : "");
+        sb.append(wantValString ? " str" : "");
+        sb.append(isToken ? " token" : "");
+        sb.append(isCut ? " cut" : "");
+        sb.append(isSymbol ? " symbol" : "");
+    }
+
     protected String
     GetQuantityString()
     {
@@ -381,12 +511,22 @@ public class CharNode extends Node {
         return Range(cMin, cMax, true);
     }
 
+    /** Match input byte against this node in byte mode (see Grammar.GetByteModeError()). */
+    boolean
+    MatchByte(int b)
+    {
+        return byteTable[b];
+    }
+
     /** Match the character against this node.
      * @return True if the character matched, false otherwise.
      */
     public boolean
     MatchChar(int c)
     {
+        if (matchers != null) {
+            return matchers.MatchChar(matcherIdx, c);
+        }
         boolean match = matchAny;
         for (RangeEntry re: ranges) {
             if (re.MatchChar(c)) {
@@ -396,6 +536,18 @@ public class CharNode extends Node {
         return match;
     }
 
+    /** Get set of all characters matched by this node. */
+    public CharSet
+    GetCharSet()
+    {
+        CharSet result = matchAny ? CharSet.ALL : CharSet.EMPTY;
+        for (RangeEntry re: ranges) {
+            CharSet range = CharSet.Range(re.cMin, re.cMax);
+            result = re.exclude ? result.Subtract(range) : result.Union(range);
+        }
+        return result;
+    }
+
     // /////////////////////////////////////////////////////////////////////////////////////////////
 
     private class RangeEntry {
@@ -419,14 +571,37 @@ public class CharNode extends Node {
 
     private final boolean matchAny;
     private final ArrayList<RangeEntry> ranges = new ArrayList<>();
+    /** Generated matcher, null if interpreted. */
+    private MatcherGenerator.Matchers matchers;
+    private int matcherIdx;
+    /** Match result for each input byte in byte mode, null if byte mode is not supported. */
+    private boolean[] byteTable;
+
+    void
+    SetMatchers(MatcherGenerator.Matchers matchers, int matcherIdx)
+    {
+        this.matchers = matchers;
+        this.matcherIdx = matcherIdx;
+    }
 
     private CharNode
     Range(int cMin, int cMax, boolean exclude)
     {
+        CheckNotFrozen();
         ranges.add(new RangeEntry(cMin, cMax, exclude));
         return this;
     }
 
+    @Override void
+    AppendSignature(StringBuilder sb)
+    {
+        super.AppendSignature(sb);
+        sb.append(matchAny ? " any" : "");
+        for (RangeEntry re: ranges) {
+            sb.append(String.format(" %s%x-%x", re.exclude ? "^" : "", re.cMin, re.cMax));
+        }
+    }
+
     @Override protected String
     toString(String indent, HashSet<Node> visitedNodes)
     {
@@ -447,6 +622,198 @@ public class CharNode extends Node {
     }
 }
 
+/** Matches any of the specified literal strings. The literals are compiled into a prefix tree which
+ * is walked by a single parser branch, so a large set of keywords does not multiply the number of
+ * branches.
+ */
+public class LiteralsNode extends Node {
+
+    /** Get minimal length of the matched literals. */
+    public int
+    GetMinLength()
+    {
+        return minLength;
+    }
+
+    String[]
+    GetLiterals()
+    {
+        return literals;
+    }
+
+    boolean
+    IsCaseSensitive()
+    {
+        return caseSensitive;
+    }
+
+    /** Get set of characters the literals start with. */
+    public CharSet
+    GetFirstChars()
+    {
+        return CharSet.Of(transitionChars[0]);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Parser branch tip in the prefix tree. Never appears in the grammar tree, matching state is
+     * stored in the corresponding parser node.
+     */
+    class StepNode extends Node {
+
+        @Override protected String
+        toString(String indent, HashSet<Node> visitedNodes)
+        {
+            return LiteralsNode.this.toString(indent, visitedNodes);
+        }
+    }
+
+    final StepNode stepNode = new StepNode();
+
+    private
+    LiteralsNode(String[] literals, boolean caseSensitive)
+    {
+        if (literals.length == 0) {
+            throw new IllegalArgumentException("Literals node should have non-empty content");
+        }
+        this.literals = literals;
+        this.caseSensitive = caseSensitive;
+        ArrayList<TreeMap<Integer, Integer>> transitions = new ArrayList<>();
+        ArrayList<Boolean> finalStates = new ArrayList<>();
+        transitions.add(new TreeMap<>());
+        finalStates.add(false);
+        minLength = -1;
+        for (String literal: literals) {
+            if (literal.isEmpty()) {
+                throw new IllegalArgumentException("Empty literal");
+            }
+            int state = 0, length = 0;
+            for (int c: literal.codePoints().toArray()) {
+                TreeMap<Integer, Integer> stateTransitions = transitions.get(state);
+                int key = caseSensitive ? c : Character.toLowerCase(c);
+                Integer nextState = stateTransitions.get(key);
+                if (nextState == null) {
+                    nextState = transitions.size();
+                    transitions.add(new TreeMap<>());
+                    finalStates.add(false);
+                    stateTransitions.put(key, nextState);
+                    if (!caseSensitive) {
+                        stateTransitions.put(Character.toUpperCase(c), nextState);
+                    }
+                }
+                state = nextState;
+                length++;
+            }
+            finalStates.set(state, true);
+            if (minLength == -1 || length < minLength) {
+                minLength = length;
+            }
+        }
+
+        int numStates = transitions.size();
+        transitionChars = new int[numStates][];
+        transitionStates = new int[numStates][];
+        isFinal = new boolean[numStates];
+        for (int state = 0; state < numStates; state++) {
+            TreeMap<Integer, Integer> stateTransitions = transitions.get(state);
+            transitionChars[state] = new int[stateTransitions.size()];
+            transitionStates[state] = new int[stateTransitions.size()];
+            int idx = 0;
+            for (Map.Entry<Integer, Integer> e: stateTransitions.entrySet()) {
+                transitionChars[state][idx] = e.getKey();
+                transitionStates[state][idx] = e.getValue();
+                idx++;
+            }
+            isFinal[state] = finalStates.get(state);
+        }
+    }
+
+    /** Get next prefix tree state.
+     *
+     * @param state Current state, zero for initial state.
+     * @param c Next character.
+     * @return Next state, -1 if the character does not continue any literal.
+     */
+    int
+    NextState(int state, int c)
+    {
+        int idx = Arrays.binarySearch(transitionChars[state], c);
+        return idx < 0 ? -1 : transitionStates[state][idx];
+    }
+
+    /** Check if some literal ends in the specified state. */
+    boolean
+    IsFinalState(int state)
+    {
+        return isFinal[state];
+    }
+
+    /** Check if some literal can be continued from the specified state. */
+    boolean
+    HasTransitions(int state)
+    {
+        return transitionChars[state].length != 0;
+    }
+
+    private final String[] literals;
+    private final boolean caseSensitive;
+    private int minLength;
+    /** Sorted transition characters for each state. */
+    private final int[][] transitionChars;
+    /** Target states corresponding to transition characters. */
+    private final int[][] transitionStates;
+    private final boolean[] isFinal;
+
+    @Override void
+    AppendSignature(StringBuilder sb)
+    {
+        super.AppendSignature(sb);
+        sb.append(caseSensitive ? "" : " i");
+        for (String literal: literals) {
+            sb.append(' ');
+            sb.append(literal.length());
+            sb.append(':');
+            sb.append(literal);
+        }
+    }
+
+    @Override protected String
+    toString(String indent, HashSet<Node> visitedNodes)
+    {
+        visitedNodes.add(this);
+        StringBuilder sb = new StringBuilder();
+        for (String literal: literals) {
+            if (sb.length() != 0) {
+                sb.append('|');
+            }
+            sb.append('"');
+            sb.append(literal);
+            sb.append('"');
+        }
+        return String.format("%s`%s`: (%s)%s%s", indent, name == null ? "" : name, sb.toString(),
+                             caseSensitive ? "" : "i", GetQuantityString());
+    }
+}
+
+/** Parser branch tip in a token automaton. Never appears in the grammar tree, matching state is
+ * stored in the corresponding parser node.
+ */
+class TokenStepNode extends Node {
+
+    final Node tokenNode;
+
+    TokenStepNode(Node tokenNode)
+    {
+        this.tokenNode = tokenNode;
+    }
+
+    @Override protected String
+    toString(String indent, HashSet<Node> visitedNodes)
+    {
+        return tokenNode.toString(indent, visitedNodes);
+    }
+}
+
 public class GroupNode extends Node {
 
     @Override public Iterator<Node>
@@ -506,6 +873,8 @@ public class GroupNode extends Node {
             type = "Sequence";
         } else if (this instanceof VariantsNode) {
             type = "Variants";
+        } else if (this instanceof PredicateNode) {
+            type = ((PredicateNode)this).negative ? "NotFollowedBy" : "FollowedBy";
         } else {
             throw new InternalError("Unhandled node type: " + getClass().getName());
         }
@@ -534,6 +903,55 @@ public class VariantsNode extends GroupNode {
     }
 }
 
+/** Zero-length lookahead assertion. Matches empty string if the content node matches (or does not
+ * match for negative predicate) the following input, the input is not consumed. Should not be
+ * quantified, valuable, nested in another predicate or contained in a token.
+ */
+public class PredicateNode extends GroupNode {
+
+    private
+    PredicateNode(Node node, boolean negative)
+    {
+        super(node);
+        this.negative = negative;
+    }
+
+    /** Get node which is matched ahead. */
+    public Node
+    GetContent()
+    {
+        return nodes[0];
+    }
+
+    /** True for "not followed by" predicate. */
+    public boolean
+    IsNegative()
+    {
+        return negative;
+    }
+
+    @Override protected Node
+    Compile(HashSet<Node> visitedNodes)
+    {
+        if (numMin != 1 || numMax != 1) {
+            throw new IllegalStateException("Predicate cannot be quantified\n" + this);
+        }
+        if (isVal) {
+            throw new IllegalStateException("Predicate cannot be valuable\n" + this);
+        }
+        return super.Compile(visitedNodes);
+    }
+
+    @Override void
+    AppendSignature(StringBuilder sb)
+    {
+        super.AppendSignature(sb);
+        sb.append(negative ? " not" : "");
+    }
+
+    final boolean negative;
+}
+
 public NodeBuilder
 Node(String name)
 {
@@ -597,6 +1015,24 @@ String(String string, boolean caseSensitive)
     return Sequence(nodes.toArray(new Node[nodes.size()]));
 }
 
+/** Any of the specified case sensitive literals. Matches the same strings as variants of
+ * String() nodes but using single parser branch.
+ */
+public LiteralsNode
+Literals(String... literals)
+{
+    return Literals(true, literals);
+}
+
+/** Any of the specified literals.
+ * @param caseSensitive Case sensitive match if true, case insensitive match otherwise.
+ */
+public LiteralsNode
+Literals(boolean caseSensitive, String... literals)
+{
+    return new LiteralsNode(literals, caseSensitive);
+}
+
 public SequenceNode
 Sequence(Node... nodes)
 {
@@ -609,10 +1045,72 @@ Any(Node... nodes)
     return new VariantsNode(nodes);
 }
 
-/** Compile grammar into nodes tree. This resolves all node references. */
+/** Matches empty string if the specified node matches the following input. */
+public PredicateNode
+FollowedBy(Node node)
+{
+    return new PredicateNode(node, false);
+}
+
+/** Matches empty string if the specified node does not match the following input, e.g. keyword
+ * which is not followed by identifier character.
+ */
+public PredicateNode
+NotFollowedBy(Node node)
+{
+    return new PredicateNode(node, true);
+}
+
+/** Declare that the grammar can be matched over UTF-8 bytes although it has non-ASCII characters
+ * classes. Each non-ASCII character is then matched as a sequence of its UTF-8 bytes, each of them
+ * matched against the class as a whole non-ASCII character. This gives the same result only when
+ * the non-ASCII characters are matched by repeated nodes (e.g. in comments or string literals),
+ * which is the grammar author responsibility. Characters classes should either include all
+ * non-ASCII characters or none of them. Should be called before Compile().
+ */
 public void
+SetUtf8Transparent()
+{
+    if (compiled != null) {
+        throw new IllegalStateException("Grammar is already compiled");
+    }
+    utf8Transparent = true;
+}
+
+/** Check if the grammar can be used for byte mode parsing (see Parser(Grammar.Node, ByteBuffer)).
+ * Grammars with ASCII-only characters classes and literals are supported, as well as ones
+ * declared UTF-8 transparent (see SetUtf8Transparent()).
+ *
+ * @return Null if the byte mode is supported, reason description otherwise.
+ * @throws IllegalStateException If the grammar is not compiled.
+ */
+public String
+GetByteModeError()
+{
+    if (compiled == null) {
+        throw new IllegalStateException("Grammar is not compiled");
+    }
+    return byteModeError;
+}
+
+public boolean
+IsUtf8Transparent()
+{
+    return utf8Transparent;
+}
+
+/** Compile grammar into nodes tree. This resolves all node references and compiles token
+ * automata. The grammar nodes are frozen after that.
+ *
+ * @return Immutable snapshot of the compiled grammar.
+ * @throws IllegalStateException If the grammar is already compiled.
+ */
+public CompiledGrammar
 Compile()
 {
+    if (compiled != null) {
+        throw new IllegalStateException("Grammar is already compiled");
+    }
     HashSet<Node> visitedNodes = new HashSet<>();
     for (Map.Entry<String, Node> kv: nodesIndex.entrySet()) {
         Node node = kv.getValue();
@@ -621,6 +1119,55 @@ Compile()
             kv.setValue(compiledNode);
         }
     }
+    for (Node node: visitedNodes) {
+        if (node.isToken && node.token == null && !(node instanceof NodeRef)) {
+            node.token = new TokenAutomaton(node);
+            node.tokenStep = new TokenStepNode(node);
+        }
+    }
+    compiled = new CompiledGrammar(nodesIndex);
+    for (int id = 0; id < compiled.GetNodesCount(); id++) {
+        Node node = compiled.GetNode(id);
+        if (node instanceof PredicateNode) {
+            CheckPredicateContent(node, ((PredicateNode)node).GetContent(), new HashSet<>());
+        }
+        if (node.isSymbol && !node.wantValString) {
+            throw new IllegalStateException("Symbol node should have string value\n" + node);
+        }
+    }
+    byteModeError = PrepareByteMode();
+    return compiled;
+}
+
+/** Get compiled grammar snapshot, null if not compiled. */
+public CompiledGrammar
+GetCompiled()
+{
+    return compiled;
+}
+
+/** Generate JVM bytecode specialized for characters matching of this grammar (character nodes
+ * and token automata). Optional, the grammar is interpreted otherwise. Should be called after
+ * Compile().
+ */
+public void
+GenerateMatchers()
+{
+    if (compiled == null) {
+        throw new IllegalStateException("Grammar is not compiled");
+    }
+    ArrayList<CharNode> charNodes = new ArrayList<>();
+    ArrayList<TokenAutomaton> tokens = new ArrayList<>();
+    for (int id = 0; id < compiled.GetNodesCount(); id++) {
+        Node node = compiled.GetNode(id);
+        if (node instanceof CharNode) {
+            charNodes.add((CharNode)node);
+        }
+        if (node.token != null) {
+            tokens.add(node.token);
+        }
+    }
+    MatcherGenerator.Generate(charNodes, tokens);
 }
 
 /** Get node bye name. */
@@ -631,5 +1178,62 @@ FindNode(String name)
 }
 
 private final TreeMap<String, Node> nodesIndex = new TreeMap<>();
+/** Null if not compiled. */
+private CompiledGrammar compiled;
+private boolean utf8Transparent;
+/** Reason the byte mode is not supported, null if supported. */
+private String byteModeError;
+
+/** Check that the predicate content does not contain nested predicates. */
+private static void
+CheckPredicateContent(Node predicate, Node node, HashSet<Node> visitedNodes)
+{
+    if (!visitedNodes.add(node)) {
+        return;
+    }
+    if (node instanceof PredicateNode) {
+        throw new IllegalStateException("Nested predicates are not supported\n" + predicate);
+    }
+    for (Node child: node) {
+        CheckPredicateContent(predicate, child, visitedNodes);
+    }
+}
+
+/** Check if byte mode is supported and build byte tables for characters nodes.
+ *
+ * @return Null if supported, error description otherwise.
+ */
+private String
+PrepareByteMode()
+{
+    CharSet nonAscii = CharSet.Range(0x80, CharSet.MAX_CHAR);
+    ArrayList<CharNode> charNodes = new ArrayList<>();
+    for (int id = 0; id < compiled.GetNodesCount(); id++) {
+        Node node = compiled.GetNode(id);
+        if (node instanceof CharNode) {
+            CharSet matched = ((CharNode)node).GetCharSet().Intersect(nonAscii);
+            if (!matched.IsEmpty() && !(utf8Transparent && matched.equals(nonAscii))) {
+                return String.format(utf8Transparent ?
+                    "Characters class matches part of non-ASCII characters: %s" :
+                    "Characters class matches non-ASCII characters: %s", node);
+            }
+            charNodes.add((CharNode)node);
+        } else if (node instanceof LiteralsNode) {
+            for (String literal: ((LiteralsNode)node).literals) {
+                if (literal.chars().anyMatch(c -> c >= 0x80)) {
+                    return "Non-ASCII literal: " + literal;
+                }
+            }
+        }
+    }
+    for (CharNode node: charNodes) {
+        node.byteTable = new boolean[256];
+        for (int b = 0; b < 256; b++) {
+            /* Any non-ASCII character represents all of them. */
+            node.byteTable[b] = node.MatchChar(Math.min(b, 0x80));
+        }
+    }
+    return null;
+}
 
 }
@@ -0,0 +1,502 @@
+package org.roxy.parser;
+
+import java.util.*;
+
+/** Static analysis of a compiled grammar. Computes nullable, FIRST and FOLLOW sets for all nodes
+ * reachable from the root node and reports constructs which make the parser fork many branches.
+ * Issues are reported as warnings into the provided summary, so it can be verified in tests.
+ */
+public class GrammarAnalyzer {
+
+public interface WarnCode {
+    int OVERLAPPING_VARIANTS = 0,
+        AMBIGUOUS_EMPTY_VARIANTS = 1,
+        REPETITION_CONFLICT = 2,
+        NESTED_REPETITION = 3,
+        LEFT_RECURSION = 4,
+        HIGH_FAN_OUT = 5;
+}
+
+/** Default maximal number of branches created when entering a node. */
+public static final int DEFAULT_FAN_OUT_THRESHOLD = 32;
+
+public
+GrammarAnalyzer(Grammar.Node root)
+{
+    this.root = root;
+}
+
+/** Set maximal number of branches created when entering a named node before it is reported. */
+public GrammarAnalyzer
+SetFanOutThreshold(int fanOutThreshold)
+{
+    this.fanOutThreshold = fanOutThreshold;
+    return this;
+}
+
+/** Analyze the grammar.
+ *
+ * @param summary Summary to put warnings into. Nodes with the biggest fan-out are listed as
+ *                informational records.
+ */
+public Summary
+Analyze(Summary summary)
+{
+    this.summary = summary;
+    CollectNodes(root, null);
+    ComputeNullable();
+    ComputeFirst();
+    ComputeFollow();
+    ComputeFanOut();
+    CheckVariants();
+    CheckRepetitions();
+    CheckLeftRecursion();
+    CheckFanOut();
+    return summary;
+}
+
+public Summary
+Analyze()
+{
+    return Analyze(new Summary());
+}
+
+/** Check if the node (with its quantity applied) can match empty string. */
+public boolean
+IsNullable(Grammar.Node node)
+{
+    return nullable[GetIndex(node)];
+}
+
+/** Get set of characters the node non-empty match can start with. */
+public CharSet
+GetFirst(Grammar.Node node)
+{
+    return first[GetIndex(node)];
+}
+
+/** Get set of characters which can follow the node match. Includes the node FIRST set if the
+ * node can be repeated.
+ */
+public CharSet
+GetFollow(Grammar.Node node)
+{
+    return follow[GetIndex(node)];
+}
+
+/** Check if end of file can follow the node match. */
+public boolean
+CanFollowEof(Grammar.Node node)
+{
+    return followEof[GetIndex(node)];
+}
+
+/** Get estimated number of parser branches created when entering the node. */
+public int
+GetFanOut(Grammar.Node node)
+{
+    return fanOut[GetIndex(node)];
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+/** Number of nodes with the biggest fan-out listed in the summary. */
+private static final int FAN_OUT_LIST_SIZE = 10;
+/** Fan-out value is saturated at this value to prevent from overflow. */
+private static final int MAX_FAN_OUT = 1 << 20;
+
+private final Grammar.Node root;
+private int fanOutThreshold = DEFAULT_FAN_OUT_THRESHOLD;
+private Summary summary;
+
+/** All reachable nodes in depth-first order. */
+private final ArrayList<Grammar.Node> nodes = new ArrayList<>();
+private final HashMap<Grammar.Node, Integer> nodesIndex = new HashMap<>();
+/** Child nodes indices for each node. */
+private int[][] children;
+/** Nearest named parent found during traversal. */
+private final HashMap<Grammar.Node, Grammar.Node> namedParents = new HashMap<>();
+
+private boolean[] nullable;
+private CharSet[] first;
+/** FOLLOW set without own repetition of the node. */
+private CharSet[] followOut;
+private CharSet[] follow;
+private boolean[] followEof;
+private int[] fanOut;
+
+private int
+GetIndex(Grammar.Node node)
+{
+    Integer idx = nodesIndex.get(node);
+    if (idx == null) {
+        throw new IllegalArgumentException("Node is not reachable from the analyzed root");
+    }
+    return idx;
+}
+
+private void
+CollectNodes(Grammar.Node node, Grammar.Node namedParent)
+{
+    if (nodesIndex.containsKey(node)) {
+        return;
+    }
+    if (!(node instanceof Grammar.SequenceNode) && !(node instanceof Grammar.VariantsNode) &&
+        !(node instanceof Grammar.CharNode) && !(node instanceof Grammar.LiteralsNode) &&
+        !(node instanceof Grammar.PredicateNode)) {
+
+        throw new IllegalStateException("Unhandled node type " + node.getClass().getSimpleName() +
+                                        ", grammar should be compiled");
+    }
+    nodesIndex.put(node, nodes.size());
+    nodes.add(node);
+    if (namedParent != null) {
+        namedParents.put(node, namedParent);
+    }
+    if (node.name != null) {
+        namedParent = node;
+    }
+    for (Grammar.Node child: node) {
+        CollectNodes(child, namedParent);
+    }
+    if (node == root) {
+        children = new int[nodes.size()][];
+        for (int i = 0; i < nodes.size(); i++) {
+            ArrayList<Integer> idx = new ArrayList<>();
+            for (Grammar.Node child: nodes.get(i)) {
+                idx.add(nodesIndex.get(child));
+            }
+            children[i] = idx.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+}
+
+private void
+ComputeNullable()
+{
+    nullable = new boolean[nodes.size()];
+    boolean changed = true;
+    while (changed) {
+        changed = false;
+        for (int i = 0; i < nodes.size(); i++) {
+            if (!nullable[i] && (nodes.get(i).GetMinQuantity() == 0 || IsBodyNullable(i))) {
+                nullable[i] = true;
+                changed = true;
+            }
+        }
+    }
+}
+
+private boolean
+IsBodyNullable(int idx)
+{
+    Grammar.Node node = nodes.get(idx);
+    if (node instanceof Grammar.PredicateNode) {
+        return true;
+    }
+    if (node instanceof Grammar.SequenceNode) {
+        for (int child: children[idx]) {
+            if (!nullable[child]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    if (node instanceof Grammar.VariantsNode) {
+        for (int child: children[idx]) {
+            if (nullable[child]) {
+                return true;
+            }
+        }
+    }
+    return false;
+}
+
+private void
+ComputeFirst()
+{
+    first = new CharSet[nodes.size()];
+    Arrays.fill(first, CharSet.EMPTY);
+    boolean changed = true;
+    while (changed) {
+        changed = false;
+        for (int i = 0; i < nodes.size(); i++) {
+            Grammar.Node node = nodes.get(i);
+            CharSet set;
+            if (node instanceof Grammar.CharNode) {
+                set = ((Grammar.CharNode)node).GetCharSet();
+            } else if (node instanceof Grammar.LiteralsNode) {
+                set = ((Grammar.LiteralsNode)node).GetFirstChars();
+            } else if (node instanceof Grammar.PredicateNode) {
+                /* The content is only looked ahead, though it is entered for recursion and fan-out
+                 * analysis.
+                 */
+                set = CharSet.EMPTY;
+            } else {
+                set = CharSet.EMPTY;
+                for (int child: GetLeftChildren(i)) {
+                    set = set.Union(first[child]);
+                }
+            }
+            if (!set.equals(first[i])) {
+                first[i] = set;
+                changed = true;
+            }
+        }
+    }
+}
+
+/** Get children which can be matched first when entering the node. */
+private int[]
+GetLeftChildren(int idx)
+{
+    if (!(nodes.get(idx) instanceof Grammar.SequenceNode)) {
+        return children[idx];
+    }
+    int num = 0;
+    while (num < children[idx].length) {
+        if (!nullable[children[idx][num++]]) {
+            break;
+        }
+    }
+    return Arrays.copyOf(children[idx], num);
+}
+
+private void
+ComputeFollow()
+{
+    int numNodes = nodes.size();
+    followOut = new CharSet[numNodes];
+    follow = new CharSet[numNodes];
+    followEof = new boolean[numNodes];
+    Arrays.fill(followOut, CharSet.EMPTY);
+    followEof[GetIndex(root)] = true;
+    boolean changed = true;
+    while (changed) {
+        changed = false;
+        for (int i = 0; i < numNodes; i++) {
+            follow[i] = followOut[i];
+            if (nodes.get(i).GetMaxQuantity() != 1) {
+                follow[i] = follow[i].Union(first[i]);
+            }
+        }
+        for (int i = 0; i < numNodes; i++) {
+            int[] _children = children[i];
+            boolean isSequence = nodes.get(i) instanceof Grammar.SequenceNode;
+            for (int j = 0; j < _children.length; j++) {
+                CharSet set = CharSet.EMPTY;
+                boolean restNullable = true;
+                if (isSequence) {
+                    for (int k = j + 1; k < _children.length && restNullable; k++) {
+                        set = set.Union(first[_children[k]]);
+                        restNullable = nullable[_children[k]];
+                    }
+                }
+                boolean eof = false;
+                if (restNullable) {
+                    set = set.Union(follow[i]);
+                    eof = followEof[i];
+                }
+                int child = _children[j];
+                CharSet newSet = followOut[child].Union(set);
+                if (!newSet.equals(followOut[child]) || (eof && !followEof[child])) {
+                    followOut[child] = newSet;
+                    followEof[child] |= eof;
+                    changed = true;
+                }
+            }
+        }
+    }
+}
+
+private void
+ComputeFanOut()
+{
+    fanOut = new int[nodes.size()];
+    Arrays.fill(fanOut, -1);
+    boolean[] inProgress = new boolean[nodes.size()];
+    for (int i = 0; i < nodes.size(); i++) {
+        ComputeFanOut(i, inProgress);
+    }
+}
+
+private int
+ComputeFanOut(int idx, boolean[] inProgress)
+{
+    if (fanOut[idx] != -1) {
+        return fanOut[idx];
+    }
+    if (inProgress[idx]) {
+        /* Left recursion, reported separately. */
+        return 0;
+    }
+    Grammar.Node node = nodes.get(idx);
+    int result = 0;
+    if (node instanceof Grammar.CharNode || node instanceof Grammar.LiteralsNode) {
+        result = 1;
+    } else {
+        inProgress[idx] = true;
+        for (int child: GetLeftChildren(idx)) {
+            result = Math.min(result + ComputeFanOut(child, inProgress), MAX_FAN_OUT);
+        }
+        inProgress[idx] = false;
+    }
+    fanOut[idx] = result;
+    return result;
+}
+
+private void
+CheckVariants()
+{
+    for (int i = 0; i < nodes.size(); i++) {
+        if (!(nodes.get(i) instanceof Grammar.VariantsNode)) {
+            continue;
+        }
+        int[] _children = children[i];
+        int numNullable = 0;
+        for (int j = 0; j < _children.length; j++) {
+            if (nullable[_children[j]]) {
+                numNullable++;
+            }
+            for (int k = j + 1; k < _children.length; k++) {
+                CharSet common = first[_children[j]].Intersect(first[_children[k]]);
+                if (!common.IsEmpty()) {
+                    summary.Warning(WarnCode.OVERLAPPING_VARIANTS,
+                                    "Alternatives %d and %d of %s may start with the same " +
+                                    "characters %s", j + 1, k + 1, Describe(nodes.get(i)), common);
+                }
+            }
+        }
+        if (numNullable > 1) {
+            summary.Warning(WarnCode.AMBIGUOUS_EMPTY_VARIANTS,
+                            "%d alternatives of %s may match empty string", numNullable,
+                            Describe(nodes.get(i)));
+        }
+    }
+}
+
+private void
+CheckRepetitions()
+{
+    for (int i = 0; i < nodes.size(); i++) {
+        Grammar.Node node = nodes.get(i);
+        int numMax = node.GetMaxQuantity();
+        if (numMax != -1 && numMax <= node.GetMinQuantity()) {
+            continue;
+        }
+        CharSet common = first[i].Intersect(followOut[i]);
+        if (!common.IsEmpty()) {
+            summary.Warning(WarnCode.REPETITION_CONFLICT,
+                            "Repetition of %s conflicts with the following characters %s",
+                            Describe(node), common);
+        }
+        if (numMax == -1) {
+            CheckNestedRepetition(i);
+        }
+    }
+}
+
+/** Find unlimited repetitions inside of the specified unlimited repetition which can either
+ * continue or give way to the outer node next iteration. Each such character doubles the number
+ * of branches.
+ */
+private void
+CheckNestedRepetition(int outerIdx)
+{
+    boolean[] visited = new boolean[nodes.size()];
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    visited[outerIdx] = true;
+    for (int child: children[outerIdx]) {
+        queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+        int idx = queue.poll();
+        if (visited[idx]) {
+            continue;
+        }
+        visited[idx] = true;
+        if (nodes.get(idx).GetMaxQuantity() == -1) {
+            CharSet common = first[idx].Intersect(followOut[idx]).Intersect(first[outerIdx]);
+            if (!common.IsEmpty()) {
+                summary.Warning(WarnCode.NESTED_REPETITION,
+                                "Nested repetition of %s in %s may grow branches number " +
+                                "exponentially on characters %s", Describe(nodes.get(idx)),
+                                Describe(nodes.get(outerIdx)), common);
+            }
+        }
+        for (int child: children[idx]) {
+            queue.add(child);
+        }
+    }
+}
+
+private void
+CheckLeftRecursion()
+{
+    for (int i = 0; i < nodes.size(); i++) {
+        if (nodes.get(i).name == null) {
+            continue;
+        }
+        boolean[] visited = new boolean[nodes.size()];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child: GetLeftChildren(i)) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int idx = queue.poll();
+            if (idx == i) {
+                summary.Warning(WarnCode.LEFT_RECURSION, "Left recursion in %s",
+                                Describe(nodes.get(i)));
+                break;
+            }
+            if (visited[idx]) {
+                continue;
+            }
+            visited[idx] = true;
+            for (int child: GetLeftChildren(idx)) {
+                queue.add(child);
+            }
+        }
+    }
+}
+
+private void
+CheckFanOut()
+{
+    Integer[] order = new Integer[nodes.size()];
+    for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+    }
+    Arrays.sort(order, (idx1, idx2) -> Integer.compare(fanOut[idx2], fanOut[idx1]));
+    int numListed = 0;
+    for (int idx: order) {
+        Grammar.Node node = nodes.get(idx);
+        if (node.name == null) {
+            continue;
+        }
+        if (fanOut[idx] > fanOutThreshold) {
+            summary.Warning(WarnCode.HIGH_FAN_OUT, "Entering %s creates %d branches",
+                            Describe(node), fanOut[idx]);
+        }
+        if (numListed < FAN_OUT_LIST_SIZE) {
+            summary.Info("Fan-out %d: %s", fanOut[idx], Describe(node));
+            numListed++;
+        }
+    }
+}
+
+private String
+Describe(Grammar.Node node)
+{
+    if (node.name != null) {
+        return "`" + node.name + "`";
+    }
+    String type = node.getClass().getSimpleName();
+    Grammar.Node namedParent = namedParents.get(node);
+    if (namedParent == null) {
+        return String.format("<unnamed %s>", type);
+    }
+    return String.format("<unnamed %s> in `%s`", type, namedParent.name);
+}
+
+}
@@ -0,0 +1,126 @@
+package org.roxy.parser;
+
+import java.util.ArrayDeque;
+
+/** Retains recent input characters in a chain of fixed size chunks. Chunks which are entirely
+ * before the retention start are released (and reused for new input), so memory is proportional
+ * to the retained region length rather than to the whole input size.
+ *
+ * Offsets are counted from the input start as long values so that multi-gigabyte streams are
+ * supported.
+ */
+class InputWindow {
+
+/** Maximal number of released chunks kept for reuse. */
+static final int MAX_FREE_CHUNKS = 4;
+
+/**
+ * @param chunkSize Size of each chunk in characters.
+ */
+InputWindow(int chunkSize)
+{
+    this.chunkSize = chunkSize;
+}
+
+/** Append input characters. */
+void
+Append(char[] buf, int offset, int length)
+{
+    while (length > 0) {
+        int chunkPos = (int)(endOffset % chunkSize);
+        if (chunkPos == 0) {
+            chunks.addLast(freeChunks.isEmpty() ? new char[chunkSize] : freeChunks.pop());
+        }
+        int n = Math.min(length, chunkSize - chunkPos);
+        System.arraycopy(buf, offset, chunks.peekLast(), chunkPos, n);
+        offset += n;
+        length -= n;
+        endOffset += n;
+    }
+    peakRetainedSize = Math.max(peakRetainedSize, GetRetainedSize());
+}
+
+/** Release chunks which are entirely before the specified offset. */
+void
+Release(long offset)
+{
+    while (!chunks.isEmpty() && startOffset + chunkSize <= Math.min(offset, endOffset)) {
+        char[] chunk = chunks.removeFirst();
+        if (freeChunks.size() < MAX_FREE_CHUNKS) {
+            freeChunks.push(chunk);
+        }
+        startOffset += chunkSize;
+    }
+}
+
+/** Get offset of the first retained character. */
+long
+GetStartOffset()
+{
+    return startOffset;
+}
+
+/** Get offset past the last appended character. */
+long
+GetEndOffset()
+{
+    return endOffset;
+}
+
+/** Get number of retained characters. */
+long
+GetRetainedSize()
+{
+    return endOffset - startOffset;
+}
+
+/** Get maximal number of retained characters so far. */
+long
+GetPeakRetainedSize()
+{
+    return peakRetainedSize;
+}
+
+/** Get retained input text.
+ *
+ * @param start Offset of the first character.
+ * @param end Offset past the last character.
+ * @throws IndexOutOfBoundsException If the range is not retained.
+ */
+String
+GetText(long start, long end)
+{
+    if (start < startOffset || end > endOffset || start > end) {
+        throw new IndexOutOfBoundsException(
+            String.format("Range [%d; %d) is out of retained input [%d; %d)",
+                          start, end, startOffset, endOffset));
+    }
+    StringBuilder sb = new StringBuilder((int)(end - start));
+    int chunkIdx = (int)((start - startOffset) / chunkSize);
+    int chunkPos = (int)((start - startOffset) % chunkSize);
+    long offset = start;
+    for (char[] chunk: chunks) {
+        if (chunkIdx > 0) {
+            chunkIdx--;
+            continue;
+        }
+        if (offset == end) {
+            break;
+        }
+        int n = (int)Math.min(end - offset, chunkSize - chunkPos);
+        sb.append(chunk, chunkPos, n);
+        offset += n;
+        chunkPos = 0;
+    }
+    return sb.toString();
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private final int chunkSize;
+/** Retained chunks, the first one starts at startOffset. */
+private final ArrayDeque<char[]> chunks = new ArrayDeque<>();
+private final ArrayDeque<char[]> freeChunks = new ArrayDeque<>();
+private long startOffset, endOffset, peakRetainedSize;
+
+}
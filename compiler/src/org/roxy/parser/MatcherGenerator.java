@@ -0,0 +1,487 @@
+package org.roxy.parser;
+
+import java.util.*;
+
+/** Generates JVM bytecode specialized for the grammar characters matching. Each character node
+ * character set and each token automaton state transitions are compiled into a straight-line
+ * comparisons tree with the bounds inlined as constants, so JIT sees plain code instead of
+ * iterating over ranges lists and interval tables.
+ *
+ * The class file is produced directly (class format version 49, so no stack map frames are
+ * needed) and loaded by a dedicated class loader which can be collected together with the grammar.
+ * Nodes and automata which are too large for a method are left interpreted.
+ */
+class MatcherGenerator {
+
+/** Base class of the generated matchers. Public to be accessible from the generated class which
+ * belongs to a different class loader.
+ */
+public abstract static class Matchers {
+
+    /** Match character against the character node with the specified index. */
+    public abstract boolean
+    MatchChar(int nodeIdx, int c);
+
+    /** Get token automaton next state, see TokenAutomaton.NextState(). */
+    public abstract int
+    NextState(int tokenIdx, int state, int c);
+}
+
+/** Maximal code size of a single generated matching method. */
+static final int MAX_METHOD_SIZE = 32000;
+/** Maximal number of nodes or automata dispatched by one method. */
+static final int MAX_DISPATCH_CASES = 4096;
+
+/** Generate and load matchers, assign matcher to each provided node and automaton for which the
+ * code is generated.
+ */
+static void
+Generate(List<Grammar.CharNode> charNodes, List<TokenAutomaton> tokens)
+{
+    MatcherGenerator gen = new MatcherGenerator();
+    ArrayList<Grammar.CharNode> genNodes = new ArrayList<>();
+    ArrayList<TokenAutomaton> genTokens = new ArrayList<>();
+    for (Grammar.CharNode node: charNodes) {
+        if (genNodes.size() < MAX_DISPATCH_CASES &&
+            gen.AddMethod("m" + genNodes.size(), "(I)Z", 2, 1,
+                          code -> gen.GenCharSet(code, node.GetCharSet()))) {
+            genNodes.add(node);
+        }
+    }
+    for (TokenAutomaton token: tokens) {
+        if (genTokens.size() < MAX_DISPATCH_CASES &&
+            gen.AddMethod("t" + genTokens.size(), "(II)I", 2, 2,
+                          code -> gen.GenAutomaton(code, token))) {
+            genTokens.add(token);
+        }
+    }
+    if (genNodes.isEmpty() && genTokens.isEmpty()) {
+        return;
+    }
+    gen.AddDispatchMethod("MatchChar", "(II)Z", "m", "(I)Z", genNodes.size(), false);
+    gen.AddDispatchMethod("NextState", "(III)I", "t", "(II)I", genTokens.size(), true);
+    gen.AddConstructor();
+
+    Matchers matchers;
+    try {
+        matchers = (Matchers)new Loader().Define(gen.className.replace('/', '.'), gen.Build())
+            .getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Failed to load generated matchers", e);
+    }
+    for (int i = 0; i < genNodes.size(); i++) {
+        genNodes.get(i).SetMatchers(matchers, i);
+    }
+    for (int i = 0; i < genTokens.size(); i++) {
+        genTokens.get(i).SetMatchers(matchers, i);
+    }
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int
+    ACC_PUBLIC = 0x0001,
+    ACC_PRIVATE = 0x0002,
+    ACC_STATIC = 0x0008,
+    ACC_FINAL = 0x0010,
+    ACC_SUPER = 0x0020;
+
+private static final int
+    CONST_UTF8 = 1,
+    CONST_INTEGER = 3,
+    CONST_CLASS = 7,
+    CONST_METHODREF = 10,
+    CONST_NAME_AND_TYPE = 12;
+
+private static final int
+    OP_ICONST_0 = 0x03,
+    OP_BIPUSH = 0x10,
+    OP_SIPUSH = 0x11,
+    OP_LDC_W = 0x13,
+    OP_ILOAD = 0x15,
+    OP_ALOAD_0 = 0x2a,
+    OP_IF_ICMPLT = 0xa1,
+    OP_IF_ICMPGT = 0xa3,
+    OP_TABLESWITCH = 0xaa,
+    OP_IRETURN = 0xac,
+    OP_RETURN = 0xb1,
+    OP_INVOKESPECIAL = 0xb7,
+    OP_INVOKESTATIC = 0xb8;
+
+private static final String SUPER_CLASS_NAME = Matchers.class.getName().replace('.', '/');
+private static int classCounter;
+
+private static class Loader extends ClassLoader {
+
+    Loader()
+    {
+        super(MatcherGenerator.class.getClassLoader());
+    }
+
+    Class<?>
+    Define(String name, byte[] bytes)
+    {
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
+
+/** Growable bytes buffer with big-endian writes. */
+private static class Bytes {
+    byte[] data = new byte[256];
+    int length;
+
+    void
+    U1(int value)
+    {
+        if (length == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[length++] = (byte)value;
+    }
+
+    void
+    U2(int value)
+    {
+        U1(value >> 8);
+        U1(value);
+    }
+
+    void
+    U4(int value)
+    {
+        U2(value >> 16);
+        U2(value);
+    }
+
+    void
+    PutU2(int pos, int value)
+    {
+        data[pos] = (byte)(value >> 8);
+        data[pos + 1] = (byte)value;
+    }
+
+    void
+    PutU4(int pos, int value)
+    {
+        PutU2(pos, value >> 16);
+        PutU2(pos + 2, value);
+    }
+
+    void
+    Append(Bytes bytes)
+    {
+        for (int i = 0; i < bytes.length; i++) {
+            U1(bytes.data[i]);
+        }
+    }
+}
+
+@FunctionalInterface
+private interface CodeGenerator {
+    void
+    Generate(Bytes code);
+}
+
+private final String className;
+private final Bytes constants = new Bytes(), methods = new Bytes();
+private final HashMap<String, Integer> constantIds = new HashMap<>();
+private int numConstants = 1, numMethods;
+
+private
+MatcherGenerator()
+{
+    synchronized (MatcherGenerator.class) {
+        className = "org/roxy/parser/GeneratedMatchers" + classCounter++;
+    }
+}
+
+private int
+Constant(String key, int tag, int... refs)
+{
+    Integer id = constantIds.get(key);
+    if (id != null) {
+        return id;
+    }
+    constants.U1(tag);
+    if (tag == CONST_INTEGER) {
+        constants.U4(refs[0]);
+    } else {
+        for (int ref: refs) {
+            constants.U2(ref);
+        }
+    }
+    id = numConstants++;
+    constantIds.put(key, id);
+    return id;
+}
+
+private int
+Utf8(String str)
+{
+    Integer id = constantIds.get("U" + str);
+    if (id != null) {
+        return id;
+    }
+    /* Only ASCII names are used so modified UTF-8 is the same as the string bytes. */
+    constants.U1(CONST_UTF8);
+    constants.U2(str.length());
+    for (int i = 0; i < str.length(); i++) {
+        constants.U1(str.charAt(i));
+    }
+    id = numConstants++;
+    constantIds.put("U" + str, id);
+    return id;
+}
+
+private int
+ClassRef(String name)
+{
+    int nameId = Utf8(name);
+    return Constant("C" + name, CONST_CLASS, nameId);
+}
+
+private int
+MethodRef(String owner, String name, String descriptor)
+{
+    int classId = ClassRef(owner);
+    int nameId = Utf8(name), typeId = Utf8(descriptor);
+    int ntId = Constant("N" + name + descriptor, CONST_NAME_AND_TYPE, nameId, typeId);
+    return Constant("M" + owner + "." + name + descriptor, CONST_METHODREF, classId, ntId);
+}
+
+private void
+PushInt(Bytes code, int value)
+{
+    if (value >= -1 && value <= 5) {
+        code.U1(OP_ICONST_0 + value);
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        code.U1(OP_BIPUSH);
+        code.U1(value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        code.U1(OP_SIPUSH);
+        code.U2(value);
+    } else {
+        code.U1(OP_LDC_W);
+        code.U2(Constant("I" + value, CONST_INTEGER, value));
+    }
+}
+
+/** Emit forward conditional jump. Returns position to bind the jump target by Bind(). */
+private static int
+Jump(Bytes code, int op)
+{
+    int pos = code.length;
+    code.U1(op);
+    code.U2(0);
+    return pos;
+}
+
+private static void
+Bind(Bytes code, int jumpPos)
+{
+    code.PutU2(jumpPos + 1, code.length - jumpPos);
+}
+
+/** Emit tableswitch on the integer in the specified local variable. Returns position of the
+ * instruction, the cases are bound by BindCase().
+ */
+private static int
+TableSwitch(Bytes code, int local, int numCases)
+{
+    code.U1(OP_ILOAD);
+    code.U1(local);
+    int pos = code.length;
+    code.U1(OP_TABLESWITCH);
+    while (code.length % 4 != 0) {
+        code.U1(0);
+    }
+    code.U4(0);
+    code.U4(0);
+    code.U4(numCases - 1);
+    for (int i = 0; i < numCases; i++) {
+        code.U4(0);
+    }
+    return pos;
+}
+
+/**
+ * @param caseIdx Case index, -1 for default.
+ */
+private static void
+BindCase(Bytes code, int switchPos, int caseIdx)
+{
+    int pos = (switchPos + 4) & ~3;
+    code.PutU4(caseIdx == -1 ? pos : pos + 12 + caseIdx * 4, code.length - switchPos);
+}
+
+/** Binary comparisons tree over the character set ranges, the character is in local 0. */
+private void
+GenCharSet(Bytes code, CharSet chars)
+{
+    GenRanges(code, chars, 0, chars.GetRangesCount() - 1);
+}
+
+private void
+GenRanges(Bytes code, CharSet chars, int first, int last)
+{
+    if (first > last) {
+        code.U1(OP_ICONST_0);
+        code.U1(OP_IRETURN);
+        return;
+    }
+    int mid = (first + last) / 2;
+    code.U1(OP_ILOAD);
+    code.U1(0);
+    PushInt(code, chars.GetRangeMin(mid));
+    int jumpLess = Jump(code, OP_IF_ICMPLT);
+    code.U1(OP_ILOAD);
+    code.U1(0);
+    PushInt(code, chars.GetRangeMax(mid));
+    int jumpGreater = Jump(code, OP_IF_ICMPGT);
+    code.U1(OP_ICONST_0 + 1);
+    code.U1(OP_IRETURN);
+    Bind(code, jumpLess);
+    GenRanges(code, chars, first, mid - 1);
+    Bind(code, jumpGreater);
+    GenRanges(code, chars, mid + 1, last);
+}
+
+/** Switch over the state (local 0) with comparisons tree over the state intervals for the
+ * character (local 1) in each case.
+ */
+private void
+GenAutomaton(Bytes code, TokenAutomaton token)
+{
+    int numStates = token.GetStatesCount();
+    int switchPos = TableSwitch(code, 0, numStates);
+    BindCase(code, switchPos, -1);
+    PushInt(code, -1);
+    code.U1(OP_IRETURN);
+    for (int state = 0; state < numStates; state++) {
+        BindCase(code, switchPos, state);
+        int[] starts = token.GetIntervalStarts(state), targets = token.GetIntervalTargets(state);
+        GenIntervals(code, starts, targets, 0, starts.length - 1);
+    }
+}
+
+private void
+GenIntervals(Bytes code, int[] starts, int[] targets, int first, int last)
+{
+    if (first == last) {
+        PushInt(code, targets[first]);
+        code.U1(OP_IRETURN);
+        return;
+    }
+    int mid = (first + last + 1) / 2;
+    code.U1(OP_ILOAD);
+    code.U1(1);
+    PushInt(code, starts[mid]);
+    int jumpLess = Jump(code, OP_IF_ICMPLT);
+    GenIntervals(code, starts, targets, mid, last);
+    Bind(code, jumpLess);
+    GenIntervals(code, starts, targets, first, mid - 1);
+}
+
+/**
+ * @return False if the method is too large and was not added.
+ */
+private boolean
+AddMethod(String name, String descriptor, int maxStack, int maxLocals, CodeGenerator generator)
+{
+    Bytes code = new Bytes();
+    generator.Generate(code);
+    if (code.length > MAX_METHOD_SIZE) {
+        return false;
+    }
+    WriteMethod(ACC_PRIVATE | ACC_STATIC, name, descriptor, maxStack, maxLocals, code);
+    return true;
+}
+
+/** Instance method which switches on the first argument and calls the static method for the
+ * case passing it the rest arguments.
+ */
+private void
+AddDispatchMethod(String name, String descriptor, String targetPrefix, String targetDescriptor,
+                  int numCases, boolean intResult)
+{
+    int numArgs = intResult ? 2 : 1;
+    Bytes code = new Bytes();
+    if (numCases == 0) {
+        PushInt(code, intResult ? -1 : 0);
+        code.U1(OP_IRETURN);
+    } else {
+        int switchPos = TableSwitch(code, 1, numCases);
+        BindCase(code, switchPos, -1);
+        PushInt(code, intResult ? -1 : 0);
+        code.U1(OP_IRETURN);
+        for (int i = 0; i < numCases; i++) {
+            BindCase(code, switchPos, i);
+            for (int arg = 0; arg < numArgs; arg++) {
+                code.U1(OP_ILOAD);
+                code.U1(2 + arg);
+            }
+            code.U1(OP_INVOKESTATIC);
+            code.U2(MethodRef(className, targetPrefix + i, targetDescriptor));
+            code.U1(OP_IRETURN);
+        }
+    }
+    WriteMethod(ACC_PUBLIC | ACC_FINAL, name, descriptor, numArgs, 2 + numArgs, code);
+}
+
+private void
+AddConstructor()
+{
+    Bytes code = new Bytes();
+    code.U1(OP_ALOAD_0);
+    code.U1(OP_INVOKESPECIAL);
+    code.U2(MethodRef(SUPER_CLASS_NAME, "<init>", "()V"));
+    code.U1(OP_RETURN);
+    WriteMethod(ACC_PUBLIC, "<init>", "()V", 1, 1, code);
+}
+
+private void
+WriteMethod(int flags, String name, String descriptor, int maxStack, int maxLocals, Bytes code)
+{
+    methods.U2(flags);
+    methods.U2(Utf8(name));
+    methods.U2(Utf8(descriptor));
+    methods.U2(1);
+    methods.U2(Utf8("Code"));
+    methods.U4(12 + code.length);
+    methods.U2(maxStack);
+    methods.U2(maxLocals);
+    methods.U4(code.length);
+    methods.Append(code);
+    /* No exception table and attributes. */
+    methods.U2(0);
+    methods.U2(0);
+    numMethods++;
+}
+
+private byte[]
+Build()
+{
+    int thisId = ClassRef(className), superId = ClassRef(SUPER_CLASS_NAME);
+    if (numConstants > 0xffff) {
+        throw new IllegalStateException("Too many constants in generated matchers");
+    }
+    Bytes file = new Bytes();
+    file.U4(0xcafebabe);
+    file.U2(0);
+    file.U2(49);
+    file.U2(numConstants);
+    file.Append(constants);
+    file.U2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+    file.U2(thisId);
+    file.U2(superId);
+    /* No interfaces and fields. */
+    file.U2(0);
+    file.U2(0);
+    file.U2(numMethods);
+    file.Append(methods);
+    /* No attributes. */
+    file.U2(0);
+    return Arrays.copyOf(file.data, file.length);
+}
+
+}
@@ -0,0 +1,537 @@
+package org.roxy.parser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** Parses the text into AST interpreting the grammar as parsing expression grammar (PEG).
+ *
+ * Variants node is ordered choice: the first matching variant is taken and other ones are never
+ * tried at the same position. Quantified nodes are matched greedily, literals and tokens take the
+ * longest match. Results of named nodes are memoized by input offset, so the parsing time is linear
+ * in the input size. The memo table takes an int per input character for each named node matched,
+ * the whole input is kept in memory.
+ *
+ * Parsing is done in two passes: the first one matches the input using the memo table, the second
+ * one builds AST along the found match, so AST nodes are never created for discarded alternatives.
+ * The AST has the same shape as produced by Parser for unambiguous input, nodes are committed
+ * (and tags produced) in the same order. Node end position is always the position of the node last
+ * character, while Parser may set it to a later position since it commits nodes with a delay. On
+ * syntax error the farthest failure position is reported
+ * and no AST is produced. Left recursion is not supported and causes IllegalStateException.
+ *
+ * A parser instance parses its input once, the memo table is released when parsing is completed.
+ */
+public class PackratParser implements ParserEngine {
+
+public
+PackratParser(Grammar.Node grammar, Reader reader)
+{
+    if (!grammar.isVal) {
+        throw new IllegalArgumentException("Grammar root node should have value");
+    }
+    CompiledGrammar compiled = grammar.GetGrammar().GetCompiled();
+    if (compiled == null || compiled.GetNodeId(grammar) == -1) {
+        throw new IllegalArgumentException("Grammar is not compiled");
+    }
+    this.grammar = grammar;
+    this.reader = reader;
+    memoIds = CreateMemoIds(compiled);
+    memo = new int[numMemoColumns][];
+}
+
+public
+PackratParser(Grammar.Node grammar, InputStream stream)
+{
+    this(grammar, new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)));
+}
+
+public
+PackratParser(Grammar.Node grammar, String str)
+{
+    this(grammar, new StringReader(str));
+}
+
+@Override public PackratParser
+Parse(Summary summary)
+    throws IOException
+{
+    /* Memo table is released by the previous parsing. */
+    if (memo == null) {
+        throw new IllegalStateException("Parser can be used only once");
+    }
+    this.summary = summary;
+    ReadInput();
+    try {
+        if (MatchQuantified(grammar, 0) == size) {
+            BuildQuantified(grammar, 0, null);
+        } else {
+            ReportFailure();
+        }
+    } catch (CancelledException e) {
+        summary.Error(GetPosition(e.offset), Parser.ErrorCode.CANCELLED, "Parsing cancelled");
+    } finally {
+        memo = null;
+    }
+    return this;
+}
+
+@Override public PackratParser
+Parse()
+    throws IOException
+{
+    return Parse(new Summary());
+}
+
+@Override public void
+Cancel()
+{
+    cancelled = true;
+}
+
+@Override public Summary
+GetSummary()
+{
+    return summary;
+}
+
+@Override public Ast
+GetResult()
+{
+    return ast;
+}
+
+/** Intern strings of symbol nodes in the specified table (see Parser.SetSymbolTable()). */
+public PackratParser
+SetSymbolTable(SymbolTable symbols)
+{
+    ast.symbols = symbols;
+    return this;
+}
+
+/** Index committed AST nodes (see Parser.SetAstIndex()). */
+public PackratParser
+SetAstIndex(boolean enable)
+{
+    ast.index = enable ? new AstIndex(grammar) : null;
+    return this;
+}
+
+/** Get number of memo table entries filled during the last parsing. */
+public long
+GetMemoEntriesCount()
+{
+    return numMemoEntries;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static class CancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int offset;
+
+    CancelledException(int offset)
+    {
+        super(null, null, false, false);
+        this.offset = offset;
+    }
+}
+
+/** Incomplete element candidate. */
+private static class Candidate {
+    final Grammar.Node node;
+    final int offset;
+
+    Candidate(Grammar.Node node, int offset)
+    {
+        this.node = node;
+        this.offset = offset;
+    }
+}
+
+/** Memo values, other values are match end offset plus one. */
+private static final int MEMO_UNKNOWN = 0,
+                         MEMO_FAILED = -1,
+                         MEMO_IN_PROGRESS = -2;
+/** Number of content matches between cancellation checks. */
+private static final int CANCEL_CHECK_INTERVAL = 4096;
+
+private final Grammar.Node grammar;
+private final Reader reader;
+private final Ast ast = new Ast();
+private Summary summary;
+private volatile boolean cancelled;
+
+private char[] input;
+private int size;
+/** Line and column for each input offset (including end of input). */
+private int[] lines, cols;
+
+/** Memo table column index for each grammar node id, -1 for not memoized nodes. */
+private final int[] memoIds;
+private int numMemoColumns;
+/** Memo table columns, allocated on first use. */
+private int[][] memo;
+private long numMemoEntries;
+private int numSteps;
+
+/** Memoized nodes being matched, with their start offsets. */
+private final ArrayList<Grammar.Node> frameNodes = new ArrayList<>();
+private int[] frameOffsets = new int[64];
+/** Farthest offset where matching failed. */
+private int failOffset = -1;
+/** Innermost named nodes being matched when failed at the end of input. */
+private final ArrayList<Candidate> failCandidates = new ArrayList<>();
+
+private void
+ReadInput()
+    throws IOException
+{
+    char[] buf = new char[4096];
+    int _size = 0;
+    while (true) {
+        if (_size == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int n = reader.read(buf, _size, buf.length - _size);
+        if (n == -1) {
+            break;
+        }
+        _size += n;
+    }
+    input = buf;
+    size = _size;
+    lines = new int[size + 1];
+    cols = new int[size + 1];
+    Parser.InputPosition pos = new Parser.InputPosition();
+    for (int i = 0; i <= size; i++) {
+        lines[i] = pos.curLine;
+        cols[i] = pos.curCol;
+        if (i < size) {
+            pos.FeedChar(input[i]);
+        }
+    }
+}
+
+private Parser.InputPosition
+GetPosition(int offset)
+{
+    Parser.InputPosition pos = new Parser.InputPosition();
+    pos.curOffset = offset;
+    pos.curLine = lines[offset];
+    pos.curCol = cols[offset];
+    return pos;
+}
+
+/** Assign memo table columns to grammar nodes. Named nodes are memoized except single character
+ * ones (cheaper to match again) and compiled node references (the referenced node is memoized).
+ */
+private int[]
+CreateMemoIds(CompiledGrammar compiled)
+{
+    int[] ids = new int[compiled.GetNodesCount()];
+    for (int id = 0; id < ids.length; id++) {
+        Grammar.Node node = compiled.GetNode(id);
+        if (node.name != null && !(node instanceof Grammar.CharNode) && !IsReference(node)) {
+            ids[id] = numMemoColumns++;
+        } else {
+            ids[id] = -1;
+        }
+    }
+    return ids;
+}
+
+/** Get memo table column for the node, -1 if the node is not memoized. */
+private int
+GetMemoId(Grammar.Node node)
+{
+    return node.id >= 0 ? memoIds[node.id] : -1;
+}
+
+private static boolean
+IsReference(Grammar.Node node)
+{
+    if (!(node instanceof Grammar.SequenceNode)) {
+        return false;
+    }
+    Grammar.Node[] nodes = ((Grammar.SequenceNode)node).nodes;
+    return nodes.length == 1 && node.name.equals(nodes[0].name);
+}
+
+/** Match the node with its quantity applied.
+ *
+ * @return End offset of the match, -1 if not matched.
+ */
+private int
+MatchQuantified(Grammar.Node node, int offset)
+{
+    int numMin = node.GetMinQuantity(), numMax = node.GetMaxQuantity();
+    int count = 0;
+    while (numMax == -1 || count < numMax) {
+        int end = MatchOnce(node, offset);
+        if (end == -1) {
+            break;
+        }
+        if (end == offset) {
+            /* Empty match can be repeated any number of times. */
+            count = Math.max(count + 1, numMin);
+            break;
+        }
+        count++;
+        offset = end;
+    }
+    return count >= numMin ? offset : -1;
+}
+
+/** Match single repetition of the node using memo table if applicable. */
+private int
+MatchOnce(Grammar.Node node, int offset)
+{
+    int id = GetMemoId(node);
+    if (id == -1) {
+        return MatchContent(node, offset);
+    }
+    int[] column = memo[id];
+    if (column == null) {
+        column = new int[size + 1];
+        memo[id] = column;
+    }
+    int value = column[offset];
+    if (value == MEMO_IN_PROGRESS) {
+        throw new IllegalStateException("Left recursion is not supported\n" + node);
+    }
+    if (value != MEMO_UNKNOWN) {
+        return value == MEMO_FAILED ? -1 : value - 1;
+    }
+    column[offset] = MEMO_IN_PROGRESS;
+    int numFrames = frameNodes.size();
+    if (numFrames == frameOffsets.length) {
+        frameOffsets = Arrays.copyOf(frameOffsets, numFrames * 2);
+    }
+    frameNodes.add(node);
+    frameOffsets[numFrames] = offset;
+    int end = MatchContent(node, offset);
+    frameNodes.remove(numFrames);
+    column[offset] = end == -1 ? MEMO_FAILED : end + 1;
+    numMemoEntries++;
+    return end;
+}
+
+/** Match single repetition of the node content without memo table. */
+private int
+MatchContent(Grammar.Node node, int offset)
+{
+    if (++numSteps == CANCEL_CHECK_INTERVAL) {
+        numSteps = 0;
+        if (cancelled) {
+            throw new CancelledException(offset);
+        }
+    }
+
+    if (node.token != null) {
+        TokenAutomaton token = node.token;
+        int state = 0, end = -1, pos = offset;
+        while (pos < size && (state = token.NextState(state, input[pos])) != -1) {
+            pos++;
+            if (token.IsFinalState(state)) {
+                end = pos;
+            }
+        }
+        if (end == -1) {
+            Fail(pos);
+        }
+        return end;
+    }
+
+    if (node instanceof Grammar.SequenceNode) {
+        for (Grammar.Node child: node) {
+            offset = MatchQuantified(child, offset);
+            if (offset == -1) {
+                return -1;
+            }
+        }
+        return offset;
+    }
+
+    if (node instanceof Grammar.VariantsNode) {
+        for (Grammar.Node child: node) {
+            int end = MatchQuantified(child, offset);
+            if (end != -1) {
+                return end;
+            }
+        }
+        return -1;
+    }
+
+    if (node instanceof Grammar.CharNode) {
+        if (offset < size && ((Grammar.CharNode)node).MatchChar(input[offset])) {
+            return offset + 1;
+        }
+        Fail(offset);
+        return -1;
+    }
+
+    if (node instanceof Grammar.LiteralsNode) {
+        Grammar.LiteralsNode literalsNode = (Grammar.LiteralsNode)node;
+        int state = 0, end = -1, pos = offset;
+        while (pos < size && (state = literalsNode.NextState(state, input[pos])) != -1) {
+            pos++;
+            if (literalsNode.IsFinalState(state)) {
+                end = pos;
+            }
+        }
+        if (end == -1) {
+            Fail(pos);
+        }
+        return end;
+    }
+
+    if (node instanceof Grammar.PredicateNode) {
+        Grammar.PredicateNode predicateNode = (Grammar.PredicateNode)node;
+        boolean matched = MatchQuantified(predicateNode.GetContent(), offset) != -1;
+        if (matched != predicateNode.IsNegative()) {
+            return offset;
+        }
+        Fail(offset);
+        return -1;
+    }
+
+    throw new IllegalStateException("Unhandled node type " + node.getClass().getSimpleName());
+}
+
+/** Register matching failure at the specified offset. */
+private void
+Fail(int offset)
+{
+    if (offset < failOffset) {
+        return;
+    }
+    if (offset > failOffset) {
+        failOffset = offset;
+        failCandidates.clear();
+    }
+    int numFrames = frameNodes.size();
+    if (offset != size || numFrames == 0) {
+        return;
+    }
+    Grammar.Node node = frameNodes.get(numFrames - 1);
+    int nodeOffset = frameOffsets[numFrames - 1];
+    for (Candidate c: failCandidates) {
+        if (c.offset == nodeOffset && c.node.name.equals(node.name)) {
+            return;
+        }
+    }
+    failCandidates.add(new Candidate(node, nodeOffset));
+}
+
+/** Report the farthest failure the same way as Parser does: incomplete elements if the end of
+ * input is reached, invalid syntax otherwise.
+ */
+private void
+ReportFailure()
+{
+    if (failOffset < size || failCandidates.isEmpty()) {
+        summary.Error(GetPosition(Math.max(failOffset, 0)), Parser.ErrorCode.PARSING_FAILED,
+                      "Invalid syntax");
+        return;
+    }
+    if (failCandidates.size() > 1) {
+        summary.Error(GetPosition(size), Parser.ErrorCode.INCOMPLETE_NODE,
+                      "Incomplete syntax (unterminated elements follow):");
+        for (Candidate c: failCandidates) {
+            summary.Info(GetCandidatePosition(c), Parser.InfoCode.INCOMPLETE_NODE_CANDIDATE,
+                         "Incomplete element candidate: %s", c.node.name);
+        }
+    } else {
+        Candidate c = failCandidates.get(0);
+        summary.Error(GetCandidatePosition(c), Parser.ErrorCode.INCOMPLETE_NODE,
+                      "Incomplete %s", c.node.name);
+    }
+}
+
+/** Candidate which has not matched any character has no position. */
+private Parser.InputPosition
+GetCandidatePosition(Candidate c)
+{
+    return c.offset < size ? GetPosition(c.offset) : null;
+}
+
+/** Build AST for the already matched quantified node.
+ *
+ * @return End offset of the match.
+ */
+private int
+BuildQuantified(Grammar.Node node, int offset, Ast.Node parent)
+{
+    int numMax = node.GetMaxQuantity();
+    int count = 0;
+    while (numMax == -1 || count < numMax) {
+        int end = MatchOnce(node, offset);
+        if (end == -1 || end == offset) {
+            break;
+        }
+        BuildContent(node, offset, end, parent);
+        count++;
+        offset = end;
+    }
+    return offset;
+}
+
+/** Build AST for single non-empty repetition of the node matched in the specified range. */
+private void
+BuildContent(Grammar.Node node, int offset, int end, Ast.Node parent)
+{
+    Ast.Node astNode = null;
+    if (node.isVal) {
+        astNode = ast.CreateNode();
+        astNode.grammarNode = node;
+        astNode.startPosition = GetPosition(offset);
+        if (parent != null) {
+            parent.AppendChild(astNode);
+        }
+        parent = astNode;
+    }
+
+    if (node.token != null) {
+        /* Token content has no valuable nodes. */
+    } else if (node instanceof Grammar.SequenceNode) {
+        for (Grammar.Node child: node) {
+            offset = BuildQuantified(child, offset, parent);
+        }
+    } else if (node instanceof Grammar.VariantsNode) {
+        for (Grammar.Node child: node) {
+            if (MatchQuantified(child, offset) != -1) {
+                BuildQuantified(child, offset, parent);
+                break;
+            }
+        }
+    }
+
+    if (astNode == null) {
+        return;
+    }
+    if (node.wantValString) {
+        /* Characters not consumed by valuable children. */
+        int pos = astNode.startPosition.curOffset;
+        if (astNode.children != null) {
+            for (Ast.Node child: astNode.children) {
+                AppendChars(astNode, pos, child.startPosition.curOffset);
+                pos = child.endPosition.curOffset + 1;
+            }
+        }
+        AppendChars(astNode, pos, end);
+    }
+    astNode.Commit(GetPosition(end - 1), summary);
+}
+
+private void
+AppendChars(Ast.Node astNode, int start, int end)
+{
+    if (end > start) {
+        astNode.AppendChars(input, start, end - start);
+    }
+}
+
+}
@@ -0,0 +1,396 @@
+package org.roxy.parser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/** On-disk cache of parsing results. Entries are keyed by input content hash, grammar fingerprint
+ * (see CompiledGrammar) and root node id, so changing either the input or the grammar invalidates
+ * corresponding entries. Least recently used entries are evicted when total size exceeds the limit.
+ *
+ * Tags are not stored by default. In such case the cached AST is the one before tags production
+ * and tag fabrics are invoked on load (in the same children-first order as during parsing), their
+ * summary records follow parser records. Tag fabrics are expected to depend only on the node
+ * subtree. Alternatively a TagCodec can be set, then the final AST with the tags is stored as is.
+ *
+ * The cache is thread-safe. Several caches (e.g. in different processes) should not share the same
+ * directory.
+ */
+public class ParseCache {
+
+/** Serializes AST node tags. */
+public interface TagCodec {
+
+    void
+    Encode(Ast.Node node, DataOutput out)
+        throws IOException;
+
+    /** Decode tag of the node. The node is fully loaded including its children. */
+    Ast.Tag
+    Decode(Ast.Node node, DataInput in)
+        throws IOException;
+}
+
+/**
+ * @param dir Cache directory. Created if not exists.
+ * @param maxSize Maximal total size of the cache entries in bytes.
+ */
+public
+ParseCache(Path dir, long maxSize)
+    throws IOException
+{
+    this.dir = dir;
+    this.maxSize = maxSize;
+    Files.createDirectories(dir);
+    Scan();
+}
+
+/** Set codec for storing tags. Entries stored without tags (and vice versa) are not used after
+ * that.
+ */
+public ParseCache
+SetTagCodec(TagCodec tagCodec)
+{
+    this.tagCodec = tagCodec;
+    return this;
+}
+
+/** Get AST for the specified content, either cached or parsed.
+ *
+ * @param grammar Root node of compiled grammar.
+ * @param content Input text.
+ * @param summary Parsing summary records are added here.
+ * @throws IllegalStateException If the grammar is not compiled.
+ */
+public Ast
+Parse(Grammar.Node grammar, String content, Summary summary)
+    throws IOException
+{
+    CompiledGrammar compiled = grammar.GetGrammar().GetCompiled();
+    if (compiled == null) {
+        throw new IllegalStateException("Grammar is not compiled");
+    }
+    int rootId = compiled.GetNodeId(grammar);
+    String entryName = GetEntryName(content, compiled, rootId);
+    TagCodec tagCodec = this.tagCodec;
+
+    Ast ast = Load(entryName, compiled, rootId, tagCodec, summary);
+    if (ast != null) {
+        synchronized (this) {
+            numHits++;
+        }
+        return ast;
+    }
+
+    Summary parseSummary = new Summary();
+    Parser parser = new Parser(grammar, content);
+    if (tagCodec == null) {
+        parser.DeferTags();
+    }
+    ast = parser.Parse(parseSummary).GetResult();
+    synchronized (this) {
+        numMisses++;
+    }
+    Store(entryName, compiled, rootId, tagCodec, ast, parseSummary);
+    summary.AddAll(parseSummary);
+    if (tagCodec == null) {
+        ast.ProduceTags(summary);
+    }
+    return ast;
+}
+
+/** Get AST for the specified UTF-8 encoded file. */
+public Ast
+Parse(Grammar.Node grammar, Path file, Summary summary)
+    throws IOException
+{
+    return Parse(grammar, new String(Files.readAllBytes(file), StandardCharsets.UTF_8), summary);
+}
+
+public synchronized long
+GetHits()
+{
+    return numHits;
+}
+
+public synchronized long
+GetMisses()
+{
+    return numMisses;
+}
+
+/** Get total size of all entries in bytes. */
+public synchronized long
+GetSize()
+{
+    return totalSize;
+}
+
+public synchronized int
+GetEntriesCount()
+{
+    return entries.size();
+}
+
+/** Remove all entries. */
+public synchronized void
+Clear()
+    throws IOException
+{
+    for (String name: entries.keySet()) {
+        Files.deleteIfExists(dir.resolve(name));
+    }
+    entries.clear();
+    totalSize = 0;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int MAGIC = 0x524f5841;
+private static final int VERSION = 2;
+/** Minimal size of serialized AST node: grammar node id, string size, two absent positions and
+ * number of children.
+ */
+private static final int MIN_NODE_SIZE = 4 + 4 + 1 + 1 + 4;
+private static final String ENTRY_SUFFIX = ".ast", TMP_SUFFIX = ".tmp";
+/** Number of fingerprint characters in entry file name. Full fingerprint is stored in the entry. */
+private static final int FINGERPRINT_NAME_LEN = 16;
+
+private final Path dir;
+private final long maxSize;
+private volatile TagCodec tagCodec;
+/** Entry name to size mapping in access order, eldest first. */
+private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+private long totalSize, numHits, numMisses;
+
+/** Load existing entries index. */
+private void
+Scan()
+    throws IOException
+{
+    ArrayList<Path> files = new ArrayList<>();
+    try (Stream<Path> s = Files.list(dir)) {
+        s.forEach(files::add);
+    }
+    ArrayList<Path> entryFiles = new ArrayList<>();
+    HashMap<Path, FileTime> accessTimes = new HashMap<>();
+    for (Path file: files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(TMP_SUFFIX)) {
+            /* Leftover of interrupted store. */
+            Files.deleteIfExists(file);
+        } else if (name.endsWith(ENTRY_SUFFIX)) {
+            entryFiles.add(file);
+            accessTimes.put(file, Files.getLastModifiedTime(file));
+        }
+    }
+    entryFiles.sort(Comparator.comparing(accessTimes::get));
+    for (Path file: entryFiles) {
+        long size = Files.size(file);
+        entries.put(file.getFileName().toString(), size);
+        totalSize += size;
+    }
+}
+
+private static String
+GetEntryName(String content, CompiledGrammar grammar, int rootId)
+{
+    MessageDigest md;
+    try {
+        md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+    }
+    String contentHash =
+        CompiledGrammar.ToHex(md.digest(content.getBytes(StandardCharsets.UTF_8)));
+    return contentHash + "-" + grammar.GetFingerprint().substring(0, FINGERPRINT_NAME_LEN) + "-" +
+        rootId + ENTRY_SUFFIX;
+}
+
+/** @return Null if no valid entry found. */
+private Ast
+Load(String entryName, CompiledGrammar grammar, int rootId, TagCodec tagCodec, Summary summary)
+    throws IOException
+{
+    synchronized (this) {
+        if (entries.get(entryName) == null) {
+            return null;
+        }
+    }
+    Path file = dir.resolve(entryName);
+    byte[] data;
+    try {
+        data = Files.readAllBytes(file);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (NoSuchFileException e) {
+        RemoveEntry(entryName);
+        return null;
+    }
+    Summary entrySummary = new Summary();
+    Ast ast = new Ast();
+    try {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+            !in.readUTF().equals(grammar.GetFingerprint()) || in.readInt() != rootId) {
+            throw new IOException("Entry header mismatch");
+        }
+        if (in.readBoolean() != (tagCodec != null)) {
+            /* Stored in different tags mode. */
+            return null;
+        }
+        entrySummary.Read(in, in.available());
+        if (in.readBoolean()) {
+            ast.root = ReadNode(in, ast, grammar, tagCodec);
+        }
+    } catch (IOException | RuntimeException e) {
+        /* Corrupted entry, will be overwritten. */
+        RemoveEntry(entryName);
+        return null;
+    }
+    summary.AddAll(entrySummary);
+    if (tagCodec == null) {
+        ast.ProduceTags(summary);
+    }
+    return ast;
+}
+
+private void
+Store(String entryName, CompiledGrammar grammar, int rootId, TagCodec tagCodec, Ast ast,
+      Summary summary)
+    throws IOException
+{
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(grammar.GetFingerprint());
+    out.writeInt(rootId);
+    out.writeBoolean(tagCodec != null);
+    summary.Write(out);
+    Ast.Node root = ast.GetRoot();
+    out.writeBoolean(root != null);
+    if (root != null) {
+        WriteNode(out, root, grammar, tagCodec);
+    }
+    out.flush();
+    if (buf.size() > maxSize) {
+        return;
+    }
+
+    Path tmpFile = Files.createTempFile(dir, "entry", TMP_SUFFIX);
+    try {
+        Files.write(tmpFile, buf.toByteArray());
+        Files.move(tmpFile, dir.resolve(entryName), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+        Files.deleteIfExists(tmpFile);
+        throw e;
+    }
+
+    synchronized (this) {
+        Long prevSize = entries.put(entryName, (long)buf.size());
+        if (prevSize != null) {
+            totalSize -= prevSize;
+        }
+        totalSize += buf.size();
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            Files.deleteIfExists(dir.resolve(e.getKey()));
+            totalSize -= e.getValue();
+            it.remove();
+        }
+    }
+}
+
+private synchronized void
+RemoveEntry(String entryName)
+    throws IOException
+{
+    Long size = entries.remove(entryName);
+    if (size != null) {
+        totalSize -= size;
+    }
+    Files.deleteIfExists(dir.resolve(entryName));
+}
+
+private static void
+WriteNode(DataOutputStream out, Ast.Node node, CompiledGrammar grammar, TagCodec tagCodec)
+    throws IOException
+{
+    int grammarNodeId = grammar.GetNodeId(node.grammarNode);
+    if (grammarNodeId == -1) {
+        throw new IllegalStateException("AST node does not belong to the grammar: " +
+                                        node.grammarNode);
+    }
+    out.writeInt(grammarNodeId);
+    if (node.str != null) {
+        byte[] str = node.str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(str.length);
+        out.write(str);
+    } else {
+        out.writeInt(-1);
+    }
+    Parser.InputPosition.Write(out, node.startPosition);
+    Parser.InputPosition.Write(out, node.endPosition);
+    int numChildren = node.children == null ? 0 : node.children.size();
+    out.writeInt(numChildren);
+    for (int i = 0; i < numChildren; i++) {
+        WriteNode(out, node.children.get(i), grammar, tagCodec);
+    }
+    if (tagCodec != null) {
+        out.writeBoolean(node.tag != null);
+        if (node.tag != null) {
+            tagCodec.Encode(node, out);
+        }
+    }
+}
+
+private static Ast.Node
+ReadNode(DataInputStream in, Ast ast, CompiledGrammar grammar, TagCodec tagCodec)
+    throws IOException
+{
+    Ast.Node node = ast.CreateNode();
+    int grammarNodeId = in.readInt();
+    if (grammarNodeId < 0 || grammarNodeId >= grammar.GetNodesCount()) {
+        throw new IOException("Invalid grammar node id: " + grammarNodeId);
+    }
+    node.grammarNode = grammar.GetNode(grammarNodeId);
+    /* Sizes are checked against the remaining data before allocating, so that a corrupted entry
+     * is reported as IOException instead of OutOfMemoryError.
+     */
+    int strSize = in.readInt();
+    if (strSize > in.available()) {
+        throw new IOException("Invalid string size: " + strSize);
+    }
+    if (strSize >= 0) {
+        byte[] str = new byte[strSize];
+        in.readFully(str);
+        node.str = new String(str, StandardCharsets.UTF_8);
+    }
+    node.startPosition = Parser.InputPosition.Read(in);
+    node.endPosition = Parser.InputPosition.Read(in);
+    int numChildren = in.readInt();
+    if (numChildren < 0 || numChildren > in.available() / MIN_NODE_SIZE) {
+        throw new IOException("Invalid number of children: " + numChildren);
+    }
+    for (int i = 0; i < numChildren; i++) {
+        node.AppendChild(ReadNode(in, ast, grammar, tagCodec));
+    }
+    if (tagCodec != null && in.readBoolean()) {
+        node.tag = tagCodec.Decode(node, in);
+    }
+    return node;
+}
+
+}
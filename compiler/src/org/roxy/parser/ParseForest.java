@@ -0,0 +1,531 @@
+package org.roxy.parser;
+
+import java.util.*;
+import java.util.function.BiPredicate;
+
+/** Shared packed parse forest. Represents all AST variants of an ambiguous input in size which is
+ * polynomial in the input length, while the number of variants may be exponential.
+ *
+ * Symbol nodes correspond to AST nodes, they are identified by the grammar node and the matched
+ * input range, so a sub-derivation is shared by all variants it appears in. Each way the node
+ * children can be derived is a packed node. Children lists are binarized: a packed node refers the
+ * last child and an intermediate node which represents all derivations of the preceding children
+ * (with the same start and end, ending in the same grammar slot), so common children prefixes are
+ * shared as well. The part of the
+ * input committed before the ambiguity is represented by fixed nodes which refer the already
+ * committed AST subtrees.
+ *
+ * Produced by Parser when enabled by Parser.SetForestOutput().
+ */
+public class ParseForest {
+
+public class Node {
+
+    public Grammar.Node
+    GetGrammarNode()
+    {
+        return grammarNode;
+    }
+
+    public Parser.InputPosition
+    GetStartPosition()
+    {
+        return startPosition;
+    }
+
+    /** Position of the last character. */
+    public Parser.InputPosition
+    GetEndPosition()
+    {
+        return endPosition;
+    }
+
+    /** Intermediate node represents derivations of some first children of a symbol node. */
+    public boolean
+    IsIntermediate()
+    {
+        return isIntermediate;
+    }
+
+    /** Get committed AST subtree if the node is fixed, null otherwise. Fixed nodes have no packed
+     * nodes.
+     */
+    public Ast.Node
+    GetAstNode()
+    {
+        return astNode;
+    }
+
+    public List<Packed>
+    GetPackedNodes()
+    {
+        return Collections.unmodifiableList(packedNodes);
+    }
+
+    /** Check if the node has several derivations. */
+    public boolean
+    IsAmbiguous()
+    {
+        return packedNodes.size() > 1;
+    }
+
+    /** Get number of trees the node subtree has (saturated at Long.MAX_VALUE). */
+    public long
+    CountTrees()
+    {
+        UpdateCounts();
+        return numTrees;
+    }
+
+    @Override public String
+    toString()
+    {
+        return String.format("%s%s [%d; %d]", isIntermediate ? "~" : "",
+                             grammarNode.name == null ? "<unnamed>" : grammarNode.name,
+                             startPosition.curOffset, endPosition.curOffset);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final Grammar.Node grammarNode;
+    private final Parser.InputPosition startPosition, endPosition;
+    private final boolean isIntermediate;
+    private final Ast.Node astNode;
+    private final ArrayList<Packed> packedNodes = new ArrayList<>();
+    private long numTrees;
+
+    private
+    Node(Grammar.Node grammarNode, Parser.InputPosition startPosition,
+         Parser.InputPosition endPosition, boolean isIntermediate, Ast.Node astNode)
+    {
+        this.grammarNode = grammarNode;
+        this.startPosition = startPosition;
+        this.endPosition = endPosition;
+        this.isIntermediate = isIntermediate;
+        this.astNode = astNode;
+    }
+
+    private void
+    AddPacked(Node left, Node right, String str)
+    {
+        for (Packed packed: packedNodes) {
+            if (packed.left == left && packed.right == right && Objects.equals(packed.str, str)) {
+                return;
+            }
+        }
+        packedNodes.add(new Packed(left, right, str));
+    }
+}
+
+/** One derivation of a node. */
+public static class Packed {
+
+    /** Intermediate node for preceding children, null if the right node is the first child. */
+    public Node
+    GetLeft()
+    {
+        return left;
+    }
+
+    /** Last child, null if the node has no children. */
+    public Node
+    GetRight()
+    {
+        return right;
+    }
+
+    /** Node string if the grammar node wants it, characters which are not part of children. Null
+     * for intermediate nodes.
+     */
+    public String
+    GetStr()
+    {
+        return str;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final Node left, right;
+    private final String str;
+
+    private
+    Packed(Node left, Node right, String str)
+    {
+        this.left = left;
+        this.right = right;
+        this.str = str;
+    }
+
+    private long
+    CountTrees()
+    {
+        return Multiply(left == null ? 1 : left.numTrees, right == null ? 1 : right.numTrees);
+    }
+}
+
+/** Get root node, null if all trees are filtered out. */
+public Node
+GetRoot()
+{
+    return root != null && (root.astNode != null || !root.packedNodes.isEmpty()) ? root : null;
+}
+
+/** Get number of distinct nodes (symbol, intermediate and fixed ones). */
+public int
+GetNodesCount()
+{
+    return nodes.size();
+}
+
+/** Get number of trees in the forest (saturated at Long.MAX_VALUE). */
+public long
+CountTrees()
+{
+    return GetRoot() == null ? 0 : root.CountTrees();
+}
+
+/** Remove derivations of symbol nodes which are rejected by the predicate. Derivations which
+ * refer nodes left without derivations are removed as well.
+ *
+ * @return This forest.
+ */
+public ParseForest
+Filter(BiPredicate<Node, Packed> predicate)
+{
+    HashSet<Node> emptyNodes = new HashSet<>();
+    for (Node node: GetTopologicalOrder()) {
+        if (node.astNode != null) {
+            continue;
+        }
+        node.packedNodes.removeIf(
+            packed -> emptyNodes.contains(packed.left) || emptyNodes.contains(packed.right) ||
+                (!node.isIntermediate && !predicate.test(node, packed)));
+        if (node.packedNodes.isEmpty()) {
+            emptyNodes.add(node);
+        }
+    }
+    countsValid = false;
+    return this;
+}
+
+/** Build AST for the tree with the specified index. Tags are produced for the created AST nodes,
+ * committed subtrees are copied with their tags.
+ *
+ * @param index Tree index, from zero to CountTrees() exclusively.
+ * @param summary Summary to report tag fabrics records into.
+ */
+public Ast
+ExtractTree(long index, Summary summary)
+{
+    if (index < 0 || index >= CountTrees()) {
+        throw new IndexOutOfBoundsException("Tree index out of range: " + index);
+    }
+    Ast ast = new Ast();
+    ast.symbols = symbols;
+    if (astIndex) {
+        ast.index = new AstIndex(root.grammarNode);
+    }
+    Extract(ast, root, index, null, summary);
+    return ast;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+/** Node derivation in scope of one parse, built by Parser and merged into the forest. */
+static class Derivation {
+    final Grammar.Node grammarNode;
+    final Parser.InputPosition startPosition;
+    Parser.InputPosition endPosition;
+    /** Derivation or committed Ast.Node for each child. */
+    final ArrayList<Object> children = new ArrayList<>();
+    /** Grammar slot of each child, see AddChild(). */
+    final ArrayList<Object> slots = new ArrayList<>();
+    StringBuilder str;
+
+    Derivation(Grammar.Node grammarNode, Parser.InputPosition startPosition)
+    {
+        this.grammarNode = grammarNode;
+        this.startPosition = startPosition;
+    }
+
+    /**
+     * @param slot Position in the node grammar after the child, children prefixes are shared only
+     *             if they end in equal slots (so that they have the same continuations). Should
+     *             have value-based equals(). Null for committed children since they are common
+     *             for all derivations.
+     */
+    void
+    AddChild(Object child, Object slot)
+    {
+        children.add(child);
+        slots.add(slot);
+    }
+}
+
+private static class Key {
+    final Grammar.Node grammarNode;
+    final int start, end;
+    final boolean isIntermediate;
+    /** Grammar slot for intermediate nodes, null for symbol nodes. */
+    final Object slot;
+
+    Key(Grammar.Node grammarNode, int start, int end, boolean isIntermediate, Object slot)
+    {
+        this.grammarNode = grammarNode;
+        this.start = start;
+        this.end = end;
+        this.isIntermediate = isIntermediate;
+        this.slot = slot;
+    }
+
+    @Override public boolean
+    equals(Object o)
+    {
+        if (!(o instanceof Key)) {
+            return false;
+        }
+        Key key = (Key)o;
+        return key.grammarNode == grammarNode && key.start == start && key.end == end &&
+            key.isIntermediate == isIntermediate && Objects.equals(key.slot, slot);
+    }
+
+    @Override public int
+    hashCode()
+    {
+        return (((System.identityHashCode(grammarNode) * 31 + start) * 31 + end) * 31 +
+            Objects.hashCode(slot)) * 2 + (isIntermediate ? 1 : 0);
+    }
+}
+
+private Node root;
+private final ArrayList<Node> nodes = new ArrayList<>();
+private final HashMap<Key, Node> index = new HashMap<>();
+private final IdentityHashMap<Ast.Node, Node> fixedNodes = new IdentityHashMap<>();
+private boolean countsValid;
+/** Derivation strings contain UTF-8 bytes (see Ast.GetString()). */
+boolean utf8Strings;
+/** Symbol table of the parse, used for extracted trees. */
+SymbolTable symbols;
+/** Extracted trees are indexed (see AstIndex). */
+boolean astIndex;
+
+/** Merge root derivation of one parse into the forest. */
+void
+AddDerivation(Derivation derivation)
+{
+    Node node = Intern(derivation);
+    if (root == null) {
+        root = node;
+    } else if (root != node) {
+        throw new IllegalStateException("Root derivation range mismatch");
+    }
+    countsValid = false;
+}
+
+private static long
+Multiply(long x, long y)
+{
+    long result = x * y;
+    if (x != 0 && (result / x != y || result < 0)) {
+        return Long.MAX_VALUE;
+    }
+    return result;
+}
+
+private static long
+Add(long x, long y)
+{
+    long result = x + y;
+    return result < 0 ? Long.MAX_VALUE : result;
+}
+
+private Node
+GetNode(Grammar.Node grammarNode, Parser.InputPosition startPosition,
+        Parser.InputPosition endPosition, boolean isIntermediate, Object slot)
+{
+    Key key = new Key(grammarNode, startPosition.curOffset, endPosition.curOffset,
+                      isIntermediate, slot);
+    Node node = index.get(key);
+    if (node == null) {
+        node = new Node(grammarNode, startPosition, endPosition, isIntermediate, null);
+        index.put(key, node);
+        nodes.add(node);
+    }
+    return node;
+}
+
+private Node
+Intern(Derivation derivation)
+{
+    ArrayList<Node> children = new ArrayList<>(derivation.children.size());
+    for (Object child: derivation.children) {
+        if (child instanceof Derivation) {
+            children.add(Intern((Derivation)child));
+        } else {
+            Ast.Node astNode = (Ast.Node)child;
+            children.add(fixedNodes.computeIfAbsent(astNode, n -> {
+                Node node = new Node(n.grammarNode, n.startPosition, n.endPosition, false, n);
+                nodes.add(node);
+                return node;
+            }));
+        }
+    }
+    Node left = null;
+    for (int i = 0; i < children.size() - 1; i++) {
+        Node child = children.get(i);
+        /* Prefixes of different grammar alternatives may have the same range, they are
+         * distinguished by the slot.
+         */
+        Node intermediate = GetNode(derivation.grammarNode, derivation.startPosition,
+                                    child.endPosition, true, derivation.slots.get(i));
+        intermediate.AddPacked(left, child, null);
+        left = intermediate;
+    }
+    Node node = GetNode(derivation.grammarNode, derivation.startPosition,
+                        derivation.endPosition, false, null);
+    node.AddPacked(left, children.isEmpty() ? null : children.get(children.size() - 1),
+                   derivation.str == null ? null : Ast.GetString(derivation.str, utf8Strings));
+    return node;
+}
+
+private void
+UpdateCounts()
+{
+    if (countsValid) {
+        return;
+    }
+    for (Node node: GetTopologicalOrder()) {
+        if (node.astNode != null) {
+            node.numTrees = 1;
+            continue;
+        }
+        long numTrees = 0;
+        for (Packed packed: node.packedNodes) {
+            numTrees = Add(numTrees, packed.CountTrees());
+        }
+        node.numTrees = numTrees;
+    }
+    countsValid = true;
+}
+
+/** Get nodes reachable from the root, children before parents. Iterative since intermediate
+ * nodes chains can be as long as the number of children.
+ */
+private ArrayList<Node>
+GetTopologicalOrder()
+{
+    ArrayList<Node> order = new ArrayList<>();
+    if (root == null) {
+        return order;
+    }
+    HashSet<Node> visited = new HashSet<>();
+    ArrayDeque<Node> stack = new ArrayDeque<>();
+    ArrayDeque<Integer> positions = new ArrayDeque<>();
+    visited.add(root);
+    stack.push(root);
+    positions.push(0);
+    while (!stack.isEmpty()) {
+        Node node = stack.peek();
+        int pos = positions.pop();
+        /* Two children per packed node. */
+        if (pos == node.packedNodes.size() * 2) {
+            stack.pop();
+            order.add(node);
+            continue;
+        }
+        positions.push(pos + 1);
+        Packed packed = node.packedNodes.get(pos / 2);
+        Node child = pos % 2 == 0 ? packed.left : packed.right;
+        if (child != null && visited.add(child)) {
+            stack.push(child);
+            positions.push(0);
+        }
+    }
+    return order;
+}
+
+/** Select packed node by tree index.
+ *
+ * @param indexRef Tree index on input, index in scope of the returned packed node on output.
+ */
+private static Packed
+SelectPacked(Node node, long[] indexRef)
+{
+    for (Packed packed: node.packedNodes) {
+        long numTrees = packed.CountTrees();
+        if (indexRef[0] < numTrees) {
+            return packed;
+        }
+        indexRef[0] -= numTrees;
+    }
+    throw new IllegalStateException("Tree index out of range");
+}
+
+private void
+Extract(Ast ast, Node node, long treeIndex, Ast.Node parent, Summary summary)
+{
+    if (node.astNode != null) {
+        Ast.Node astNode = CopySubtree(ast, node.astNode);
+        if (parent != null) {
+            parent.AppendChild(astNode);
+        }
+        return;
+    }
+    Ast.Node astNode = ast.CreateNode();
+    astNode.grammarNode = node.grammarNode;
+    astNode.startPosition = node.startPosition;
+    if (parent != null) {
+        parent.AppendChild(astNode);
+    }
+
+    /* Collect children with their tree indices walking the intermediate nodes chain. */
+    long[] indexRef = {treeIndex};
+    Packed packed = SelectPacked(node, indexRef);
+    String str = packed.str;
+    ArrayList<Node> children = new ArrayList<>();
+    ArrayList<Long> childIndices = new ArrayList<>();
+    while (packed != null) {
+        long packedIndex = indexRef[0];
+        if (packed.right != null) {
+            children.add(packed.right);
+            childIndices.add(packedIndex % packed.right.numTrees);
+            packedIndex /= packed.right.numTrees;
+        }
+        if (packed.left == null) {
+            break;
+        }
+        indexRef[0] = packedIndex;
+        packed = SelectPacked(packed.left, indexRef);
+    }
+    for (int i = children.size() - 1; i >= 0; i--) {
+        Extract(ast, children.get(i), childIndices.get(i), astNode, summary);
+    }
+
+    if (str != null) {
+        astNode.strBuf = new StringBuilder(str);
+    }
+    astNode.Commit(node.endPosition, summary);
+}
+
+private static Ast.Node
+CopySubtree(Ast ast, Ast.Node src)
+{
+    Ast.Node node = ast.CreateNode();
+    node.grammarNode = src.grammarNode;
+    node.str = src.str;
+    node.symbolId = src.symbolId;
+    node.startPosition = src.startPosition;
+    node.endPosition = src.endPosition;
+    node.tag = src.tag;
+    if (src.children != null) {
+        for (Ast.Node child: src.children) {
+            node.AppendChild(CopySubtree(ast, child));
+        }
+    }
+    if (ast.index != null) {
+        ast.index.Add(node);
+    }
+    return node;
+}
+
+}
@@ -0,0 +1,383 @@
+package org.roxy.parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Runs parsers concurrently with bounded concurrency and per-request deadlines. Compiled grammars
+ * are immutable and shared between all requests.
+ *
+ * Each request is completed with a Result, futures returned by this class never throw
+ * CancellationException. When a deadline expires or a request is cancelled, its parser is
+ * cancelled and the thread running it is interrupted, which unblocks interruptible inputs (e.g.
+ * channel-based streams).
+ *
+ * Related requests can be grouped in a Scope, which has a common deadline and guarantees that no
+ * request outlives it.
+ */
+public class ParseService implements AutoCloseable {
+
+public enum Status {
+    /** Parsing completed, summary may still contain syntax errors. */
+    OK,
+    DEADLINE_EXCEEDED,
+    CANCELLED,
+    /** Input read failed or parser internal error. */
+    FAILED
+}
+
+public static class Result {
+    /** Request name as specified on submission. */
+    public final String name;
+    public final Status status;
+    public final Summary summary;
+    /** Null if status is not OK. */
+    public final Ast ast;
+    /** Failure cause if status is FAILED. */
+    public final Throwable error;
+
+    Result(String name, Status status, Summary summary, Ast ast, Throwable error)
+    {
+        this.name = name;
+        this.status = status;
+        this.summary = summary;
+        this.ast = ast;
+        this.error = error;
+    }
+}
+
+/** Group of requests with common deadline. Requests forked in the scope are cancelled when the
+ * scope is closed, closing waits for all of them to complete.
+ */
+public class Scope implements AutoCloseable {
+
+    /** Submit request in the scope. The reader is closed when the request is completed. */
+    public Future<Result>
+    Fork(String name, Grammar.Node grammar, Reader reader)
+    {
+        Task task;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Scope is closed");
+            }
+            task = new Task(name, grammar, reader);
+            task.symbols = symbols;
+            tasks.add(task);
+        }
+        Schedule(task, deadline);
+        return task.future;
+    }
+
+    /** Intern symbol nodes of the requests forked after this call in the specified table, so the
+     * requests results share the symbols (see SymbolTable).
+     *
+     * @return This scope.
+     */
+    public synchronized Scope
+    SetSymbolTable(SymbolTable symbols)
+    {
+        this.symbols = symbols;
+        return this;
+    }
+
+    /** Wait for all forked requests to complete.
+     *
+     * @return Results in the fork order.
+     */
+    public List<Result>
+    Join()
+        throws InterruptedException
+    {
+        ArrayList<Task> _tasks;
+        synchronized (this) {
+            _tasks = new ArrayList<>(tasks);
+        }
+        ArrayList<Result> results = new ArrayList<>(_tasks.size());
+        for (Task task: _tasks) {
+            results.add(GetResult(task.future));
+        }
+        return results;
+    }
+
+    /** Cancel all incomplete requests. */
+    public void
+    Cancel()
+    {
+        ArrayList<Task> _tasks;
+        synchronized (this) {
+            _tasks = new ArrayList<>(tasks);
+        }
+        for (Task task: _tasks) {
+            task.Cancel(Status.CANCELLED);
+        }
+    }
+
+    /** Cancel incomplete requests and wait for all of them to complete. */
+    @Override public void
+    close()
+    {
+        synchronized (this) {
+            closed = true;
+        }
+        Cancel();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                Join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // /////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** Absolute deadline in System.nanoTime() units, zero if none. */
+    private final long deadline;
+    private final ArrayList<Task> tasks = new ArrayList<>();
+    private boolean closed;
+    private SymbolTable symbols;
+
+    private
+    Scope(long deadline)
+    {
+        this.deadline = deadline;
+    }
+}
+
+/**
+ * @param maxConcurrency Maximal number of parsers running simultaneously. Excessive requests are
+ *                       queued.
+ */
+public
+ParseService(int maxConcurrency)
+{
+    if (maxConcurrency <= 0) {
+        throw new IllegalArgumentException("Invalid concurrency: " + maxConcurrency);
+    }
+    executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, THREAD_KEEP_ALIVE_SEC,
+                                      TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                      r -> NewThread(r, "ParseService-worker"));
+    executor.allowCoreThreadTimeOut(true);
+    timer = new ScheduledThreadPoolExecutor(1, r -> NewThread(r, "ParseService-timer"));
+    timer.setRemoveOnCancelPolicy(true);
+}
+
+/** Submit parsing request. The reader is closed when the request is completed.
+ *
+ * @param timeoutMs Deadline relative to the submission time, zero for no deadline. Time spent in
+ *                  the queue is included.
+ */
+public Future<Result>
+Submit(String name, Grammar.Node grammar, Reader reader, long timeoutMs)
+{
+    Task task = new Task(name, grammar, reader);
+    Schedule(task, GetDeadline(timeoutMs));
+    return task.future;
+}
+
+/** Open scope for a group of requests.
+ *
+ * @param timeoutMs Deadline for all the scope requests relative to the current time, zero for no
+ *                  deadline.
+ */
+public Scope
+OpenScope(long timeoutMs)
+{
+    return new Scope(GetDeadline(timeoutMs));
+}
+
+/** Get number of requests currently being parsed. */
+public int
+GetActiveCount()
+{
+    return numActive.get();
+}
+
+/** Stop accepting requests. Queued requests are completed as cancelled, running ones are
+ * completed normally, worker threads exit after that.
+ */
+@Override public void
+close()
+{
+    executor.shutdown();
+    timer.shutdown();
+    ArrayList<Runnable> queued = new ArrayList<>();
+    executor.getQueue().drainTo(queued);
+    for (Runnable r: queued) {
+        ((TaskFuture)r).task.Cancel(Status.CANCELLED);
+        r.run();
+    }
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final long THREAD_KEEP_ALIVE_SEC = 60;
+
+private final ThreadPoolExecutor executor;
+private final ScheduledThreadPoolExecutor timer;
+private final AtomicInteger numActive = new AtomicInteger();
+
+private class TaskFuture extends FutureTask<Result> {
+    final Task task;
+
+    TaskFuture(Task task)
+    {
+        super(task);
+        this.task = task;
+    }
+}
+
+private class Task implements Callable<Result> {
+    final String name;
+    final Grammar.Node grammar;
+    final Reader reader;
+    final TaskFuture future;
+    /** Symbol table for the parser, null if none. */
+    SymbolTable symbols;
+    /** Guarded by this. */
+    Parser parser;
+    Thread runner;
+    Status cancelStatus;
+    boolean done;
+    ScheduledFuture<?> deadlineTimer;
+
+    Task(String name, Grammar.Node grammar, Reader reader)
+    {
+        this.name = name;
+        this.grammar = grammar;
+        this.reader = reader;
+        future = new TaskFuture(this);
+    }
+
+    @Override public Result
+    call()
+    {
+        Parser _parser;
+        Summary summary = new Summary();
+        synchronized (this) {
+            if (cancelStatus != null) {
+                return Complete(new Result(name, cancelStatus, summary, null, null));
+            }
+            runner = Thread.currentThread();
+            try {
+                parser = _parser = new Parser(grammar, reader).SetSymbolTable(symbols);
+            } catch (RuntimeException e) {
+                return Complete(new Result(name, Status.FAILED, summary, null, e));
+            }
+        }
+        numActive.incrementAndGet();
+        Throwable error = null;
+        try {
+            _parser.Parse(summary);
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        } finally {
+            numActive.decrementAndGet();
+        }
+        synchronized (this) {
+            if (cancelStatus != null) {
+                return Complete(new Result(name, cancelStatus, summary, null, null));
+            }
+        }
+        if (error != null) {
+            return Complete(new Result(name, Status.FAILED, summary, null, error));
+        }
+        return Complete(new Result(name, Status.OK, summary, _parser.GetResult(), null));
+    }
+
+    void
+    Cancel(Status status)
+    {
+        synchronized (this) {
+            if (done || cancelStatus != null) {
+                return;
+            }
+            cancelStatus = status;
+            if (parser != null) {
+                parser.Cancel();
+            }
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+    }
+
+    Result
+    Complete(Result result)
+    {
+        synchronized (this) {
+            done = true;
+            if (runner != null) {
+                /* Clear possible interrupt so it does not affect the next task. */
+                Thread.interrupted();
+                runner = null;
+            }
+            if (deadlineTimer != null) {
+                deadlineTimer.cancel(false);
+            }
+        }
+        try {
+            reader.close();
+        } catch (IOException e) {
+            /* Ignore. */
+        }
+        return result;
+    }
+}
+
+private static Thread
+NewThread(Runnable r, String name)
+{
+    Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    return t;
+}
+
+private static long
+GetDeadline(long timeoutMs)
+{
+    if (timeoutMs < 0) {
+        throw new IllegalArgumentException("Invalid timeout: " + timeoutMs);
+    }
+    return timeoutMs == 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+}
+
+private void
+Schedule(Task task, long deadline)
+{
+    try {
+        if (deadline != 0) {
+            long delay = deadline - System.nanoTime();
+            synchronized (task) {
+                task.deadlineTimer = timer.schedule(() -> task.Cancel(Status.DEADLINE_EXCEEDED),
+                                                    Math.max(delay, 0), TimeUnit.NANOSECONDS);
+            }
+        }
+        executor.execute(task.future);
+    } catch (RejectedExecutionException e) {
+        task.Cancel(Status.CANCELLED);
+        task.future.run();
+    }
+}
+
+private static Result
+GetResult(Future<Result> future)
+    throws InterruptedException
+{
+    try {
+        return future.get();
+    } catch (ExecutionException e) {
+        /* Task never throws. */
+        throw new RuntimeException(e.getCause());
+    }
+}
+
+}
@@ -0,0 +1,69 @@
+package org.roxy.parser;
+
+/** Statistics of a single parse. Collected by parser and reported to ParserMetrics when parsing
+ * is completed.
+ */
+public class ParseStats {
+
+/** Number of input characters processed. */
+public long numChars;
+/** Parsing duration, nanoseconds. */
+public long durationNs;
+/** Maximal number of current branches. */
+public int peakBranches;
+/** Sum of current branches number over all processed characters. */
+public long branchesSum;
+/** Number of parser nodes taken from free nodes pool. */
+public long nodesReused;
+/** Number of parser nodes allocated when free nodes pool was empty. */
+public long nodesAllocated;
+/** Maximal size of free nodes pool. */
+public int peakFreeNodes;
+/** Number of times unreachable parser nodes were reclaimed into free nodes pool. */
+public long numReclamations;
+/** Number of predicate instances evaluated. */
+public long numPredicates;
+/** Number of cuts passed. */
+public long numCuts;
+/** Number of branches dropped due to resolved predicates and cuts. */
+public long branchesKilled;
+/** Number of AST nodes created. */
+public long astNodesCreated;
+/** Number of commits, i.e. times a single branch was left and committed, including consumed
+ * character runs.
+ */
+public long numCommits;
+/** Number of characters committed. */
+public long numCommittedChars;
+/** Maximal number of retained input characters, zero if input retention is disabled. */
+public long peakRetainedInput;
+
+/** Get mean number of current branches per character. */
+public double
+GetMeanBranches()
+{
+    return numChars == 0 ? 0 : (double)branchesSum / numChars;
+}
+
+/** Get ratio of parser nodes taken from free nodes pool. */
+public double
+GetPoolHitRate()
+{
+    long total = nodesReused + nodesAllocated;
+    return total == 0 ? 0 : (double)nodesReused / total;
+}
+
+@Override public String
+toString()
+{
+    return String.format("%d chars in %.3f ms, branches peak %d mean %.2f, " +
+                         "nodes pool hit rate %.3f peak %d, %d reclamations, %d predicates, " +
+                         "%d cuts (%d branches killed), %d AST nodes, " +
+                         "%d commits (%d chars), retained input peak %d",
+                         numChars, durationNs / 1e6, peakBranches, GetMeanBranches(),
+                         GetPoolHitRate(), peakFreeNodes, numReclamations, numPredicates,
+                         numCuts, branchesKilled, astNodesCreated,
+                         numCommits, numCommittedChars, peakRetainedInput);
+}
+
+}
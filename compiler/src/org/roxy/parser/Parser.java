@@ -1,18 +1,23 @@
 package org.roxy.parser;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executor;
 
 /** Parses the text into AST using the provided grammar. */
-public class Parser {
+public class Parser implements ParserEngine {
 
 public interface ErrorCode {
     int INCOMPLETE_NODE = 0,
         AMBIGUOUS_SYNTAX = 1,
         PARSING_FAILED = 2,
+        CANCELLED = 3,
 
         CUSTOM_START = 1000;
 }
@@ -58,12 +63,58 @@ public static class InputPosition {
         wasCr = c == '\r';
     }
 
+    /** Advance position by UTF-8 encoded input byte. Positions are the same as for the decoded
+     * characters: continuation bytes do not advance it, four-byte sequences advance it by two
+     * characters (surrogate pair).
+     */
+    public void
+    FeedByte(int b)
+    {
+        if ((b & 0xc0) == 0x80) {
+            return;
+        }
+        FeedChar(b);
+        if (b >= 0xf0) {
+            FeedChar(b);
+        }
+    }
+
     @Override public String
     toString()
     {
         return String.format("Line %d column %d (offset %d)", curLine, curCol, curOffset);
     }
 
+    /** Serialize position, null is allowed. */
+    public static void
+    Write(DataOutput out, InputPosition pos)
+        throws IOException
+    {
+        if (pos == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        out.writeInt(pos.curOffset);
+        out.writeInt(pos.curLine);
+        out.writeInt(pos.curCol);
+    }
+
+    /** Deserialize position written by Write(). */
+    public static InputPosition
+    Read(DataInput in)
+        throws IOException
+    {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        InputPosition pos = new InputPosition();
+        pos.curOffset = in.readInt();
+        pos.curLine = in.readInt();
+        pos.curCol = in.readInt();
+        return pos;
+    }
+
     /** CR character was the previous one. */
     private boolean wasCr = false;
 }
@@ -71,13 +122,20 @@ public static class InputPosition {
 public
 Parser(Grammar.Node grammar, Reader reader)
 {
-    if (!grammar.isVal) {
-        throw new IllegalArgumentException("Grammar root node should have value");
-    }
-    this.grammar = grammar;
-    this.reader = reader;
-    FindRecursions(grammar, new ArrayDeque<>());
-    InitializeState();
+    this(grammar, reader, null);
+}
+
+/** Parse UTF-8 encoded input bytes directly without decoding them into characters. The grammar
+ * should support byte mode (see Grammar.GetByteModeError()), characters classes are then matched
+ * by byte tables. Input positions are the same as when parsing the decoded text, AST node strings
+ * are decoded. The buffer is consumed from its position to its limit.
+ *
+ * @throws IllegalArgumentException If the grammar does not support byte mode.
+ */
+public
+Parser(Grammar.Node grammar, ByteBuffer input)
+{
+    this(grammar, null, input);
 }
 
 public
@@ -92,40 +150,300 @@ Parser(Grammar.Node grammar, String str)
     this(grammar, new StringReader(str));
 }
 
-public Parser
+private
+Parser(Grammar.Node grammar, Reader reader, ByteBuffer byteInput)
+{
+    if (!grammar.isVal) {
+        throw new IllegalArgumentException("Grammar root node should have value");
+    }
+    if (byteInput != null) {
+        String error = grammar.GetGrammar().GetByteModeError();
+        if (error != null) {
+            throw new IllegalArgumentException("Grammar does not support byte mode: " + error);
+        }
+        ast.utf8Strings = true;
+    }
+    this.grammar = grammar;
+    this.reader = reader;
+    this.byteInput = byteInput;
+    FindRecursions(grammar, new ArrayDeque<>());
+    InitializeState();
+}
+
+@Override public Parser
 Parse(Summary summary)
     throws IOException
 {
-    this.summary = summary;
+    TagScheduler tagScheduler = null;
+    if (tagExecutor != null && ast.produceTags) {
+        tagScheduler = new TagScheduler(tagExecutor);
+        ast.tagScheduler = tagScheduler;
+        /* Parser records are buffered and merged with tag fabrics records after parsing. */
+        this.summary = new Summary();
+    } else {
+        this.summary = summary;
+    }
+    char[] buf = null;
+    BlockRing ring = null;
+    if (numReadAheadBlocks > 0 && byteInput == null) {
+        ring = new BlockRing(reader, numReadAheadBlocks, INPUT_BLOCK_SIZE);
+        ring.Start();
+        /* Cancel() wakes up the ring consumer after setting the flag. */
+        readAheadRing = ring;
+    } else {
+        buf = new char[INPUT_BLOCK_SIZE];
+    }
+    long startTime = System.nanoTime();
+    boolean completed = false;
     try {
         while (true) {
-            int c = reader.read();
-            if (c == -1) {
+            if (cancelled) {
+                this.summary.Error(new InputPosition(curPos), ErrorCode.CANCELLED,
+                                   "Parsing cancelled");
+                break;
+            }
+            int size;
+            if (ring != null) {
+                size = ring.Take();
+                if (size == BlockRing.CANCELLED) {
+                    continue;
+                }
+                buf = ring.GetBlock();
+            } else if (byteInput != null) {
+                size = ReadBytes(buf);
+            } else {
+                size = reader.read(buf);
+            }
+            if (size == -1) {
                 Finalize();
-                return this;
+                break;
+            }
+            if (inputWindow != null) {
+                inputWindow.Append(buf, 0, size);
+                stats.peakRetainedInput = inputWindow.GetPeakRetainedSize();
+            }
+            int pos = 0;
+            while (pos < size) {
+                if (runBranch != null) {
+                    pos = ProcessRun(buf, pos, size);
+                    if (pos == size) {
+                        break;
+                    }
+                }
+                ProcessChar(buf[pos++]);
+            }
+            if (ring != null) {
+                ring.Release();
+            }
+            if (inputWindow != null) {
+                /* All characters before the first uncommitted one are committed. */
+                inputWindow.Release(stats.numCommittedChars);
             }
-            ProcessChar(c);
         }
+        completed = true;
     } catch (ParseException e) {
-        summary.Error(e.inputPosition, ErrorCode.PARSING_FAILED, e.getMessage());
-        return this;
+        this.summary.Error(e.inputPosition, ErrorCode.PARSING_FAILED, e.getMessage());
+        completed = true;
+    } finally {
+        if (ring != null) {
+            readAheadRing = null;
+            ring.Close();
+        }
+        /* Also when reading fails, so that no tag fabric accesses the AST after Parse() exits and
+         * the records reported so far reach the caller summary.
+         */
+        if (tagScheduler != null) {
+            ast.tagScheduler = null;
+            Summary parserSummary = this.summary;
+            this.summary = summary;
+            try {
+                tagScheduler.Join(parserSummary, summary);
+            } catch (RuntimeException | Error e) {
+                /* Tag fabric failure does not mask the input failure being propagated. */
+                if (completed) {
+                    throw e;
+                }
+            }
+        }
+    }
+    stats.durationNs = System.nanoTime() - startTime;
+    ParserMetrics _metrics = metrics != null ? metrics : defaultMetrics;
+    if (_metrics != null) {
+        _metrics.Record(stats);
     }
+    return this;
 }
 
-public Parser
+@Override public Parser
 Parse()
     throws IOException
 {
     return Parse(new Summary());
 }
 
-public Summary
+/** Request parsing cancellation. Can be called from any thread. Parsing is stopped with
+ * CANCELLED error before processing next input block. Blocking input read is not interrupted by
+ * this call, though with read ahead the parser stops waiting for the reader thread.
+ */
+@Override public void
+Cancel()
+{
+    cancelled = true;
+    BlockRing ring = readAheadRing;
+    if (ring != null) {
+        ring.Cancel();
+    }
+}
+
+/** Set metrics to report this parser statistics to. Overrides default metrics if not null. */
+public Parser
+SetMetrics(ParserMetrics metrics)
+{
+    this.metrics = metrics;
+    return this;
+}
+
+/** Set metrics all parsers report their statistics to unless overridden by SetMetrics(). Null
+ * to disable.
+ */
+public static void
+SetDefaultMetrics(ParserMetrics metrics)
+{
+    defaultMetrics = metrics;
+}
+
+/** Get statistics collected so far. */
+public ParseStats
+GetStats()
+{
+    return stats;
+}
+
+/** Enable collecting per grammar node statistics into the specified profile. Null to disable. */
+public Parser
+SetProfile(ParserProfile profile)
+{
+    this.profile = profile;
+    return this;
+}
+
+/** Produce AST node tags asynchronously using the specified executor, so that tag fabrics run in
+ * parallel with parsing. Parse() returns when all tags are produced. Summary records are added
+ * after parsing completes, in the same order as with synchronous tags production. Tag fabrics
+ * should not access nodes outside of the node subtree. Null to produce tags synchronously.
+ */
+public Parser
+SetTagExecutor(Executor tagExecutor)
+{
+    this.tagExecutor = tagExecutor;
+    return this;
+}
+
+/** Read and decode input in a separate thread which runs ahead of parsing by up to the specified
+ * number of blocks, so that I/O and decoding latency is hidden behind parsing. Zero (default) to
+ * read input in the parsing thread. Ignored in byte mode.
+ */
+public Parser
+SetReadAhead(int numBlocks)
+{
+    if (numBlocks < 0) {
+        throw new IllegalArgumentException("Invalid number of blocks: " + numBlocks);
+    }
+    numReadAheadBlocks = numBlocks;
+    return this;
+}
+
+/** Build shared packed parse forest when the input is ambiguous instead of reporting
+ * AMBIGUOUS_SYNTAX error. The forest is available by GetForest(), AST root is not committed in
+ * such case, a tree can be extracted from the forest after disambiguation.
+ */
+public Parser
+SetForestOutput(boolean enable)
+{
+    forestOutput = enable;
+    return this;
+}
+
+/** Intern strings of symbol nodes (see Grammar.Node.Symbol()) in the specified table. The table
+ * can be shared with other parsers.
+ */
+public Parser
+SetSymbolTable(SymbolTable symbols)
+{
+    ast.symbols = symbols;
+    return this;
+}
+
+/** Index committed AST nodes by grammar node and by source offset (see AstIndex). The grammar
+ * should be compiled.
+ */
+public Parser
+SetAstIndex(boolean enable)
+{
+    ast.index = enable ? new AstIndex(grammar) : null;
+    return this;
+}
+
+/** Get parse forest, null if the input is not ambiguous or forest output is not enabled. */
+public ParseForest
+GetForest()
+{
+    return forest;
+}
+
+/** Retain input characters starting from the oldest uncommitted one, so that they are available
+ * by GetRetainedInput() while parsing (e.g. from tag fabrics or for error snippets). Input is
+ * retained in chunks of the input block size, memory used is proportional to the longest
+ * uncommitted region rather than to the input size.
+ */
+public Parser
+SetInputRetention(boolean enable)
+{
+    if (enable && byteInput != null) {
+        throw new IllegalStateException("Input retention is not supported in byte mode");
+    }
+    inputWindow = enable ? new InputWindow(INPUT_BLOCK_SIZE) : null;
+    return this;
+}
+
+/** Get number of currently retained input characters, zero if input retention is disabled. */
+public long
+GetRetainedInputSize()
+{
+    return inputWindow == null ? 0 : inputWindow.GetRetainedSize();
+}
+
+/** Get retained input text.
+ *
+ * @param start Offset of the first character from the input start.
+ * @param end Offset past the last character.
+ * @throws IllegalStateException If input retention is not enabled.
+ * @throws IndexOutOfBoundsException If the range is not retained.
+ */
+public String
+GetRetainedInput(long start, long end)
+{
+    if (inputWindow == null) {
+        throw new IllegalStateException("Input retention is not enabled");
+    }
+    return inputWindow.GetText(start, end);
+}
+
+/** Do not produce AST node tags on commit. Ast.ProduceTags() should be called after parsing. */
+Parser
+DeferTags()
+{
+    ast.produceTags = false;
+    return this;
+}
+
+@Override public Summary
 GetSummary()
 {
     return summary;
 }
 
-public Ast
+@Override public Ast
 GetResult()
 {
     return ast;
@@ -138,10 +456,8 @@ private class ParserNode {
     public ParserNode parent;
     /** Previous character node. Used for character nodes only. */
     public ParserNode prev;
-    /** Number of references from both next character nodes (which reference this node via "prev"
-     * member) and child nodes (via "parent" member).
-     */
-    public int refCount;
+    /** Last reclamation epoch the node was found reachable in. */
+    public int epoch;
     /** Corresponding grammar node. Null for end-of-file node. */
     public Grammar.Node grammarNode;
     /** Assigned AST node if committed and valuable. */
@@ -154,6 +470,16 @@ private class ParserNode {
     public int matchedChar = -1;
     /** Input position for matched character. */
     public InputPosition inputPosition = null;
+    /** Automaton state for literals or token node step. */
+    public int stepState;
+    /** Number of parents in the chain. */
+    public int depth;
+    /** Innermost unresolved predicate the branch depends on, null if none. */
+    public PredicateState pending;
+    /** Predicate which lookahead the branch belongs to, null for main branches. */
+    public PredicateState lookahead;
+    /** Serial number of the last cut the branch was created after. */
+    public int cutMark;
 
     public
     ParserNode(Grammar.Node grammarNode)
@@ -169,29 +495,13 @@ private class ParserNode {
         this.grammarNode = grammarNode;
         astNode = null;
         numRepeated = 0;
-        refCount = 1;
-    }
-
-    public void
-    AddRef()
-    {
-        refCount++;
-    }
-
-    public void
-    Release()
-    {
-        assert refCount > 0;
-        refCount--;
-        if (refCount == 0) {
-            if (parent != null) {
-                parent.Release();
-            }
-            if (prev != null) {
-                prev.Release();
-            }
-            FreeNode(this);
-        }
+        matchedChar = -1;
+        inputPosition = null;
+        stepState = 0;
+        depth = 0;
+        pending = null;
+        lookahead = null;
+        cutMark = 0;
     }
 
     public void
@@ -200,7 +510,7 @@ private class ParserNode {
         assert this.parent == null;
         if (parent != null) {
             this.parent = parent;
-            parent.AddRef();
+            depth = parent.depth + 1;
         }
     }
 
@@ -210,7 +520,6 @@ private class ParserNode {
         assert this.prev == null;
         if (prev != null) {
             this.prev = prev;
-            prev.AddRef();
         }
     }
 
@@ -255,11 +564,79 @@ private class ParseException extends RuntimeException {
     private InputPosition inputPosition;
 }
 
+private enum PredicateStatus {
+    PENDING,
+    SATISFIED,
+    FAILED
+}
+
+/** Evaluation state of a predicate instance. The predicate content is matched by separate lookahead
+ * branches in parallel with the main branches following the predicate. The predicate is resolved
+ * as matched once some lookahead branch completes the content, as not matched once all lookahead
+ * branches are dropped. Branches depending on a failed predicate are dropped immediately.
+ */
+private static class PredicateState {
+    final boolean negative;
+    /** Predicate the branch which created this one depends on, null if none. */
+    final PredicateState parent;
+    PredicateStatus status = PredicateStatus.PENDING;
+    /** Mark used to detect predicates without live lookahead branches. */
+    int lastSeen;
+
+    PredicateState(boolean negative, PredicateState parent)
+    {
+        this.negative = negative;
+        this.parent = parent;
+    }
+
+    /** Resolve the predicate by its content matching result. */
+    void
+    Resolve(boolean matched)
+    {
+        if (status == PredicateStatus.PENDING) {
+            status = matched != negative ? PredicateStatus.SATISFIED : PredicateStatus.FAILED;
+        }
+    }
+
+    /** Check if this predicate or any predicate it depends on failed. */
+    boolean
+    IsFailed()
+    {
+        for (PredicateState ps = this; ps != null; ps = ps.parent) {
+            if (ps.status == PredicateStatus.FAILED) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+/** Number of characters read from the input at once. */
+private static final int INPUT_BLOCK_SIZE = 4096;
+/** Minimal number of nodes allocated in a reclamation epoch. */
+private static final int MIN_EPOCH_NODES = 256;
+
 private final Grammar.Node grammar;
 private final Reader reader;
+/** Input for byte mode, null when parsing characters. */
+private final ByteBuffer byteInput;
+/** Buffer for reading byte input. */
+private byte[] byteBuf;
 
 /** Free nodes pool. */
 private ParserNode freeNodes;
+/** Nodes allocated from the pool and not yet reclaimed. Nodes are not reference counted, instead
+ * the ones unreachable from the current branches are reclaimed in bulk once enough nodes are
+ * allocated (see Reclaim()).
+ */
+private ParserNode[] epochNodes = new ParserNode[MIN_EPOCH_NODES];
+private int numEpochNodes;
+/** Number of epoch nodes which triggers reclamation. */
+private int reclaimThreshold = MIN_EPOCH_NODES;
+/** Current reclamation epoch number. */
+private int curEpoch;
+/** Mark stack used for reclamation. */
+private ArrayList<ParserNode> markStack = new ArrayList<>();
 /** Tips of current parsing branches. */
 private ArrayList<ParserNode> curBranches = new ArrayList<>(),
 /** Newly created branches for next character matching. */
@@ -270,26 +647,150 @@ private InputPosition curPos = new InputPosition(),
     prevPos;
 private Ast ast = new Ast();
 private Ast.Node lastAstNode;
+/** Position of the last committed character. */
+private InputPosition lastCommitPos;
+private boolean forestOutput;
+private InputWindow inputWindow;
+private ParseForest forest;
 private Summary summary;
+/** Statistics collected if not null. */
+private ParserProfile profile;
+private static volatile ParserMetrics defaultMetrics;
+private ParserMetrics metrics;
+private final ParseStats stats = new ParseStats();
+private volatile boolean cancelled;
+private Executor tagExecutor;
+private int numReadAheadBlocks;
+/** Ring of the current Parse() call with read ahead enabled. */
+private volatile BlockRing readAheadRing;
+/** Current size of free nodes pool. */
+private int numFreeNodes;
+/** Branch which is repeatedly matched in the current run, null if no run detected. The run is a
+ * state when matching the branch character reproduces equivalent set of branches, so the
+ * characters can be consumed without the branches machinery while no other branch matches them.
+ */
+private ParserNode runBranch;
+/** Nearest node in the run branch parents chain which is shared between the run iterations. All
+ * nodes below it are created anew on each iteration.
+ */
+private ParserNode runBoundary;
+/** Other current branches except end-of-file. Any of them matching ends the run. */
+private ArrayList<ParserNode> runStopNodes = new ArrayList<>();
+/** Position of the last character consumed in a run. Reused to avoid allocation per character. */
+private InputPosition runLastPos = new InputPosition();
+/** Predicates which are not yet resolved. */
+private ArrayList<PredicateState> pendingPredicates = new ArrayList<>();
+/** Set when some predicate is resolved since the last branches filtering. */
+private boolean predicatesResolved;
+/** Mark value for the current predicates check. */
+private int predicatesCheckMark;
+/** Predicate dependency and lookahead assigned to the branches being created. */
+private PredicateState curPending, curLookahead;
+/** Serial number of the last cut passed, zero if none. */
+private int cutSerial;
+/** Cut mark assigned to the branches being created. */
+private int curCutMark;
+/** Set when a cut is passed while processing the current character. Only the first cut passed on
+ * a character is applied.
+ */
+private boolean cutActive;
+/** Nearest named ancestor of the active cut node, its content is not affected by the cut. Null if
+ * none.
+ */
+private ParserNode cutScope;
 
 private ParserNode
 AllocateNode(Grammar.Node grammarNode)
 {
+    ParserNode node;
     if (freeNodes != null) {
-        ParserNode node = freeNodes;
+        node = freeNodes;
         freeNodes = node.parent;
+        numFreeNodes--;
+        stats.nodesReused++;
         node.Initialize(grammarNode);
-        return node;
+    } else {
+        stats.nodesAllocated++;
+        node = new ParserNode(grammarNode);
+    }
+    if (numEpochNodes == epochNodes.length) {
+        epochNodes = Arrays.copyOf(epochNodes, numEpochNodes * 2);
     }
-    return new ParserNode(grammarNode);
+    epochNodes[numEpochNodes++] = node;
+    return node;
 }
 
+/** Put the node into free nodes pool, or leave it to garbage collector if the pool is full. The
+ * pool is limited by twice the reclamation threshold since the threshold may be exceeded while
+ * processing a character.
+ */
 private void
 FreeNode(ParserNode node)
 {
-    assert node.refCount == 0;
+    node.prev = null;
+    if (numFreeNodes >= reclaimThreshold * 2) {
+        node.parent = null;
+        return;
+    }
     node.parent = freeNodes;
     freeNodes = node;
+    numFreeNodes++;
+    if (numFreeNodes > stats.peakFreeNodes) {
+        stats.peakFreeNodes = numFreeNodes;
+    }
+}
+
+/** Reclaim nodes which are not reachable from the current branches if enough nodes are allocated
+ * since the last reclamation. Should be called only when no nodes are referenced except by the
+ * current branches (directly or via "parent" and "prev" chains), i.e. between characters.
+ *
+ * The threshold is proportional to the number of nodes survived the last reclamation, so the
+ * reclamation cost is amortized constant per allocated node.
+ */
+private void
+Reclaim()
+{
+    if (numEpochNodes < reclaimThreshold) {
+        return;
+    }
+    curEpoch++;
+    stats.numReclamations++;
+    /* Mark reachable nodes. Parents chains are walked in a loop, "prev" links are stacked, so long
+     * chains do not consume call stack.
+     */
+    for (ParserNode branch: curBranches) {
+        markStack.add(branch);
+    }
+    while (!markStack.isEmpty()) {
+        ParserNode node = markStack.remove(markStack.size() - 1);
+        while (node != null && node.epoch != curEpoch) {
+            node.epoch = curEpoch;
+            if (node.prev != null) {
+                markStack.add(node.prev);
+            }
+            node = node.parent;
+        }
+    }
+    /* Next threshold is known before the sweep since it limits the pool size. */
+    int numLive = 0;
+    for (int i = 0; i < numEpochNodes; i++) {
+        if (epochNodes[i].epoch == curEpoch) {
+            numLive++;
+        }
+    }
+    reclaimThreshold = Math.max(MIN_EPOCH_NODES, numLive * 2);
+    /* Sweep unreachable nodes, compact reachable ones. */
+    numLive = 0;
+    for (int i = 0; i < numEpochNodes; i++) {
+        ParserNode node = epochNodes[i];
+        epochNodes[i] = null;
+        if (node.epoch == curEpoch) {
+            epochNodes[numLive++] = node;
+        } else {
+            FreeNode(node);
+        }
+    }
+    numEpochNodes = numLive;
 }
 
 /** Prepare parser for the first character processing. Creates initial parsing branches. */
@@ -298,8 +799,12 @@ InitializeState()
 {
     if (CreateBranches(AllocateNode(grammar), null, branchesStack)) {
         /* Create also EOF node if allowed. */
-        nextBranches.add(new ParserNode(null));
+        ParserNode eof = new ParserNode(null);
+        eof.pending = curPending;
+        nextBranches.add(eof);
     }
+    /* No main branches left is reported when matching the first character. */
+    UpdatePredicates();
     SwapBranches();
 }
 
@@ -321,8 +826,16 @@ CreateBranches(ParserNode node, ParserNode prevNode, ArrayDeque<Grammar.Node> gr
     }
     grammarStack.push(node.grammarNode);
     boolean addNext = false;
+    /* Predicates in the content make the following branches depend on them. */
+    PredicateState pending = curPending;
 
-    if (node.grammarNode instanceof Grammar.SequenceNode) {
+    if (node.grammarNode.token != null) {
+        ParserNode stepNode = AllocateNode(node.grammarNode.tokenStep);
+        stepNode.SetParent(node);
+        AddBranch(stepNode);
+        stepNode.SetPrev(prevNode);
+
+    } else if (node.grammarNode instanceof Grammar.SequenceNode) {
         boolean pendingAdd = false;
         for (Grammar.Node childGrammarNode: node.grammarNode) {
             ParserNode childNode = AllocateNode(childGrammarNode);
@@ -337,31 +850,228 @@ CreateBranches(ParserNode node, ParserNode prevNode, ArrayDeque<Grammar.Node> gr
         }
 
     } else if (node.grammarNode instanceof Grammar.VariantsNode) {
+        /* Next branches are shared by all the completed variants, so they depend on the weakest
+         * condition.
+         */
+        PredicateState completedPending = null;
         for (Grammar.Node childGrammarNode: node.grammarNode) {
             ParserNode childNode = AllocateNode(childGrammarNode);
             childNode.SetParent(node);
+            curPending = pending;
             if (CreateBranches(childNode, prevNode, grammarStack)) {
+                if (!addNext || curPending == pending) {
+                    completedPending = curPending;
+                }
                 addNext = true;
             }
         }
+        curPending = completedPending;
+
+    } else if (node.grammarNode instanceof Grammar.PredicateNode) {
+        addNext = CreatePredicate(node, grammarStack);
 
     } else if (node.grammarNode instanceof Grammar.CharNode) {
-        nextBranches.add(node);
+        AddBranch(node);
         node.SetPrev(prevNode);
+
+    } else if (node.grammarNode instanceof Grammar.LiteralsNode) {
+        ParserNode stepNode = AllocateNode(((Grammar.LiteralsNode)node.grammarNode).stepNode);
+        stepNode.SetParent(node);
+        AddBranch(stepNode);
+        stepNode.SetPrev(prevNode);
     }
 
     if (node.grammarNode.CheckQuantity(node.numRepeated) != Grammar.QuantityStatus.NOT_ENOUGH) {
+        /* The content can be skipped so the next branches do not depend on it. */
         addNext = true;
+        curPending = pending;
+    } else if (!addNext) {
+        curPending = pending;
     }
 
     grammarStack.pop();
     return addNext;
 }
 
+/** Start predicate evaluation. Lookahead branches are created for the predicate content, they
+ * have the predicate node as the root so the content completion is detected when the root is
+ * reached (see FindNextCharNodes()).
+ *
+ * @return True if the following branches should be created, they depend on the predicate set
+ *      into "curPending" member.
+ */
+private boolean
+CreatePredicate(ParserNode node, ArrayDeque<Grammar.Node> grammarStack)
+{
+    Grammar.PredicateNode predicateNode = (Grammar.PredicateNode)node.grammarNode;
+    PredicateState ps = new PredicateState(predicateNode.negative, curPending);
+    PredicateState _curPending = curPending, _curLookahead = curLookahead;
+    ParserNode root = AllocateNode(predicateNode);
+    root.lookahead = ps;
+    ParserNode contentNode = AllocateNode(predicateNode.GetContent());
+    contentNode.SetParent(root);
+    curPending = null;
+    curLookahead = ps;
+    if (CreateBranches(contentNode, null, grammarStack)) {
+        /* Empty content match. */
+        ps.Resolve(true);
+    }
+    curPending = _curPending;
+    curLookahead = _curLookahead;
+    stats.numPredicates++;
+    if (ps.status == PredicateStatus.PENDING) {
+        pendingPredicates.add(ps);
+        curPending = ps;
+    } else {
+        /* Lookahead branches already created are dropped by UpdatePredicates(). */
+        predicatesResolved = true;
+        if (ps.status == PredicateStatus.FAILED) {
+            return false;
+        }
+    }
+    return true;
+}
+
+/** Resolve predicates which have no lookahead branches left as not matched, and drop branches of
+ * resolved lookaheads and branches depending on failed predicates from the next branches.
+ *
+ * @return True if some branches are dropped.
+ */
+private boolean
+UpdatePredicates()
+{
+    if (!pendingPredicates.isEmpty()) {
+        int mark = ++predicatesCheckMark;
+        for (ParserNode branch: nextBranches) {
+            if (branch.lookahead != null) {
+                branch.lookahead.lastSeen = mark;
+            }
+        }
+        for (PredicateState ps: pendingPredicates) {
+            if (ps.status == PredicateStatus.PENDING && ps.lastSeen != mark) {
+                ps.Resolve(false);
+            }
+            if (ps.status != PredicateStatus.PENDING) {
+                predicatesResolved = true;
+            }
+        }
+        if (predicatesResolved) {
+            pendingPredicates.removeIf(ps -> ps.status != PredicateStatus.PENDING);
+        }
+    }
+    if (!predicatesResolved) {
+        return false;
+    }
+    predicatesResolved = false;
+    int numBranches = nextBranches.size();
+    nextBranches.removeIf(this::IsDeadBranch);
+    int numDropped = numBranches - nextBranches.size();
+    stats.branchesKilled += numDropped;
+    return numDropped != 0;
+}
+
+/** Check if the branch should be dropped due to a resolved predicate. */
+private boolean
+IsDeadBranch(ParserNode branch)
+{
+    if (branch.lookahead != null) {
+        return branch.lookahead.status != PredicateStatus.PENDING;
+    }
+    return branch.pending != null && branch.pending.IsFailed();
+}
+
+/** Drop main branches competing with the active cut. Branches created after the cut and branches
+ * within the cut scope node are kept.
+ */
+private void
+ApplyCut(ArrayList<ParserNode> branches)
+{
+    int numBranches = branches.size();
+    branches.removeIf(branch -> branch.lookahead == null && branch.cutMark != cutSerial &&
+                      !HasAncestor(branch, cutScope));
+    stats.branchesKilled += numBranches - branches.size();
+    cutActive = false;
+    cutScope = null;
+}
+
+/** Check if the specified node is in the branch parents chain. */
+private static boolean
+HasAncestor(ParserNode branch, ParserNode ancestor)
+{
+    if (ancestor == null) {
+        return false;
+    }
+    for (ParserNode node = branch; node != null && node.depth >= ancestor.depth;
+         node = node.parent) {
+        if (node == ancestor) {
+            return true;
+        }
+    }
+    return false;
+}
+
+/** Get the previous character node shared by all main branches in the list, null if they differ
+ * or there are no main branches.
+ */
+private static ParserNode
+FindCommonPrev(ArrayList<ParserNode> branches)
+{
+    ParserNode commonPrev = null;
+    for (ParserNode branch: branches) {
+        if (branch.lookahead != null) {
+            continue;
+        }
+        if (branch.prev == null || (commonPrev != null && branch.prev != commonPrev)) {
+            return null;
+        }
+        commonPrev = branch.prev;
+    }
+    return commonPrev;
+}
+
+/** Check if there are main (not lookahead) branches in the list. */
+private static boolean
+HasMainBranches(ArrayList<ParserNode> branches)
+{
+    for (ParserNode branch: branches) {
+        if (branch.lookahead == null) {
+            return true;
+        }
+    }
+    return false;
+}
+
 /** Called when input text is fully processed. */
 private void
 Finalize()
 {
+    /* Tokens which can end here are completed, their tips are replaced by following branches. */
+    int numBranches = curBranches.size();
+    for (int i = 0; i < numBranches; i++) {
+        ParserNode branch = curBranches.get(i);
+        if (IsTokenEnd(branch)) {
+            ExpandToken(branch);
+            curBranches.set(i, null);
+        }
+    }
+    curBranches.removeIf(branch -> branch == null);
+    if (cutActive) {
+        ApplyCut(curBranches);
+    }
+    /* Predicates not matched so far are not matched at the input end. */
+    for (PredicateState ps: pendingPredicates) {
+        ps.Resolve(false);
+        predicatesResolved = true;
+    }
+    pendingPredicates.clear();
+    if (predicatesResolved) {
+        predicatesResolved = false;
+        curBranches.removeIf(this::IsDeadBranch);
+        if (curBranches.isEmpty()) {
+            throw new ParseException(curPos, "Invalid syntax");
+        }
+    }
+
     /* Check if we have end-of-file node in current branches list. If there are several ones then
      * there is an ambiguity. If there is no end-of-file node then there is incomplete node(s).
      */
@@ -393,7 +1103,23 @@ Finalize()
         }
 
     } else if (numEof > 1) {
-        summary.Error(curPos, ErrorCode.AMBIGUOUS_SYNTAX, "Ambiguous syntax");
+        if (forestOutput) {
+            forest = new ParseForest();
+            forest.utf8Strings = ast.utf8Strings;
+            forest.symbols = ast.symbols;
+            forest.astIndex = ast.index != null;
+            for (ParserNode branch: curBranches) {
+                if (branch.grammarNode == null) {
+                    AddForestDerivation(branch);
+                }
+            }
+            if (forest.GetRoot() == null) {
+                forest = null;
+            }
+        }
+        if (forest == null) {
+            summary.Error(curPos, ErrorCode.AMBIGUOUS_SYNTAX, "Ambiguous syntax");
+        }
 
     } else {
         CommitBranch(eofBranch.prev);
@@ -402,9 +1128,9 @@ Finalize()
     HashSet<Ast.Node> astNodes = new HashSet<>();
     for (ParserNode branch: curBranches) {
         if (branch.grammarNode == null) {
-            if (numEof > 1) {
+            if (numEof > 1 && forest == null) {
                 Ast.Node astNode = branch.FindAstNode();
-                if (astNodes.add(astNode)) {
+                if (astNode != null && astNodes.add(astNode)) {
                     summary.Info(astNode.startPosition,
                                  InfoCode.AMBIGUOUS_SYNTAX_CANDIDATE,
                                  "Ambiguous syntax candidate: %s",
@@ -412,12 +1138,144 @@ Finalize()
                 }
             }
         }
-        branch.Release();
     }
     curBranches.clear();
 
-    /* Commit all uncommitted AST nodes. */
-    CommitAstNodes(null);
+    /* Commit all uncommitted AST nodes. They are represented by the forest if it is built. */
+    if (forest == null) {
+        CommitAstNodes(null, null);
+    }
+}
+
+/** Replay uncommitted characters of the specified end-of-file branch in the same way as
+ * CommitChar() does but creating derivations instead of AST nodes, and merge the result into the
+ * forest. Uncommitted AST nodes are represented by derivations which include their existing
+ * content.
+ */
+private void
+AddForestDerivation(ParserNode eofBranch)
+{
+    ArrayDeque<ParserNode> charNodes = new ArrayDeque<>();
+    for (ParserNode node = eofBranch.prev; node != null; node = node.prev) {
+        charNodes.addFirst(node);
+    }
+    IdentityHashMap<ParserNode, ParseForest.Derivation> derivations = new IdentityHashMap<>();
+    IdentityHashMap<Ast.Node, ParseForest.Derivation> openDerivations = new IdentityHashMap<>();
+    ParseForest.Derivation root = null;
+
+    for (ParserNode charNode: charNodes) {
+        ParseForest.Derivation derivation = null;
+        /* Parser node the derivation is created for. */
+        ParserNode derivationNode = null;
+        boolean attached = false;
+        /* All ancestors are walked to update end positions. */
+        for (ParserNode node = charNode; node != null; node = node.parent) {
+            ParseForest.Derivation nodeDerivation;
+            boolean created = false;
+            if (node.astNode != null) {
+                nodeDerivation = GetOpenDerivation(node.astNode, openDerivations);
+            } else if (node.grammarNode.isVal) {
+                nodeDerivation = derivations.get(node);
+                if (nodeDerivation == null) {
+                    nodeDerivation = new ParseForest.Derivation(node.grammarNode,
+                                                                charNode.inputPosition);
+                    derivations.put(node, nodeDerivation);
+                    created = true;
+                }
+            } else {
+                continue;
+            }
+            nodeDerivation.endPosition = charNode.inputPosition;
+            if (!attached) {
+                if (derivation == null && node.grammarNode.wantValString) {
+                    if (nodeDerivation.str == null) {
+                        nodeDerivation.str = new StringBuilder();
+                    }
+                    nodeDerivation.str.append((char)charNode.matchedChar);
+                } else if (derivation != null) {
+                    nodeDerivation.AddChild(derivation, GetForestSlot(derivationNode, node));
+                }
+                attached = !created;
+            }
+            derivation = nodeDerivation;
+            derivationNode = node;
+            if (node.parent == null) {
+                root = nodeDerivation;
+            }
+        }
+    }
+    if (root == null) {
+        return;
+    }
+    for (ParseForest.Derivation derivation: openDerivations.values()) {
+        SetOpenDerivationEnd(derivation);
+    }
+    forest.AddDerivation(root);
+}
+
+private ParseForest.Derivation
+GetOpenDerivation(Ast.Node astNode,
+                  IdentityHashMap<Ast.Node, ParseForest.Derivation> openDerivations)
+{
+    ParseForest.Derivation derivation = openDerivations.get(astNode);
+    if (derivation != null) {
+        return derivation;
+    }
+    derivation = new ParseForest.Derivation(astNode.grammarNode, astNode.startPosition);
+    openDerivations.put(astNode, derivation);
+    if (astNode.strBuf != null) {
+        derivation.str = new StringBuilder(astNode.strBuf);
+    }
+    if (astNode.children != null) {
+        for (Ast.Node child: astNode.children) {
+            derivation.AddChild(child.endPosition != null ?
+                child : GetOpenDerivation(child, openDerivations), null);
+        }
+    }
+    return derivation;
+}
+
+/** Get grammar slot for the forest (see ParseForest.Derivation.AddChild()): grammar nodes path
+ * from the child node to its parent value node with the repetition state of each path node. The
+ * state is the number of repetitions including the current one, saturated at the minimal quantity
+ * for unbounded nodes since further repetitions do not affect what may follow.
+ */
+private static ArrayList<Object>
+GetForestSlot(ParserNode childNode, ParserNode parentNode)
+{
+    ArrayList<Object> slot = new ArrayList<>();
+    for (ParserNode node = childNode; node != parentNode; node = node.parent) {
+        Grammar.Node grammarNode = node.grammarNode;
+        int numRepeated = node.numRepeated + 1;
+        if (grammarNode.GetMaxQuantity() == -1) {
+            numRepeated = Math.min(numRepeated, grammarNode.GetMinQuantity());
+        }
+        slot.add(grammarNode);
+        slot.add(numRepeated);
+    }
+    return slot;
+}
+
+/** Set end position of uncommitted AST node derivation which has no characters in the replayed
+ * branch.
+ */
+private void
+SetOpenDerivationEnd(ParseForest.Derivation derivation)
+{
+    if (derivation.endPosition != null) {
+        return;
+    }
+    if (derivation.children.isEmpty()) {
+        derivation.endPosition = lastCommitPos;
+        return;
+    }
+    Object lastChild = derivation.children.get(derivation.children.size() - 1);
+    if (lastChild instanceof ParseForest.Derivation) {
+        SetOpenDerivationEnd((ParseForest.Derivation)lastChild);
+        derivation.endPosition = ((ParseForest.Derivation)lastChild).endPosition;
+    } else {
+        derivation.endPosition = ((Ast.Node)lastChild).endPosition;
+    }
 }
 
 private void
@@ -426,39 +1284,422 @@ ProcessChar(int c)
     int numBranchesMatched = 0;
     ParserNode matchedBranch = null;
     InputPosition _curPos = new InputPosition(curPos);
-    for (ParserNode node: curBranches) {
-        if (node.grammarNode == null || !((Grammar.CharNode)node.grammarNode).MatchChar(c)) {
-            node.Release();
+    /* Indexed loop since ended tokens append branches to the current list. */
+    for (int i = 0; i < curBranches.size(); i++) {
+        ParserNode node = curBranches.get(i);
+        if ((node.pending != null || node.lookahead != null) && IsDeadBranch(node)) {
+            /* Predicate resolved while processing this character. */
+            stats.branchesKilled++;
+            continue;
+        }
+        if (!MatchChar(node, c)) {
+            if (IsTokenEnd(node)) {
+                /* The token ends before this character, the following branches are matched
+                 * against it in this pass.
+                 */
+                ExpandToken(node);
+            } else if (profile != null && node.grammarNode != null) {
+                profile.GetEntry(GetProfileNode(node)).branchesDropped++;
+            }
             continue;
         }
         node.matchedChar = c;
         node.inputPosition = _curPos;
-        numBranchesMatched++;
-        matchedBranch = node;
+        if (node.lookahead == null) {
+            numBranchesMatched++;
+            matchedBranch = node;
+        }
+        curPending = node.pending;
+        curLookahead = node.lookahead;
+        curCutMark = node.cutMark;
 
+        long startTime = profile != null ? System.nanoTime() : 0;
         /* Find candidates for next character matching. */
-        FindNextCharNodes(node);
-        node.Release();
+        if (node.grammarNode instanceof Grammar.LiteralsNode.StepNode) {
+            ProcessLiteralStep(node, c);
+        } else if (node.grammarNode instanceof Grammar.TokenStepNode) {
+            ProcessTokenStep(node, c);
+        } else {
+            FindNextCharNodes(node);
+        }
+        if (profile != null) {
+            ParserProfile.Entry entry = profile.GetEntry(GetProfileNode(node));
+            entry.charsMatched++;
+            entry.timeNs += System.nanoTime() - startTime;
+        }
     }
 
+    boolean branchesDropped = UpdatePredicates();
+    if (cutActive) {
+        ApplyCut(nextBranches);
+        branchesDropped = true;
+        /* The prefix is committed if all the remaining branches follow the same character. */
+        ParserNode commonPrev = FindCommonPrev(nextBranches);
+        if (commonPrev != null) {
+            numBranchesMatched = 1;
+            matchedBranch = commonPrev;
+        }
+    }
+    if (branchesDropped && !HasMainBranches(nextBranches)) {
+        numBranchesMatched = 0;
+    }
     if (numBranchesMatched == 0) {
         throw new ParseException(curPos, "Invalid syntax");
     }
 
     SwapBranches();
 
-    System.out.format("'%c' at %s, %d branches\n", c, curPos, curBranches.size());//XXX
+    stats.numChars++;
+    stats.branchesSum += curBranches.size();
+    if (curBranches.size() > stats.peakBranches) {
+        stats.peakBranches = curBranches.size();
+    }
+    if (profile != null) {
+        profile.CharsProcessed(1);
+    }
 
     if (numBranchesMatched == 1) {
+        /* Should be checked before commit since it releases the matched branch. Lookahead
+         * branches are not reproduced by a run.
+         */
+        if (pendingPredicates.isEmpty()) {
+            DetectRun(matchedBranch);
+        }
         CommitBranch(matchedBranch);
     }
     prevPos = _curPos;
 
-    curPos.FeedChar(c);
+    FeedPosition(curPos, c);
+    Reclaim();
+}
+
+/** Add new branch tip for next character matching. */
+private void
+AddBranch(ParserNode node)
+{
+    node.pending = curPending;
+    node.lookahead = curLookahead;
+    node.cutMark = curCutMark;
+    nextBranches.add(node);
+    if (profile != null) {
+        profile.GetEntry(GetProfileNode(node)).branchesCreated++;
+    }
+}
+
+/** Get grammar node to attribute the branch statistics to. */
+private Grammar.Node
+GetProfileNode(ParserNode node)
+{
+    ParserNode namedNode = node.FindNamedNode();
+    return namedNode != null ? namedNode.grammarNode : node.grammarNode;
+}
+
+/** Check if the character matches the specified branch tip. */
+private boolean
+MatchChar(ParserNode node, int c)
+{
+    if (node.grammarNode instanceof Grammar.CharNode) {
+        Grammar.CharNode charNode = (Grammar.CharNode)node.grammarNode;
+        return byteInput != null ? charNode.MatchByte(c) : charNode.MatchChar(c);
+    }
+    if (node.grammarNode instanceof Grammar.LiteralsNode.StepNode) {
+        Grammar.LiteralsNode literalsNode = (Grammar.LiteralsNode)node.parent.grammarNode;
+        return literalsNode.NextState(node.stepState, GetMatchChar(c)) != -1;
+    }
+    if (node.grammarNode instanceof Grammar.TokenStepNode) {
+        return node.parent.grammarNode.token.NextState(node.stepState, GetMatchChar(c)) != -1;
+    }
+    /* End-of-file node. */
+    return false;
+}
+
+/** Advance literals node matching by the matched character. Next step is created if some literal
+ * can be continued, the literals node is completed if some literal ends.
+ */
+private void
+ProcessLiteralStep(ParserNode node, int c)
+{
+    Grammar.LiteralsNode literalsNode = (Grammar.LiteralsNode)node.parent.grammarNode;
+    int state = literalsNode.NextState(node.stepState, GetMatchChar(c));
+    if (literalsNode.HasTransitions(state)) {
+        ParserNode stepNode = AllocateNode(node.grammarNode);
+        stepNode.stepState = state;
+        stepNode.SetParent(node.parent);
+        stepNode.SetPrev(node);
+        AddBranch(stepNode);
+    }
+    if (literalsNode.IsFinalState(state)) {
+        FindNextCharNodes(node);
+    }
+}
+
+/** Advance token matching by the matched character. The token is completed immediately only if
+ * it cannot be continued, otherwise the decision is postponed until the next character (see
+ * IsTokenEnd()).
+ */
+private void
+ProcessTokenStep(ParserNode node, int c)
+{
+    TokenAutomaton token = node.parent.grammarNode.token;
+    int state = token.NextState(node.stepState, GetMatchChar(c));
+    if (token.HasTransitions(state)) {
+        ParserNode stepNode = AllocateNode(node.grammarNode);
+        stepNode.stepState = state;
+        stepNode.SetParent(node.parent);
+        stepNode.SetPrev(node);
+        AddBranch(stepNode);
+    } else {
+        FindNextCharNodes(node);
+    }
+}
+
+/** Check if the branch is a token tip in which the token may end. Such a tip is completed when
+ * the next character does not continue the token.
+ */
+private boolean
+IsTokenEnd(ParserNode node)
+{
+    return node.grammarNode instanceof Grammar.TokenStepNode &&
+        node.parent.grammarNode.token.IsFinalState(node.stepState);
 }
 
-/** Make branches in "nextBranches" member be current branches ("curBranches" member). Reference to
- * nodes in curBranches should already be released.
+/** Complete the token ended in the specified tip. Branches following the token are appended to
+ * the current branches.
+ */
+private void
+ExpandToken(ParserNode node)
+{
+    ArrayList<ParserNode> _nextBranches = nextBranches;
+    nextBranches = curBranches;
+    /* The tip chain is the same as for the last token character, which is the tip "prev". */
+    FindNextCharNodes(node, node.prev);
+    nextBranches = _nextBranches;
+}
+
+/** Check if the next branches contain an equivalent of the just matched branch. If so, each next
+ * character matched by this branch only results in the same set of branches so the parser enters
+ * a run state. Called with next branches already swapped into the current ones.
+ */
+private void
+DetectRun(ParserNode matchedBranch)
+{
+    runBranch = null;
+    if (!(matchedBranch.grammarNode instanceof Grammar.CharNode) &&
+        !(matchedBranch.grammarNode instanceof Grammar.TokenStepNode)) {
+        return;
+    }
+    for (ParserNode branch: curBranches) {
+        if (branch.grammarNode != matchedBranch.grammarNode) {
+            continue;
+        }
+        ParserNode boundary = FindRunBoundary(matchedBranch, branch);
+        if (boundary != null) {
+            runBranch = branch;
+            runBoundary = boundary;
+            break;
+        }
+    }
+    if (runBranch == null) {
+        return;
+    }
+    runStopNodes.clear();
+    for (ParserNode branch: curBranches) {
+        if (branch != runBranch && branch.grammarNode != null) {
+            runStopNodes.add(branch);
+        }
+    }
+}
+
+/** Compare parents chains of two branches.
+ *
+ * @return Nearest common parent if the chains are equivalent up to it, null otherwise.
+ */
+private ParserNode
+FindRunBoundary(ParserNode branch1, ParserNode branch2)
+{
+    /* Equivalent chains have the same length to the common parent. This rejects chains of
+     * recursive nodes shifted by a level without walking them to the root.
+     */
+    if (branch1.depth != branch2.depth) {
+        return null;
+    }
+    ParserNode node1 = branch1, node2 = branch2;
+    while (node1 != node2) {
+        if (node1 == null || node2 == null || node1.grammarNode != node2.grammarNode ||
+            GetRepeatKey(node1) != GetRepeatKey(node2) || node1.stepState != node2.stepState) {
+            return null;
+        }
+        node1 = node1.parent;
+        node2 = node2.parent;
+    }
+    return node1;
+}
+
+/** Get repetition counter value which is significant for further matching. All values above the
+ * minimal quantity are equivalent for unlimited quantity.
+ */
+private int
+GetRepeatKey(ParserNode node)
+{
+    Grammar.Node grammarNode = node.grammarNode;
+    if (grammarNode.GetMaxQuantity() == -1 && node.numRepeated >= grammarNode.GetMinQuantity()) {
+        return -1;
+    }
+    return node.numRepeated;
+}
+
+/** Consume characters while in a run state.
+ *
+ * @return Position of the first character which terminates the run, block size if all the
+ *      characters consumed.
+ */
+private int
+ProcessRun(char[] buf, int pos, int size)
+{
+    /* Either character node or token tip with the state looped on the run characters. */
+    Grammar.CharNode runNode = runBranch.grammarNode instanceof Grammar.CharNode ?
+        (Grammar.CharNode)runBranch.grammarNode : null;
+    TokenAutomaton runToken = runNode == null ? runBranch.parent.grammarNode.token : null;
+    int runState = runBranch.stepState;
+    /* Characters are appended directly into the nearest AST node if there are no valuable nodes
+     * created on each iteration.
+     */
+    boolean perCharCommit = false;
+    for (ParserNode node = runBranch; node != runBoundary; node = node.parent) {
+        if (node.grammarNode.isVal) {
+            perCharCommit = true;
+            break;
+        }
+    }
+    Ast.Node strNode = null;
+    if (!perCharCommit) {
+        for (ParserNode node = runBoundary; node != null; node = node.parent) {
+            if (node.astNode != null) {
+                if (node.grammarNode.wantValString) {
+                    strNode = node.astNode;
+                }
+                break;
+            }
+        }
+    }
+
+    Grammar.Node profileNode = profile != null ? GetProfileNode(runBranch) : null;
+    long startTime = profile != null ? System.nanoTime() : 0;
+    int startPos = pos;
+    while (pos < size) {
+        int c = buf[pos];
+        boolean matched = runNode != null ?
+            (byteInput != null ? runNode.MatchByte(c) : runNode.MatchChar(c)) :
+            runToken.NextState(runState, GetMatchChar(c)) == runState;
+        if (!matched || IsRunStopChar(c)) {
+            runBranch = null;
+            break;
+        }
+        if (perCharCommit) {
+            InputPosition _curPos = new InputPosition(curPos);
+            runBranch.matchedChar = c;
+            runBranch.inputPosition = _curPos;
+            CommitChar(runBranch);
+            /* Restore pristine state of the nodes which are created anew on each iteration. */
+            for (ParserNode node = runBranch; node != runBoundary; node = node.parent) {
+                node.astNode = null;
+                node.inputPosition = null;
+            }
+            runBranch.matchedChar = -1;
+            prevPos = _curPos;
+        } else {
+            if (pos == startPos) {
+                for (ParserNode node = runBoundary; node != null; node = node.parent) {
+                    if (node.astNode != null) {
+                        break;
+                    }
+                    if (node.inputPosition == null) {
+                        node.inputPosition = new InputPosition(curPos);
+                    }
+                }
+            }
+            runLastPos.curOffset = curPos.curOffset;
+            runLastPos.curLine = curPos.curLine;
+            runLastPos.curCol = curPos.curCol;
+        }
+        FeedPosition(curPos, c);
+        pos++;
+    }
+    if (!perCharCommit && pos > startPos) {
+        prevPos = new InputPosition(runLastPos);
+        if (strNode != null) {
+            strNode.AppendChars(buf, startPos, pos - startPos);
+        }
+    }
+    stats.numChars += pos - startPos;
+    stats.branchesSum += (long)(pos - startPos) * curBranches.size();
+    if (pos > startPos) {
+        stats.numCommits++;
+        stats.numCommittedChars += pos - startPos;
+    }
+    if (profileNode != null && pos > startPos) {
+        ParserProfile.Entry entry = profile.GetEntry(profileNode);
+        entry.charsMatched += pos - startPos;
+        entry.timeNs += System.nanoTime() - startTime;
+        profile.CharsProcessed(pos - startPos);
+    }
+    return pos;
+}
+
+private boolean
+IsRunStopChar(int c)
+{
+    for (int i = 0; i < runStopNodes.size(); i++) {
+        ParserNode node = runStopNodes.get(i);
+        if (MatchChar(node, c) || IsTokenEnd(node)) {
+            return true;
+        }
+    }
+    return false;
+}
+
+/** Read next block of byte input, each byte is stored in a character.
+ *
+ * @return Number of bytes read, -1 if the input end reached.
+ */
+private int
+ReadBytes(char[] buf)
+{
+    int size = Math.min(buf.length, byteInput.remaining());
+    if (size == 0) {
+        return -1;
+    }
+    if (byteBuf == null) {
+        byteBuf = new byte[buf.length];
+    }
+    byteInput.get(byteBuf, 0, size);
+    for (int i = 0; i < size; i++) {
+        buf[i] = (char)(byteBuf[i] & 0xff);
+    }
+    return size;
+}
+
+/** Get character to match automata against. In byte mode all non-ASCII bytes are matched as the
+ * first non-ASCII character since the grammar does not distinguish non-ASCII characters.
+ */
+private int
+GetMatchChar(int c)
+{
+    return byteInput != null && c >= 0x80 ? 0x80 : c;
+}
+
+private void
+FeedPosition(InputPosition pos, int c)
+{
+    if (byteInput != null) {
+        pos.FeedByte(c);
+    } else {
+        pos.FeedChar(c);
+    }
+}
+
+/** Make branches in "nextBranches" member be current branches ("curBranches" member). Nodes in
+ * curBranches are dropped.
  */
 private void
 SwapBranches()
@@ -475,18 +1716,44 @@ SwapBranches()
  */
 private void
 FindNextCharNodes(ParserNode matchedNode)
+{
+    FindNextCharNodes(matchedNode, matchedNode);
+}
+
+/**
+ * @param matchedNode Node to start parents chain traversal from.
+ * @param prevNode Previous character node for the created branches.
+ */
+private void
+FindNextCharNodes(ParserNode matchedNode, ParserNode prevNode)
 {
     branchesStack.clear();
+    curPending = matchedNode.pending;
+    curLookahead = matchedNode.lookahead;
+    curCutMark = matchedNode.cutMark;
     ParserNode node = matchedNode;
 matchedNodeLoop:
     while (node != null) {
+        if (node.parent == null && node.lookahead != null) {
+            /* Predicate content completed. */
+            node.lookahead.Resolve(true);
+            predicatesResolved = true;
+            return;
+        }
+        if (node.grammarNode.isCut && curLookahead == null && !cutActive) {
+            /* Branches created from now on survive the cut. */
+            cutActive = true;
+            cutScope = node.parent != null ? node.parent.FindNamedNode() : null;
+            curCutMark = ++cutSerial;
+            stats.numCuts++;
+        }
         int numMatches = node.numRepeated + 1;
         if (node.grammarNode.CheckQuantity(numMatches) != Grammar.QuantityStatus.MAX_REACHED) {
             /* Create new instance for the same node. */
             ParserNode newNode = AllocateNode(node.grammarNode);
             newNode.numRepeated = numMatches;
             newNode.SetParent(node.parent);
-            if (!CreateBranches(newNode, matchedNode, branchesStack)) {
+            if (!CreateBranches(newNode, prevNode, branchesStack)) {
                 break;
             }
         }
@@ -499,7 +1766,7 @@ matchedNodeLoop:
             }
             ParserNode newNode = AllocateNode(nextGrammarNode);
             newNode.SetParent(node.parent);
-            if (!CreateBranches(newNode, matchedNode, branchesStack)) {
+            if (!CreateBranches(newNode, prevNode, branchesStack)) {
                 break matchedNodeLoop;
             }
             node = newNode;
@@ -508,7 +1775,9 @@ matchedNodeLoop:
     if (node == null) {
         /* End-of-file node if reached root. */
         ParserNode eof = new ParserNode(null);
-        eof.SetPrev(matchedNode);
+        eof.SetPrev(prevNode);
+        eof.pending = curPending;
+        eof.cutMark = curCutMark;
         nextBranches.add(eof);
     }
 }
@@ -619,6 +1888,15 @@ ValidateRecursion(Grammar.Node node, Grammar.Node targetNode, int charsBefore, i
     } else if (node instanceof Grammar.CharNode) {
         accumulatedChars = 1;
 
+    } else if (node instanceof Grammar.LiteralsNode) {
+        accumulatedChars = ((Grammar.LiteralsNode)node).GetMinLength();
+
+    } else if (node instanceof Grammar.PredicateNode) {
+        /* Lookahead starts at the current position and does not consume characters. */
+        Grammar.Node content = ((Grammar.PredicateNode)node).GetContent();
+        ValidateRecursion(content, targetNode, charsBefore,
+                          MaxMultiplier(maxMultiplier, content.GetMaxQuantity()), false);
+
     } else {
         throw new IllegalStateException("Unhandled node type " + node.getClass().getSimpleName());
     }
@@ -646,59 +1924,75 @@ CommitBranch(ParserNode branch)
     }
 
     for (ParserNode charNode: nodes) {
-        node = charNode;
-        Ast.Node astNode = null, firstAstNode = null;
-        boolean astCreated = false;
-        while (node != null) {
-            if (node.inputPosition == null) {
-                node.inputPosition = charNode.inputPosition;
-            }
-            if (node.astNode == null && node.grammarNode.isVal) {
-                node.astNode = ast.CreateNode();
-                node.astNode.grammarNode = node.grammarNode;
-                node.astNode.startPosition = charNode.inputPosition;
-                astCreated = true;
-                if (firstAstNode == null) {
-                    firstAstNode = node.astNode;
-                }
-            } else if (node.astNode != null) {
-                astCreated = false;
-            }
-            if (node.astNode != null) {
-                if (astNode == null && node.grammarNode.wantValString) {
-                    node.astNode.AppendChar(charNode.matchedChar);
-                } else if (astNode != null) {
-                    node.astNode.AppendChild(astNode);
-                }
-                astNode = node.astNode;
+        CommitChar(charNode);
+    }
+    stats.numCommits++;
+    stats.numCommittedChars += nodes.size();
+
+    for (ParserNode curBranch: curBranches) {
+        curBranch.prev = null;
+    }
+}
+
+/** Create AST nodes in the parents chain of the matched character node and put the character into
+ * them.
+ */
+private void
+CommitChar(ParserNode charNode)
+{
+    ParserNode node = charNode;
+    Ast.Node astNode = null, firstAstNode = null;
+    boolean astCreated = false;
+    lastCommitPos = charNode.inputPosition;
+    while (node != null) {
+        if (node.inputPosition == null) {
+            node.inputPosition = charNode.inputPosition;
+        }
+        if (node.astNode == null && node.grammarNode.isVal) {
+            node.astNode = ast.CreateNode();
+            stats.astNodesCreated++;
+            node.astNode.grammarNode = node.grammarNode;
+            node.astNode.startPosition = charNode.inputPosition;
+            astCreated = true;
+            if (firstAstNode == null) {
+                firstAstNode = node.astNode;
             }
-            if (astNode != null && !astCreated) {
-                break;
+        } else if (node.astNode != null) {
+            astCreated = false;
+        }
+        if (node.astNode != null) {
+            if (astNode == null && node.grammarNode.wantValString) {
+                node.astNode.AppendChar(charNode.matchedChar);
+            } else if (astNode != null) {
+                node.astNode.AppendChild(astNode);
             }
-            node = node.parent;
+            astNode = node.astNode;
         }
-        if (firstAstNode != null) {
-            CommitAstNodes(firstAstNode);
+        if (astNode != null && !astCreated) {
+            break;
         }
+        node = node.parent;
     }
-
-    for (ParserNode curBranch: curBranches) {
-        if (curBranch.prev != null) {
-            curBranch.prev.Release();
-            curBranch.prev = null;
-        }
+    if (firstAstNode != null) {
+        /* Loop is broken on the nearest already existing node if any. */
+        CommitAstNodes(firstAstNode, astCreated ? null : astNode);
     }
 }
 
 /** Commit all AST nodes which precede the specified new node.
  *
  * @param newNode Newly create node. Can be null to commit all uncommitted nodes (on finalization).
+ * @param existingAncestor Nearest ancestor of the new node which existed before it, null if none.
+ *                         All uncommitted nodes are in the last node parents chain, so ones below
+ *                         this ancestor are committed without checking ancestry for each of them,
+ *                         which would be quadratic for deeply nested input.
  */
 private void
-CommitAstNodes(Ast.Node newNode)
+CommitAstNodes(Ast.Node newNode, Ast.Node existingAncestor)
 {
+    assert existingAncestor == null || existingAncestor.endPosition == null;
     Ast.Node node = lastAstNode;
-    while (node != null && (newNode == null || !newNode.IsAncestor(node))) {
+    while (node != null && node != existingAncestor) {
         node.Commit(prevPos, summary);
         node = node.parent;
     }
@@ -0,0 +1,57 @@
+package org.roxy.parser;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/** Parsing algorithm which produces AST for the input text using the provided grammar. Results of
+ * all engines have the same shape for unambiguous input, so an engine can be chosen per grammar.
+ */
+public interface ParserEngine {
+
+enum Kind {
+    /** All alternatives explored in parallel breadth-first (Parser), ambiguity is reported. */
+    BRANCHING,
+    /** Variants are ordered choice, matching is memoized (PackratParser). */
+    PACKRAT
+}
+
+/** Create engine of the specified kind. */
+static ParserEngine
+Create(Kind kind, Grammar.Node grammar, Reader reader)
+{
+    switch (kind) {
+    case BRANCHING:
+        return new Parser(grammar, reader);
+    case PACKRAT:
+        return new PackratParser(grammar, reader);
+    default:
+        throw new IllegalArgumentException("Unhandled engine kind: " + kind);
+    }
+}
+
+/** Parse the whole input.
+ *
+ * @param summary Summary to report errors into.
+ * @return This engine.
+ */
+ParserEngine
+Parse(Summary summary)
+    throws IOException;
+
+ParserEngine
+Parse()
+    throws IOException;
+
+/** Request parsing cancellation. Can be called from any thread. Parsing is stopped with
+ * Parser.ErrorCode.CANCELLED error.
+ */
+void
+Cancel();
+
+Summary
+GetSummary();
+
+Ast
+GetResult();
+
+}
@@ -0,0 +1,12 @@
+package org.roxy.parser;
+
+/** Receives statistics of completed parses. Implementations should be thread-safe since parsers
+ * may run concurrently.
+ */
+@FunctionalInterface
+public interface ParserMetrics {
+
+void
+Record(ParseStats stats);
+
+}
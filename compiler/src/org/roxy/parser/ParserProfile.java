@@ -0,0 +1,119 @@
+package org.roxy.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** Per grammar node parsing statistics. Collected by parser when set by Parser.SetProfile(). Can be
+ * shared between several parsers (not concurrently) to accumulate statistics.
+ *
+ * Counters are attributed to the nearest named grammar node of the branch, so the report lists
+ * grammar rules rather than anonymous internal nodes.
+ */
+public class ParserProfile {
+
+public static class Entry {
+    /** Named grammar node, or unnamed node if there is no named parent. */
+    public final Grammar.Node node;
+    /** Number of branches created for matching the node characters. */
+    public long branchesCreated;
+    /** Number of branches released without matching a character. */
+    public long branchesDropped;
+    /** Number of characters matched by the node branches. */
+    public long charsMatched;
+    /** Time spent for processing matched characters, nanoseconds. */
+    public long timeNs;
+
+    public
+    Entry(Grammar.Node node)
+    {
+        this.node = node;
+    }
+
+    public String
+    GetName()
+    {
+        return node.name != null ? node.name : "<unnamed>";
+    }
+
+    @Override public String
+    toString()
+    {
+        return String.format("%-32s %12.3f ms %12d created %12d dropped %12d chars", GetName(),
+                             timeNs / 1e6, branchesCreated, branchesDropped, charsMatched);
+    }
+}
+
+/** Get profile entries sorted by cost, most expensive first. */
+public List<Entry>
+GetEntries()
+{
+    ArrayList<Entry> result = new ArrayList<>(entries.values());
+    result.sort((e1, e2) -> {
+        if (e1.timeNs != e2.timeNs) {
+            return Long.compare(e2.timeNs, e1.timeNs);
+        }
+        return Long.compare(e2.branchesCreated, e1.branchesCreated);
+    });
+    return result;
+}
+
+/** Get entry for the specified named node, null if nothing recorded for it. */
+public Entry
+GetEntry(String name)
+{
+    for (Entry e: entries.values()) {
+        if (name.equals(e.node.name)) {
+            return e;
+        }
+    }
+    return null;
+}
+
+/** Get total number of processed input characters. */
+public long
+GetCharsProcessed()
+{
+    return charsProcessed;
+}
+
+public void
+Reset()
+{
+    entries.clear();
+    charsProcessed = 0;
+}
+
+@Override public String
+toString()
+{
+    StringBuilder sb = new StringBuilder();
+    long totalTime = 0;
+    for (Entry e: GetEntries()) {
+        sb.append(e.toString());
+        sb.append('\n');
+        totalTime += e.timeNs;
+    }
+    sb.append(String.format("%d characters processed in %.3f ms\n", charsProcessed,
+                            totalTime / 1e6));
+    return sb.toString();
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private final HashMap<Grammar.Node, Entry> entries = new HashMap<>();
+private long charsProcessed;
+
+Entry
+GetEntry(Grammar.Node node)
+{
+    return entries.computeIfAbsent(node, Entry::new);
+}
+
+void
+CharsProcessed(long numChars)
+{
+    charsProcessed += numChars;
+}
+
+}
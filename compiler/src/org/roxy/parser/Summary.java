@@ -1,5 +1,11 @@
 package org.roxy.parser;
 
+import org.roxy.common.Json;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /** Compilation summary result is reported into this class. Compilation progress can be monitored in
@@ -172,6 +178,111 @@ toString()
     return sb.toString();
 }
 
+/** Serialize all records. */
+public void
+Write(DataOutput out)
+    throws IOException
+{
+    out.writeInt(records.size());
+    for (Record rec: records) {
+        out.writeByte(rec.type.ordinal());
+        out.writeInt(rec.code);
+        Parser.InputPosition.Write(out, rec.inputPosition);
+        byte[] message = rec.message.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(message.length);
+        out.write(message);
+    }
+}
+
+/** Deserialize records written by Write() and add them to this summary. */
+public Summary
+Read(DataInput in)
+    throws IOException
+{
+    return Read(in, Integer.MAX_VALUE);
+}
+
+/** Same as Read(DataInput) but sizes are checked against the available data size before
+ * allocating, so corrupted data is reported as IOException.
+ *
+ * @param maxDataSize Number of bytes available in the input.
+ */
+Summary
+Read(DataInput in, int maxDataSize)
+    throws IOException
+{
+    int numRecords = in.readInt();
+    /* Type, code, absent position and message size at least. */
+    if (numRecords < 0 || numRecords > maxDataSize / 10) {
+        throw new IOException("Invalid number of records: " + numRecords);
+    }
+    RecordType[] types = RecordType.values();
+    for (int i = 0; i < numRecords; i++) {
+        int typeIdx = in.readByte();
+        if (typeIdx < 0 || typeIdx >= types.length) {
+            throw new IOException("Invalid record type: " + typeIdx);
+        }
+        int code = in.readInt();
+        Parser.InputPosition pos = Parser.InputPosition.Read(in);
+        int messageSize = in.readInt();
+        if (messageSize < 0 || messageSize > maxDataSize) {
+            throw new IOException("Invalid message size: " + messageSize);
+        }
+        byte[] messageBytes = new byte[messageSize];
+        in.readFully(messageBytes);
+        AddRecord(types[typeIdx], code, pos, new String(messageBytes, StandardCharsets.UTF_8));
+    }
+    return this;
+}
+
+/** Append JSON object with errors and warnings counts and all records:
+ * {"errors": 1, "warnings": 0, "records": [{"type": "ERROR", "code": 2, "offset": 7, "line": 1,
+ * "col": 7, "message": "..."}]}. Code is -1 if not specified, position fields are omitted for
+ * records without position. Lines are one-based, columns and offsets are zero-based.
+ */
+public void
+WriteJson(StringBuilder sb)
+{
+    sb.append("{\"errors\": ").append(numErrors);
+    sb.append(", \"warnings\": ").append(numWarnings);
+    sb.append(", \"records\": [");
+    for (int i = 0; i < records.size(); i++) {
+        Record rec = records.get(i);
+        if (i != 0) {
+            sb.append(", ");
+        }
+        sb.append("{\"type\": \"").append(rec.type.name()).append('"');
+        sb.append(", \"code\": ").append(rec.code);
+        if (rec.inputPosition != null) {
+            sb.append(", \"offset\": ").append(rec.inputPosition.curOffset);
+            sb.append(", \"line\": ").append(rec.inputPosition.curLine);
+            sb.append(", \"col\": ").append(rec.inputPosition.curCol);
+        }
+        sb.append(", \"message\": ");
+        Json.AppendString(sb, rec.message);
+        sb.append('}');
+    }
+    sb.append("]}");
+}
+
+/** Add all records from the specified summary. */
+public Summary
+AddAll(Summary summary)
+{
+    return AddAll(summary, 0, summary.records.size());
+}
+
+/** Add records in the specified index range [fromIdx; toIdx) from the specified summary. */
+Summary
+AddAll(Summary summary, int fromIdx, int toIdx)
+{
+    for (int i = fromIdx; i < toIdx; i++) {
+        Record rec = summary.records.get(i);
+        AddRecord(rec.type, rec.code, rec.inputPosition, rec.message);
+    }
+    return this;
+}
+
 public final int
 GetErrorsCount()
 {
@@ -185,4 +296,26 @@ GetWarningsCount()
 }
 
 private int numErrors, numWarnings;
+
+/** Add record with already formatted message through the type-specific method so that subclasses
+ * see it.
+ */
+private void
+AddRecord(RecordType type, int code, Parser.InputPosition inputPosition, String message)
+{
+    switch (type) {
+    case ERROR:
+        Error(inputPosition, code, "%s", message);
+        break;
+    case WARNING:
+        Warning(inputPosition, code, "%s", message);
+        break;
+    case INFO:
+        Info(inputPosition, code, "%s", message);
+        break;
+    case VERBOSE:
+        Verbose(inputPosition, "%s", message);
+        break;
+    }
+}
 }
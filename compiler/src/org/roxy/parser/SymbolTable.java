@@ -0,0 +1,128 @@
+package org.roxy.parser;
+
+import java.util.Arrays;
+
+/** Interned string values of symbol grammar nodes (see Grammar.Node.Symbol()). Each distinct string
+ * gets a dense id in range [0; GetSize()), AST nodes with equal strings share the same String
+ * instance and id, so symbols can be compared by id. A table can be attached to a single parse or
+ * shared by several parsers, including concurrent ones (see Parser.SetSymbolTable(),
+ * ParseService.Scope.SetSymbolTable()). Ids are valid only in scope of the table.
+ */
+public class SymbolTable {
+
+/** Get id of the specified string, adding it if not yet present. */
+public synchronized int
+Intern(CharSequence chars)
+{
+    int hash = Hash(chars);
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (true) {
+        int id = slots[slot] - 1;
+        if (id == -1) {
+            break;
+        }
+        if (hashes[id] == hash && ContentEquals(symbols[id], chars)) {
+            return id;
+        }
+        slot = (slot + 1) & mask;
+    }
+    int id = numSymbols++;
+    if (id == symbols.length) {
+        symbols = Arrays.copyOf(symbols, id * 2);
+        hashes = Arrays.copyOf(hashes, id * 2);
+    }
+    symbols[id] = chars.toString();
+    hashes[id] = hash;
+    slots[slot] = id + 1;
+    if (numSymbols * 2 > slots.length) {
+        Rehash();
+    }
+    return id;
+}
+
+/** Get id of the specified string, -1 if it is not interned. */
+public synchronized int
+Find(CharSequence chars)
+{
+    int hash = Hash(chars);
+    int mask = slots.length - 1;
+    for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+        int id = slots[slot] - 1;
+        if (hashes[id] == hash && ContentEquals(symbols[id], chars)) {
+            return id;
+        }
+    }
+    return -1;
+}
+
+/** Get string by symbol id. */
+public synchronized String
+GetSymbol(int id)
+{
+    if (id < 0 || id >= numSymbols) {
+        throw new IndexOutOfBoundsException("Invalid symbol id: " + id);
+    }
+    return symbols[id];
+}
+
+/** Get number of interned symbols. */
+public synchronized int
+GetSize()
+{
+    return numSymbols;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int INITIAL_CAPACITY = 64;
+
+private String[] symbols = new String[INITIAL_CAPACITY];
+/** Hash of each symbol, indexed by id. */
+private int[] hashes = new int[INITIAL_CAPACITY];
+private int numSymbols;
+/** Open addressing hash table of symbol ids plus one, zero for empty slot. */
+private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+/** Same as String.hashCode() but for any characters sequence. */
+private static int
+Hash(CharSequence chars)
+{
+    int hash = 0;
+    for (int i = 0; i < chars.length(); i++) {
+        hash = 31 * hash + chars.charAt(i);
+    }
+    /* Spread high bits since the table index is taken from the low ones. */
+    return hash ^ (hash >>> 16);
+}
+
+private static boolean
+ContentEquals(String symbol, CharSequence chars)
+{
+    int len = chars.length();
+    if (symbol.length() != len) {
+        return false;
+    }
+    for (int i = 0; i < len; i++) {
+        if (symbol.charAt(i) != chars.charAt(i)) {
+            return false;
+        }
+    }
+    return true;
+}
+
+private void
+Rehash()
+{
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int id = 0; id < numSymbols; id++) {
+        int slot = hashes[id] & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = id + 1;
+    }
+}
+
+}
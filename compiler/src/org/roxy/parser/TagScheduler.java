@@ -0,0 +1,172 @@
+package org.roxy.parser;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Produces AST node tags asynchronously while parsing continues.
+ *
+ * A node tag is produced when the node is committed and all its subtree tags are produced, so a tag
+ * fabric sees the same subtree state as when invoked synchronously. Nodes without tag fabric just
+ * pass the completion to their parent. Each fabric reports into its own summary buffer, the buffers
+ * are merged with parser records in commit order, which gives the same records order as
+ * synchronous tags production.
+ *
+ * All methods except Run() are called in the parser thread.
+ */
+class TagScheduler {
+
+class Task {
+    final Ast.Node node;
+    /** Number of uncompleted children subtrees plus one for the node commit. */
+    final AtomicInteger numPending = new AtomicInteger(1);
+    /** Index of the first parser summary record following the node commit. */
+    int recordsIdx;
+    /** Records reported by the tag fabric. */
+    Summary summary;
+
+    Task(Ast.Node node)
+    {
+        this.node = node;
+    }
+}
+
+TagScheduler(Executor executor)
+{
+    this.executor = executor;
+}
+
+void
+OnAppendChild(Ast.Node parent)
+{
+    GetTask(parent).numPending.incrementAndGet();
+}
+
+void
+OnCommit(Ast.Node node, Summary summary)
+{
+    Task task = GetTask(node);
+    if (node.grammarNode.valTagFabric != null) {
+        task.recordsIdx = summary.records.size();
+        tasks.add(task);
+    }
+    Release(task);
+}
+
+/** Wait for all scheduled tags and merge summaries.
+ *
+ * @param parserSummary Records reported by parser.
+ * @param summary Resulting summary to add all records to.
+ */
+void
+Join(Summary parserSummary, Summary summary)
+{
+    boolean interrupted = false;
+    synchronized (this) {
+        while (numRunning != 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+    if (interrupted) {
+        Thread.currentThread().interrupt();
+    }
+    if (failure instanceof RuntimeException) {
+        throw (RuntimeException)failure;
+    } else if (failure instanceof Error) {
+        throw (Error)failure;
+    }
+
+    int recordsIdx = 0;
+    for (Task task: tasks) {
+        summary.AddAll(parserSummary, recordsIdx, task.recordsIdx);
+        recordsIdx = task.recordsIdx;
+        if (task.summary != null) {
+            summary.AddAll(task.summary);
+        }
+    }
+    summary.AddAll(parserSummary, recordsIdx, parserSummary.records.size());
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private final Executor executor;
+/** Tasks of nodes with tag fabric in commit order. */
+private final ArrayList<Task> tasks = new ArrayList<>();
+/** Guarded by this. */
+private int numRunning;
+private Throwable failure;
+
+private Task
+GetTask(Ast.Node node)
+{
+    if (node.tagTask == null) {
+        node.tagTask = new Task(node);
+    }
+    return node.tagTask;
+}
+
+private void
+Release(Task task)
+{
+    if (task.numPending.decrementAndGet() != 0) {
+        return;
+    }
+    if (task.node.grammarNode.valTagFabric == null) {
+        Complete(task);
+        return;
+    }
+    synchronized (this) {
+        numRunning++;
+    }
+    try {
+        executor.execute(() -> Run(task));
+    } catch (RejectedExecutionException e) {
+        Run(task);
+    }
+}
+
+private void
+Run(Task task)
+{
+    try {
+        boolean failed;
+        synchronized (this) {
+            failed = failure != null;
+        }
+        if (!failed) {
+            task.summary = new Summary();
+            task.node.tag = task.node.grammarNode.valTagFabric.Produce(task.node, task.summary);
+        }
+    } catch (Throwable t) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = t;
+            }
+        }
+    }
+    /* Completion may schedule parent task, so do it before decrementing running counter. */
+    Complete(task);
+    synchronized (this) {
+        numRunning--;
+        if (numRunning == 0) {
+            notifyAll();
+        }
+    }
+}
+
+private void
+Complete(Task task)
+{
+    Ast.Node node = task.node;
+    node.tagTask = null;
+    if (node.parent != null) {
+        Release(node.parent.tagTask);
+    }
+}
+
+}
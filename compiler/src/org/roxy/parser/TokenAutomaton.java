@@ -0,0 +1,347 @@
+package org.roxy.parser;
+
+import java.util.*;
+
+/** Deterministic finite automaton compiled from a token node content. Used for matching the token
+ * by a single parser branch with longest match semantic.
+ *
+ * The node subtree is converted into NFA (quantities are expanded into copies of the quantified
+ * fragment) which is then determinized by subset construction. Transitions of each state are
+ * stored as sorted characters intervals, with direct lookup table for ASCII characters. Token node
+ * own quantity is not part of the automaton, it is handled by the parser as for any other node.
+ */
+class TokenAutomaton {
+
+/** Maximal number of NFA states the token content may be expanded into. */
+static final int MAX_NFA_STATES = 10000;
+/** Maximal number of DFA states. */
+static final int MAX_DFA_STATES = 4096;
+
+/**
+ * @param tokenNode Compiled token node. Its subtree should not be recursive, should not contain
+ *                  valuable nodes and should not match empty string.
+ */
+TokenAutomaton(Grammar.Node tokenNode)
+{
+    this.tokenNode = tokenNode;
+    int start = NewNfaState();
+    int accept = BuildContent(tokenNode, start, new ArrayDeque<>());
+    nfaStates.get(accept).accepting = true;
+    Determinize(start);
+    nfaStates = null;
+    if (isFinal[0]) {
+        throw new IllegalStateException("Token can match empty string\n" + tokenNode);
+    }
+}
+
+/** Get next state.
+ *
+ * @param state Current state, zero for initial state.
+ * @param c Next character.
+ * @return Next state, -1 if the character does not continue the token.
+ */
+int
+NextState(int state, int c)
+{
+    if (matchers != null) {
+        return matchers.NextState(matcherIdx, state, c);
+    }
+    if (c < ASCII_SIZE) {
+        return asciiTransitions[state][c];
+    }
+    int[] starts = intervalStarts[state];
+    int idx = Arrays.binarySearch(starts, c);
+    if (idx < 0) {
+        idx = -idx - 2;
+    }
+    return intervalTargets[state][idx];
+}
+
+/** Check if the token may end in the specified state. */
+boolean
+IsFinalState(int state)
+{
+    return isFinal[state];
+}
+
+/** Check if the token can be continued from the specified state. */
+boolean
+HasTransitions(int state)
+{
+    return hasTransitions[state];
+}
+
+int
+GetStatesCount()
+{
+    return isFinal.length;
+}
+
+/** Get sorted start characters of the state transition intervals. First one is always zero. */
+int[]
+GetIntervalStarts(int state)
+{
+    return intervalStarts[state];
+}
+
+/** Get target states of the state transition intervals, -1 for no transition. */
+int[]
+GetIntervalTargets(int state)
+{
+    return intervalTargets[state];
+}
+
+void
+SetMatchers(MatcherGenerator.Matchers matchers, int matcherIdx)
+{
+    this.matchers = matchers;
+    this.matcherIdx = matcherIdx;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private static final int ASCII_SIZE = 128;
+
+private static class NfaState {
+    final ArrayList<Integer> epsilon = new ArrayList<>();
+    final ArrayList<CharSet> transitionChars = new ArrayList<>();
+    final ArrayList<Integer> transitionStates = new ArrayList<>();
+    boolean accepting;
+}
+
+private final Grammar.Node tokenNode;
+private ArrayList<NfaState> nfaStates = new ArrayList<>();
+/** Sorted start characters of transition intervals for each state. First interval starts at zero,
+ * each interval lasts until the next one start.
+ */
+private int[][] intervalStarts;
+/** Target state for each interval, -1 if no transition. */
+private int[][] intervalTargets;
+private int[][] asciiTransitions;
+private boolean[] isFinal, hasTransitions;
+/** Generated matcher, null if interpreted. */
+private MatcherGenerator.Matchers matchers;
+private int matcherIdx;
+
+private int
+NewNfaState()
+{
+    if (nfaStates.size() >= MAX_NFA_STATES) {
+        throw new IllegalStateException("Token is too complex\n" + tokenNode);
+    }
+    nfaStates.add(new NfaState());
+    return nfaStates.size() - 1;
+}
+
+private void
+AddTransition(int from, CharSet chars, int to)
+{
+    NfaState state = nfaStates.get(from);
+    state.transitionChars.add(chars);
+    state.transitionStates.add(to);
+}
+
+/** Build NFA fragment for the node including its quantity.
+ *
+ * @param start Fragment start state.
+ * @param stack Nodes being built, used for recursion detection.
+ * @return Fragment end state.
+ */
+private int
+Build(Grammar.Node node, int start, ArrayDeque<Grammar.Node> stack)
+{
+    int numMin = node.GetMinQuantity(), numMax = node.GetMaxQuantity();
+    int state = start;
+    for (int i = 0; i < numMin; i++) {
+        state = BuildContent(node, state, stack);
+    }
+    if (numMax == -1) {
+        int loopStart = NewNfaState();
+        nfaStates.get(state).epsilon.add(loopStart);
+        int loopEnd = BuildContent(node, loopStart, stack);
+        nfaStates.get(loopEnd).epsilon.add(loopStart);
+        return loopStart;
+    }
+    if (numMax > numMin) {
+        int end = NewNfaState();
+        for (int i = numMin; i < numMax; i++) {
+            nfaStates.get(state).epsilon.add(end);
+            state = BuildContent(node, state, stack);
+        }
+        nfaStates.get(state).epsilon.add(end);
+        return end;
+    }
+    return state;
+}
+
+/** Build NFA fragment for single match of the node. */
+private int
+BuildContent(Grammar.Node node, int start, ArrayDeque<Grammar.Node> stack)
+{
+    if (stack.contains(node)) {
+        throw new IllegalStateException("Token cannot be recursive\n" + tokenNode);
+    }
+    if (node != tokenNode && node.isVal) {
+        throw new IllegalStateException("Token cannot contain valuable nodes\n" + tokenNode);
+    }
+    stack.push(node);
+    int end;
+
+    if (node instanceof Grammar.SequenceNode) {
+        end = start;
+        for (Grammar.Node child: node) {
+            end = Build(child, end, stack);
+        }
+
+    } else if (node instanceof Grammar.VariantsNode) {
+        end = NewNfaState();
+        for (Grammar.Node child: node) {
+            int childStart = NewNfaState();
+            nfaStates.get(start).epsilon.add(childStart);
+            nfaStates.get(Build(child, childStart, stack)).epsilon.add(end);
+        }
+
+    } else if (node instanceof Grammar.CharNode) {
+        end = NewNfaState();
+        AddTransition(start, ((Grammar.CharNode)node).GetCharSet(), end);
+
+    } else if (node instanceof Grammar.LiteralsNode) {
+        Grammar.LiteralsNode literalsNode = (Grammar.LiteralsNode)node;
+        end = NewNfaState();
+        for (String literal: literalsNode.GetLiterals()) {
+            int state = start;
+            int[] chars = literal.codePoints().toArray();
+            for (int i = 0; i < chars.length; i++) {
+                int next = i == chars.length - 1 ? end : NewNfaState();
+                int c = chars[i];
+                AddTransition(state,
+                              literalsNode.IsCaseSensitive() ? CharSet.Of(c) :
+                                  CharSet.Of(Character.toLowerCase(c), Character.toUpperCase(c)),
+                              next);
+                state = next;
+            }
+        }
+
+    } else {
+        throw new IllegalStateException("Unhandled node type " + node.getClass().getSimpleName());
+    }
+
+    stack.pop();
+    return end;
+}
+
+private BitSet
+Closure(BitSet states)
+{
+    BitSet result = (BitSet)states.clone();
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    states.stream().forEach(queue::add);
+    while (!queue.isEmpty()) {
+        for (int next: nfaStates.get(queue.poll()).epsilon) {
+            if (!result.get(next)) {
+                result.set(next);
+                queue.add(next);
+            }
+        }
+    }
+    return result;
+}
+
+/** Subset construction. DFA state zero is the initial state. */
+private void
+Determinize(int nfaStart)
+{
+    HashMap<BitSet, Integer> dfaIds = new HashMap<>();
+    ArrayList<BitSet> dfaStates = new ArrayList<>();
+    ArrayList<int[]> starts = new ArrayList<>(), targets = new ArrayList<>();
+    BitSet initial = new BitSet();
+    initial.set(nfaStart);
+    initial = Closure(initial);
+    dfaIds.put(initial, 0);
+    dfaStates.add(initial);
+
+    for (int dfaState = 0; dfaState < dfaStates.size(); dfaState++) {
+        BitSet states = dfaStates.get(dfaState);
+        /* Split characters space into intervals where the transitions set does not change. */
+        TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+            for (CharSet chars: nfaStates.get(s).transitionChars) {
+                for (int i = 0; i < chars.GetRangesCount(); i++) {
+                    bounds.add(chars.GetRangeMin(i));
+                    if (chars.GetRangeMax(i) < CharSet.MAX_CHAR) {
+                        bounds.add(chars.GetRangeMax(i) + 1);
+                    }
+                }
+            }
+        }
+        int[] stateStarts = new int[bounds.size()], stateTargets = new int[bounds.size()];
+        int numIntervals = 0;
+        for (int bound: bounds) {
+            BitSet next = new BitSet();
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                NfaState nfaState = nfaStates.get(s);
+                for (int i = 0; i < nfaState.transitionChars.size(); i++) {
+                    if (nfaState.transitionChars.get(i).Contains(bound)) {
+                        next.set(nfaState.transitionStates.get(i));
+                    }
+                }
+            }
+            int target = -1;
+            if (!next.isEmpty()) {
+                next = Closure(next);
+                Integer id = dfaIds.get(next);
+                if (id == null) {
+                    if (dfaStates.size() >= MAX_DFA_STATES) {
+                        throw new IllegalStateException("Token is too complex\n" + tokenNode);
+                    }
+                    id = dfaStates.size();
+                    dfaIds.put(next, id);
+                    dfaStates.add(next);
+                }
+                target = id;
+            }
+            /* Merge adjacent intervals with the same target. */
+            if (numIntervals != 0 && stateTargets[numIntervals - 1] == target) {
+                continue;
+            }
+            stateStarts[numIntervals] = bound;
+            stateTargets[numIntervals] = target;
+            numIntervals++;
+        }
+        starts.add(Arrays.copyOf(stateStarts, numIntervals));
+        targets.add(Arrays.copyOf(stateTargets, numIntervals));
+    }
+
+    int numStates = dfaStates.size();
+    intervalStarts = starts.toArray(new int[numStates][]);
+    intervalTargets = targets.toArray(new int[numStates][]);
+    asciiTransitions = new int[numStates][ASCII_SIZE];
+    isFinal = new boolean[numStates];
+    hasTransitions = new boolean[numStates];
+    for (int state = 0; state < numStates; state++) {
+        int[] stateStarts = intervalStarts[state], stateTargets = intervalTargets[state];
+        int idx = 0;
+        for (int c = 0; c < ASCII_SIZE; c++) {
+            while (idx + 1 < stateStarts.length && stateStarts[idx + 1] <= c) {
+                idx++;
+            }
+            asciiTransitions[state][c] = stateTargets[idx];
+        }
+        for (int target: stateTargets) {
+            if (target != -1) {
+                hasTransitions[state] = true;
+                break;
+            }
+        }
+        BitSet states = dfaStates.get(state);
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+            if (nfaStates.get(s).accepting) {
+                isFinal[state] = true;
+                break;
+            }
+        }
+    }
+}
+
+}
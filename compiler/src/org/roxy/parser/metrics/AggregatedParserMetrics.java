@@ -0,0 +1,147 @@
+package org.roxy.parser.metrics;
+
+import org.roxy.parser.ParseStats;
+import org.roxy.parser.ParserMetrics;
+
+/** Thread-safe parser metrics accumulated over all recorded parses. */
+public class AggregatedParserMetrics implements ParserMetrics {
+
+/** Upper bounds of parse duration histogram buckets, microseconds. Last bucket is unbounded. */
+public static final long[] DURATION_BUCKETS_US = {100, 1000, 10000, 100000, 1000000, 10000000};
+
+@Override public synchronized void
+Record(ParseStats stats)
+{
+    numParses++;
+    numChars += stats.numChars;
+    totalDurationNs += stats.durationNs;
+    long durationUs = stats.durationNs / 1000;
+    int bucket = 0;
+    while (bucket < DURATION_BUCKETS_US.length && durationUs >= DURATION_BUCKETS_US[bucket]) {
+        bucket++;
+    }
+    durationHistogram[bucket]++;
+    if (stats.peakBranches > peakBranches) {
+        peakBranches = stats.peakBranches;
+    }
+    branchesSum += stats.branchesSum;
+    nodesReused += stats.nodesReused;
+    nodesAllocated += stats.nodesAllocated;
+    if (stats.peakFreeNodes > peakFreeNodes) {
+        peakFreeNodes = stats.peakFreeNodes;
+    }
+    astNodesCreated += stats.astNodesCreated;
+    numCommits += stats.numCommits;
+    if (stats.peakRetainedInput > peakRetainedInput) {
+        peakRetainedInput = stats.peakRetainedInput;
+    }
+}
+
+public synchronized long
+GetParsesCount()
+{
+    return numParses;
+}
+
+public synchronized long
+GetCharsParsed()
+{
+    return numChars;
+}
+
+public synchronized long
+GetTotalDurationNs()
+{
+    return totalDurationNs;
+}
+
+/** Get throughput over all the parses, characters per second. */
+public synchronized double
+GetCharsPerSecond()
+{
+    return totalDurationNs == 0 ? 0 : numChars * 1e9 / totalDurationNs;
+}
+
+/** Get parse duration histogram. Element with index i is number of parses with duration less than
+ * DURATION_BUCKETS_US[i] microseconds (and not less than previous bound), last element is number
+ * of longer parses.
+ */
+public synchronized long[]
+GetDurationHistogram()
+{
+    return durationHistogram.clone();
+}
+
+public synchronized int
+GetPeakBranches()
+{
+    return peakBranches;
+}
+
+public synchronized double
+GetMeanBranches()
+{
+    return numChars == 0 ? 0 : (double)branchesSum / numChars;
+}
+
+public synchronized int
+GetPeakFreeNodes()
+{
+    return peakFreeNodes;
+}
+
+public synchronized double
+GetPoolHitRate()
+{
+    long total = nodesReused + nodesAllocated;
+    return total == 0 ? 0 : (double)nodesReused / total;
+}
+
+public synchronized long
+GetAstNodesCreated()
+{
+    return astNodesCreated;
+}
+
+/** Get mean number of commits per character. A commit covers characters processed since the
+ * previous one, so low value means long ambiguous regions (or long character runs).
+ */
+public synchronized double
+GetCommitsPerChar()
+{
+    return numChars == 0 ? 0 : (double)numCommits / numChars;
+}
+
+/** Get maximal number of retained input characters over parses with input retention enabled. */
+public synchronized long
+GetPeakRetainedInput()
+{
+    return peakRetainedInput;
+}
+
+public synchronized void
+Reset()
+{
+    numParses = 0;
+    numChars = 0;
+    totalDurationNs = 0;
+    durationHistogram = new long[DURATION_BUCKETS_US.length + 1];
+    peakBranches = 0;
+    branchesSum = 0;
+    nodesReused = 0;
+    nodesAllocated = 0;
+    peakFreeNodes = 0;
+    astNodesCreated = 0;
+    numCommits = 0;
+    peakRetainedInput = 0;
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private long numParses, numChars, totalDurationNs;
+private long[] durationHistogram = new long[DURATION_BUCKETS_US.length + 1];
+private int peakBranches, peakFreeNodes;
+private long branchesSum, nodesReused, nodesAllocated, astNodesCreated, numCommits;
+private long peakRetainedInput;
+
+}
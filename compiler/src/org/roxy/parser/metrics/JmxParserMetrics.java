@@ -0,0 +1,135 @@
+package org.roxy.parser.metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+
+/** Exposes aggregated parser metrics as a standard MBean. Method names follow JMX attribute naming
+ * conventions.
+ */
+public class JmxParserMetrics implements JmxParserMetricsMBean {
+
+public static final String DOMAIN = "org.roxy";
+
+public
+JmxParserMetrics(AggregatedParserMetrics metrics)
+{
+    this.metrics = metrics;
+}
+
+/** Register in the platform MBean server.
+ *
+ * @param name Value of "name" key property, distinguishes several metrics instances.
+ * @return Registered object name.
+ */
+public ObjectName
+Register(String name)
+    throws JMException
+{
+    ObjectName objectName = new ObjectName(DOMAIN + ":type=ParserMetrics,name=" +
+                                           ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    this.objectName = objectName;
+    return objectName;
+}
+
+/** Unregister from the platform MBean server if registered. */
+public void
+Unregister()
+    throws JMException
+{
+    if (objectName != null) {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        objectName = null;
+    }
+}
+
+@Override public long
+getParsesCount()
+{
+    return metrics.GetParsesCount();
+}
+
+@Override public long
+getCharsParsed()
+{
+    return metrics.GetCharsParsed();
+}
+
+@Override public long
+getTotalDurationMs()
+{
+    return metrics.GetTotalDurationNs() / 1000000;
+}
+
+@Override public double
+getCharsPerSecond()
+{
+    return metrics.GetCharsPerSecond();
+}
+
+@Override public long[]
+getDurationHistogram()
+{
+    return metrics.GetDurationHistogram();
+}
+
+@Override public long[]
+getDurationBucketsUs()
+{
+    return AggregatedParserMetrics.DURATION_BUCKETS_US.clone();
+}
+
+@Override public int
+getPeakBranches()
+{
+    return metrics.GetPeakBranches();
+}
+
+@Override public double
+getMeanBranches()
+{
+    return metrics.GetMeanBranches();
+}
+
+@Override public int
+getPeakFreeNodes()
+{
+    return metrics.GetPeakFreeNodes();
+}
+
+@Override public double
+getPoolHitRate()
+{
+    return metrics.GetPoolHitRate();
+}
+
+@Override public long
+getAstNodesCreated()
+{
+    return metrics.GetAstNodesCreated();
+}
+
+@Override public double
+getCommitsPerChar()
+{
+    return metrics.GetCommitsPerChar();
+}
+
+@Override public long
+getPeakRetainedInput()
+{
+    return metrics.GetPeakRetainedInput();
+}
+
+@Override public void
+reset()
+{
+    metrics.Reset();
+}
+
+// /////////////////////////////////////////////////////////////////////////////////////////////////
+
+private final AggregatedParserMetrics metrics;
+private ObjectName objectName;
+
+}
@@ -0,0 +1,48 @@
+package org.roxy.parser.metrics;
+
+/** Management interface of parser metrics exposed through JMX. */
+public interface JmxParserMetricsMBean {
+
+long
+getParsesCount();
+
+long
+getCharsParsed();
+
+long
+getTotalDurationMs();
+
+double
+getCharsPerSecond();
+
+long[]
+getDurationHistogram();
+
+long[]
+getDurationBucketsUs();
+
+int
+getPeakBranches();
+
+double
+getMeanBranches();
+
+int
+getPeakFreeNodes();
+
+double
+getPoolHitRate();
+
+long
+getAstNodesCreated();
+
+double
+getCommitsPerChar();
+
+long
+getPeakRetainedInput();
+
+void
+reset();
+
+}
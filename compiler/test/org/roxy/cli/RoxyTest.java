@@ -0,0 +1,155 @@
+package org.roxy.cli;
+
+import org.junit.Test;
+import org.roxy.parser.Grammar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static utils.Utils.AssertThrows;
+
+public class RoxyTest {
+
+public static class TestGrammar extends Grammar {
+    public
+    TestGrammar()
+    {
+        Node("identifier").Sequence(CharRange('a', 'z').OneToMany()).Val(null, true);
+        Node("number").Sequence(CharRange('0', '9').OneToMany()).Val(null, true);
+        Node("statement").Sequence(
+            NodeRef("identifier"), Char('='), NodeRef("number"), Char(';')).Val(null);
+        Node("file").Sequence(
+            Any(NodeRef("statement"), AnyChar(" \n")).NoneToMany()).Val(null);
+        Compile();
+    }
+}
+
+static final String GRAMMAR_SPEC = TestGrammar.class.getName() + ":file";
+
+String output, errOutput;
+
+int
+Run(String... args)
+    throws InterruptedException
+{
+    ByteArrayOutputStream out = new ByteArrayOutputStream(), err = new ByteArrayOutputStream();
+    int exitCode = Roxy.Run(args, new PrintStream(out, true), new PrintStream(err, true));
+    output = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    errOutput = new String(err.toByteArray(), StandardCharsets.UTF_8);
+    return exitCode;
+}
+
+static Path
+CreateFiles()
+    throws IOException
+{
+    Path dir = Files.createTempDirectory("roxy-cli");
+    Files.createDirectories(dir.resolve("sub"));
+    Files.write(dir.resolve("a.rx"), "a=1;\nbc=23;".getBytes(StandardCharsets.UTF_8));
+    Files.write(dir.resolve("sub/b.rx"), "b=2;".getBytes(StandardCharsets.UTF_8));
+    Files.write(dir.resolve("sub/c.rx"), "c=\"3\";".getBytes(StandardCharsets.UTF_8));
+    Files.write(dir.resolve("sub/d.txt"), "d=4;".getBytes(StandardCharsets.UTF_8));
+    return dir;
+}
+
+static void
+DeleteDir(Path dir)
+    throws IOException
+{
+    try (Stream<Path> s = Files.walk(dir)) {
+        for (Object file: s.sorted(Comparator.reverseOrder()).toArray()) {
+            Files.delete((Path)file);
+        }
+    }
+}
+
+@Test public void
+Basic()
+    throws Exception
+{
+    Path dir = CreateFiles();
+    try {
+        assert Run(GRAMMAR_SPEC, dir.resolve("a.rx").toString()) == 0;
+        assert output.equals(String.format(
+            "{\"file\": \"%s\", \"status\": \"OK\", " +
+            "\"summary\": {\"errors\": 0, \"warnings\": 0, \"records\": []}}\n",
+            dir.resolve("a.rx")));
+
+        assert Run("--jobs=1", GRAMMAR_SPEC, dir.resolve("sub/c.rx").toString()) == 1;
+        System.out.println(output);
+        assert output.contains("\"status\": \"OK\", \"summary\": {\"errors\": 1, ");
+        assert output.contains("{\"type\": \"ERROR\", \"code\": ");
+        assert output.contains("\"offset\": 2, \"line\": 1, \"col\": 2, \"message\": ");
+
+        assert Run("--format=text", GRAMMAR_SPEC, dir.resolve("sub/b.rx").toString()) == 0;
+        assert output.startsWith(dir.resolve("sub/b.rx") + ":\n");
+        assert output.contains("0 errors, 0 warnings");
+    } finally {
+        DeleteDir(dir);
+    }
+}
+
+@Test public void
+Paths()
+    throws Exception
+{
+    Path dir = CreateFiles();
+    try {
+        List<Path> files = Roxy.ExpandPath(dir.toString());
+        assert files.size() == 4;
+        assert files.get(0).equals(dir.resolve("a.rx"));
+        files = Roxy.ExpandPath(dir + "/**/*.rx");
+        assert files.size() == 2;
+        assert files.get(0).equals(dir.resolve("sub/b.rx"));
+        assert files.get(1).equals(dir.resolve("sub/c.rx"));
+        assert Roxy.ExpandPath(dir + "/*.rx").size() == 1;
+        assert Roxy.ExpandPath(dir + "/{a.rx,sub}/*").size() == 3;
+        AssertThrows(NoSuchFileException.class, () -> Roxy.ExpandPath(dir + "/*.none"));
+        AssertThrows(NoSuchFileException.class, () -> Roxy.ExpandPath(dir + "/none.rx"));
+
+        /* Results are printed in the arguments order, duplicates are parsed once. */
+        assert Run("--jobs=2", GRAMMAR_SPEC, dir + "/sub/*.txt", dir + "/**.rx",
+                   dir.resolve("a.rx").toString()) == 1;
+        String[] lines = output.split("\n");
+        assert lines.length == 4;
+        assert lines[0].startsWith("{\"file\": \"" + dir.resolve("sub/d.txt"));
+        assert lines[1].startsWith("{\"file\": \"" + dir.resolve("a.rx"));
+        assert lines[2].startsWith("{\"file\": \"" + dir.resolve("sub/b.rx"));
+        assert lines[3].startsWith("{\"file\": \"" + dir.resolve("sub/c.rx"));
+    } finally {
+        DeleteDir(dir);
+    }
+}
+
+@Test public void
+InvalidArguments()
+    throws Exception
+{
+    Path dir = CreateFiles();
+    try {
+        assert Run(GRAMMAR_SPEC) == 2;
+        assert errOutput.startsWith("Usage:");
+        assert Run("--format=xml", GRAMMAR_SPEC, dir.toString()) == 2;
+        assert Run("--jobs=0", GRAMMAR_SPEC, dir.toString()) == 2;
+        assert Run("--unknown", GRAMMAR_SPEC, dir.toString()) == 2;
+        assert Run("NoSuchGrammar:file", dir.toString()) == 2;
+        assert errOutput.startsWith("Grammar class not found");
+        assert Run(TestGrammar.class.getName() + ":none", dir.toString()) == 2;
+        assert errOutput.startsWith("Root node not found");
+        assert Run(GRAMMAR_SPEC, dir.resolve("none.rx").toString()) == 2;
+        assert errOutput.startsWith("No such file");
+        assert output.isEmpty();
+    } finally {
+        DeleteDir(dir);
+    }
+}
+
+}
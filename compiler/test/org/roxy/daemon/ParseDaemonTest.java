@@ -0,0 +1,272 @@
+package org.roxy.daemon;
+
+import org.junit.Test;
+import org.roxy.parser.Grammar;
+import org.roxy.parser.Summary;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import static utils.Utils.AssertThrows;
+
+public class ParseDaemonTest {
+
+Grammar grammar = new Grammar() {{
+    Node("identifier").Sequence(CharRange('a', 'z').OneToMany()).Val(null, true);
+    Node("number").Sequence(CharRange('0', '9').OneToMany()).Val(null, true);
+    Node("statement").Sequence(
+        NodeRef("identifier"), Char('='), NodeRef("number"), Char(';')).Val(null);
+    Node("file").Sequence(
+        Any(NodeRef("statement"), AnyChar(" \n")).NoneToMany()).Val(null);
+    Compile();
+}};
+
+@Test public void
+Basic()
+    throws Exception
+{
+    Path dir = Files.createTempDirectory("roxy-daemon");
+    Path socketFile = dir.resolve("daemon.sock");
+    Path file = dir.resolve("input.txt");
+    ParseDaemon daemon = new ParseDaemon().AddGrammar("test", grammar.FindNode("file"));
+    daemon.Start(socketFile);
+    try {
+        assert Files.exists(socketFile);
+
+        try (ParseClient client = new ParseClient(socketFile)) {
+            List<ParseClient.Result> results = client.Parse(
+                "test", true,
+                new String[] {"good", "bad", "empty"},
+                new String[] {"a=1;\nbc=23;", "a=%s;", ""});
+            assert results.size() == 3;
+
+            ParseClient.Result good = results.get(0);
+            assert good.name.equals("good");
+            assert good.summary.GetErrorsCount() == 0;
+            RemoteAstNode root = good.ast;
+            assert root.name.equals("file");
+            assert root.children.size() == 2;
+            RemoteAstNode stmt = root.children.get(1);
+            assert stmt.name.equals("statement");
+            assert stmt.parent == root;
+            assert stmt.children.get(0).str.equals("bc");
+            assert stmt.children.get(1).str.equals("23");
+            assert stmt.startPosition.curLine == 2;
+            assert stmt.endPosition.curOffset == 10;
+
+            ParseClient.Result bad = results.get(1);
+            System.out.println(bad.summary);
+            assert bad.summary.GetErrorsCount() == 1;
+            Summary.Record rec = bad.summary.records.get(0);
+            assert rec.type == Summary.RecordType.ERROR;
+            assert rec.inputPosition.curOffset == 2;
+
+            assert results.get(2).summary.GetErrorsCount() == 0;
+
+            /* Connection is reused for subsequent requests. */
+            results = client.Parse("test", false, new String[] {"x"}, new String[] {"x=1;"});
+            assert results.get(0).summary.GetErrorsCount() == 0;
+            assert results.get(0).ast == null;
+
+            boolean failed = false;
+            try {
+                client.Parse("unknown", false, new String[] {"x"}, new String[] {""});
+            } catch (IOException e) {
+                failed = true;
+            }
+            assert failed;
+
+            /* Parsing file from disk. */
+            Files.write(file, "q=5;".getBytes("UTF-8"));
+            results = client.Parse("test", true, file);
+            assert results.get(0).name.equals(file.toString());
+            assert results.get(0).ast.children.get(0).children.get(0).str.equals("q");
+        }
+
+        try (ParseClient client = new ParseClient(socketFile)) {
+            client.Shutdown();
+        }
+        daemon.Join();
+        assert !Files.exists(socketFile);
+    } finally {
+        daemon.Stop();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(socketFile);
+        Files.deleteIfExists(dir);
+    }
+}
+
+@Test public void
+AccessDenied()
+    throws Exception
+{
+    Path dir = Files.createTempDirectory("roxy-daemon");
+    Path socketFile = dir.resolve("daemon.sock");
+    ParseDaemon daemon = new ParseDaemon().AddGrammar("test", grammar.FindNode("file"));
+    daemon.Start(socketFile);
+    Path fakeFile = dir.resolve("fake.sock");
+    try {
+        String port = new String(Files.readAllBytes(socketFile), "UTF-8").split(" ")[0];
+        Files.write(fakeFile, (port + " 0123").getBytes("UTF-8"));
+        boolean failed = false;
+        try (ParseClient client = new ParseClient(fakeFile)) {
+            client.Parse("test", false, new String[] {"x"}, new String[] {""});
+        } catch (IOException e) {
+            failed = true;
+        }
+        assert failed;
+    } finally {
+        daemon.Stop();
+        daemon.Join();
+        Files.deleteIfExists(fakeFile);
+        Files.deleteIfExists(socketFile);
+        Files.deleteIfExists(dir);
+    }
+}
+
+/** Send raw handshake with the specified token length prefix.
+ *
+ * @return Response status.
+ */
+static int
+Handshake(DataInputStream in, DataOutputStream out, String token, int tokenLength)
+    throws IOException
+{
+    out.writeInt(Protocol.MAGIC);
+    out.writeInt(Protocol.VERSION);
+    out.writeInt(tokenLength);
+    if (token != null) {
+        out.write(token.getBytes(StandardCharsets.UTF_8));
+    }
+    out.flush();
+    return in.readByte();
+}
+
+@Test public void
+Limits()
+    throws Exception
+{
+    Path dir = Files.createTempDirectory("roxy-daemon");
+    Path socketFile = dir.resolve("daemon.sock");
+    ParseDaemon daemon = new ParseDaemon().AddGrammar("test", grammar.FindNode("file"));
+    daemon.Start(socketFile);
+    try {
+        String[] content =
+            new String(Files.readAllBytes(socketFile), StandardCharsets.UTF_8).trim().split(" ");
+        int port = Integer.parseInt(content[0]);
+        String token = content[1];
+
+        /* Huge token length is rejected without reading it. */
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            assert Handshake(in, out, null, Protocol.MAX_DATA_SIZE) == Protocol.STATUS_FAILED;
+            assert Protocol.ReadString(in).equals("Access denied");
+        }
+
+        /* Too many inputs. */
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            assert Handshake(in, out, token, token.length()) == Protocol.STATUS_OK;
+            out.writeByte(Protocol.CMD_PARSE);
+            Protocol.WriteString(out, "test");
+            out.writeByte(0);
+            out.writeInt(Protocol.MAX_INPUTS + 1);
+            out.flush();
+            assert in.readByte() == Protocol.STATUS_FAILED;
+            assert Protocol.ReadString(in).startsWith("Request rejected");
+            /* Connection is closed. */
+            assert in.read() == -1;
+        }
+
+        /* Too large input. */
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            assert Handshake(in, out, token, token.length()) == Protocol.STATUS_OK;
+            out.writeByte(Protocol.CMD_PARSE);
+            Protocol.WriteString(out, "test");
+            out.writeByte(0);
+            out.writeInt(1);
+            Protocol.WriteString(out, "x");
+            out.writeInt(Protocol.MAX_INPUT_SIZE + 1);
+            out.flush();
+            assert in.readByte() == Protocol.STATUS_FAILED;
+            assert Protocol.ReadString(in).startsWith("Request rejected");
+            assert in.read() == -1;
+        }
+
+        /* Checked by client before sending, the daemon is still serving. */
+        try (ParseClient client = new ParseClient(socketFile)) {
+            String[] names = new String[Protocol.MAX_INPUTS + 1];
+            String[] inputs = new String[names.length];
+            Arrays.fill(names, "x");
+            Arrays.fill(inputs, "");
+            AssertThrows(IllegalArgumentException.class,
+                         () -> client.Parse("test", false, names, inputs));
+            assert client.Parse("test", false, new String[] {"x"}, new String[] {"x=1;"})
+                .get(0).summary.GetErrorsCount() == 0;
+        }
+    } finally {
+        daemon.Stop();
+        daemon.Join();
+        Files.deleteIfExists(socketFile);
+        Files.deleteIfExists(dir);
+    }
+}
+
+@Test public void
+Connections()
+    throws Exception
+{
+    Path dir = Files.createTempDirectory("roxy-daemon");
+    Path socketFile = dir.resolve("daemon.sock");
+    ParseDaemon daemon = new ParseDaemon().AddGrammar("test", grammar.FindNode("file"))
+        .SetMaxConnections(2).SetHandshakeTimeout(200);
+    daemon.Start(socketFile);
+    try {
+        if (Files.getFileStore(socketFile).supportsFileAttributeView("posix")) {
+            assert Files.getPosixFilePermissions(socketFile).equals(
+                EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        }
+        int port = Integer.parseInt(
+            new String(Files.readAllBytes(socketFile), StandardCharsets.UTF_8).split(" ")[0]);
+
+        try (Socket idle1 = new Socket(InetAddress.getLoopbackAddress(), port);
+             Socket idle2 = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            /* Over the limit, closed right away. */
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setSoTimeout(10000);
+                assert socket.getInputStream().read() == -1;
+            }
+            /* Idle connections are closed after the handshake timeout. */
+            idle1.setSoTimeout(10000);
+            idle2.setSoTimeout(10000);
+            assert idle1.getInputStream().read() == -1;
+            assert idle2.getInputStream().read() == -1;
+        }
+
+        /* Authenticated connection is not subject to the handshake timeout. */
+        try (ParseClient client = new ParseClient(socketFile)) {
+            Thread.sleep(400);
+            assert client.Parse("test", false, new String[] {"x"}, new String[] {"x=1;"})
+                .get(0).summary.GetErrorsCount() == 0;
+        }
+    } finally {
+        daemon.Stop();
+        daemon.Join();
+        Files.deleteIfExists(socketFile);
+        Files.deleteIfExists(dir);
+    }
+}
+
+}
@@ -0,0 +1,92 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class AstFileTest {
+
+BasicTest basicTest = new BasicTest();
+
+static void
+AssertPositionEquals(Parser.InputPosition pos1, Parser.InputPosition pos2)
+{
+    if (pos1 == null || pos2 == null) {
+        assert pos1 == pos2;
+        return;
+    }
+    assert pos1.curOffset == pos2.curOffset;
+    assert pos1.curLine == pos2.curLine;
+    assert pos1.curCol == pos2.curCol;
+}
+
+static void
+VerifyNode(AstFile.Node fileNode, Ast.Node node)
+{
+    assert fileNode.GetGrammarNode() == node.grammarNode;
+    assert fileNode.GetStr() == null ? node.str == null : fileNode.GetStr().equals(node.str);
+    AssertPositionEquals(fileNode.GetStartPosition(), node.startPosition);
+    AssertPositionEquals(fileNode.GetEndPosition(), node.endPosition);
+    int numChildren = node.children == null ? 0 : node.children.size();
+    assert fileNode.GetChildrenCount() == numChildren;
+    for (int i = 0; i < numChildren; i++) {
+        AstFile.Node child = fileNode.GetChild(i);
+        assert child.GetParent().equals(fileNode);
+        VerifyNode(child, node.children.get(i));
+    }
+}
+
+@Test public void
+Basic()
+    throws IOException
+{
+    Path file = Files.createTempFile("roxy-ast", ".bin");
+    try {
+        Parser parser = ParserUtil.TestParser(basicTest.fileNode, basicTest.testFile1);
+        Ast ast = parser.GetResult();
+        CompiledGrammar grammar = basicTest.grammar.GetCompiled();
+        AstFile.Write(ast, grammar, file);
+
+        try (AstFile astFile = AstFile.Open(file, grammar)) {
+            assert astFile.GetRoot().GetParent() == null;
+            VerifyNode(astFile.GetRoot(), ast.GetRoot());
+            /* Materialized AST is compiled the same way as the parsed one (tags excluded). */
+            Ast loaded = astFile.ToAst();
+            VerifyNode(astFile.GetRoot(), loaded.GetRoot());
+            assert loaded.GetRoot().children.get(2).children.get(0).str.equals("b");
+        }
+
+        /* Opening with another grammar fails. */
+        boolean failed = false;
+        try {
+            AstFile.Open(file, new ParseCacheTest().numGrammar.GetCompiled());
+        } catch (IOException e) {
+            failed = true;
+        }
+        assert failed;
+    } finally {
+        Files.deleteIfExists(file);
+    }
+}
+
+@Test public void
+Empty()
+    throws IOException
+{
+    Path file = Files.createTempFile("roxy-ast", ".bin");
+    try {
+        CompiledGrammar grammar = basicTest.grammar.GetCompiled();
+        AstFile.Write(new Ast(), grammar, file);
+        try (AstFile astFile = AstFile.Open(file, grammar)) {
+            assert astFile.GetNodesCount() == 0;
+            assert astFile.GetRoot() == null;
+            assert astFile.ToAst().GetRoot() == null;
+        }
+    } finally {
+        Files.deleteIfExists(file);
+    }
+}
+
+}
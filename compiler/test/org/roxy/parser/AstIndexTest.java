@@ -0,0 +1,142 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static utils.Utils.AssertThrows;
+
+public class AstIndexTest {
+
+BasicTest basicTest = new BasicTest();
+
+static boolean
+Contains(Ast.Node node, int offset)
+{
+    return node.startPosition.curOffset <= offset && node.endPosition.curOffset >= offset;
+}
+
+/** Find innermost node containing the offset by checking all the indexed nodes. */
+static Ast.Node
+FindInnermostSlow(List<Ast.Node> nodes, int offset)
+{
+    Ast.Node result = null;
+    for (Ast.Node node: nodes) {
+        if (Contains(node, offset) && (result == null || node.IsAncestor(result))) {
+            result = node;
+        }
+    }
+    return result;
+}
+
+static void
+VerifyIndex(Ast ast, Grammar grammar, int fileLength)
+{
+    AstIndex index = ast.GetIndex();
+    CompiledGrammar compiled = grammar.GetCompiled();
+    List<Ast.Node> nodes = new ArrayList<>();
+    for (int id = 0; id < compiled.GetNodesCount(); id++) {
+        Grammar.Node grammarNode = compiled.GetNode(id);
+        List<Ast.Node> kindNodes = index.GetNodes(grammarNode);
+        assert kindNodes.size() == index.GetCount(grammarNode);
+        for (int i = 0; i < kindNodes.size(); i++) {
+            Ast.Node node = kindNodes.get(i);
+            assert node.grammarNode == grammarNode;
+            assert index.Get(grammarNode, i) == node;
+            if (i > 0) {
+                assert kindNodes.get(i - 1).startPosition.curOffset <
+                    node.startPosition.curOffset;
+            }
+        }
+        nodes.addAll(kindNodes);
+    }
+    assert nodes.size() == index.GetNodesCount();
+
+    List<Ast.Node> statements = index.GetNodes(grammar.FindNode("statement"));
+    assert statements.equals(ast.GetRoot().children);
+    assert index.GetCount(grammar.FindNode("identifier")) == 4;
+    assert index.GetNodes(grammar.FindNode("file")).get(0) == ast.GetRoot();
+    /* Not a value node. */
+    assert index.GetCount(grammar.FindNode("gap")) == 0;
+
+    for (int offset = -1; offset <= fileLength + 1; offset++) {
+        assert index.FindInnermost(offset) == FindInnermostSlow(nodes, offset) : offset;
+    }
+    assert index.FindInnermost(-1) == null;
+    /* File starts with "someIdent". */
+    assert index.FindInnermost(0) == statements.get(0).children.get(0);
+    AssertThrows(IndexOutOfBoundsException.class,
+                 () -> index.Get(grammar.FindNode("statement"), 4));
+}
+
+@Test public void
+Basic()
+    throws IOException
+{
+    String file = basicTest.testFile1;
+    Grammar grammar = basicTest.grammar;
+    Grammar.Node fileNode = basicTest.fileNode;
+
+    Parser parser = new Parser(fileNode, file).SetAstIndex(true);
+    parser.Parse();
+    ParserUtil.VerifySummary(parser.GetSummary());
+    VerifyIndex(parser.GetResult(), grammar, file.length());
+    /* "a" identifier of "a=1;". */
+    Ast.Node ident = parser.GetResult().GetIndex().FindInnermost(file.indexOf(";a=") + 1);
+    assert ident.grammarNode == grammar.FindNode("identifier");
+    assert ident.str.equals("a");
+
+    PackratParser packrat = new PackratParser(fileNode, file).SetAstIndex(true);
+    packrat.Parse();
+    ParserUtil.VerifySummary(packrat.GetSummary());
+    VerifyIndex(packrat.GetResult(), grammar, file.length());
+    /* Packrat ends nodes at their last character. */
+    Ast.Node number = packrat.GetResult().GetIndex().FindInnermost(file.indexOf("-2") + 1);
+    assert number.grammarNode == grammar.FindNode("number-literal");
+    assert packrat.GetResult().GetIndex().FindInnermost(file.indexOf("-2") + 2).grammarNode ==
+        grammar.FindNode("statement");
+
+    /* Disabled by default. */
+    assert ParserUtil.TestParser(fileNode, file).GetResult().GetIndex() == null;
+}
+
+@Test public void
+Large()
+    throws IOException
+{
+    StringBuilder file = new StringBuilder(basicTest.testFile1);
+    int numStatements = 10000;
+    for (int i = 0; i < numStatements; i++) {
+        file.append(String.format("\nv%d = %d;", i, i));
+    }
+    Parser parser = ParserUtil.TestParser(basicTest.fileNode, file.toString());
+    Parser indexed = new Parser(basicTest.fileNode, file.toString()).SetAstIndex(true);
+    indexed.Parse();
+    AstIndex index = indexed.GetResult().GetIndex();
+    Grammar.Node stmtNode = basicTest.grammar.FindNode("statement");
+    assert index.GetCount(stmtNode) == numStatements + 4;
+    List<Ast.Node> statements = parser.GetResult().GetRoot().children;
+    for (int i = 0; i < statements.size(); i += 97) {
+        Ast.Node expected = statements.get(i);
+        Ast.Node found = index.Get(stmtNode, i);
+        assert found.startPosition.curOffset == expected.startPosition.curOffset;
+        /* Identifier is the innermost node at the statement start. */
+        Ast.Node ident = index.FindInnermost(expected.startPosition.curOffset);
+        assert ident.parent == found;
+        assert ident.str.equals(expected.children.get(0).str);
+    }
+}
+
+@Test public void
+NotCompiled()
+{
+    Grammar grammar = new Grammar() {{
+        Node("file").Sequence(Char('a')).Val(null);
+    }};
+    AssertThrows(IllegalStateException.class,
+                 () -> new Parser(grammar.FindNode("file"), "a").SetAstIndex(true));
+}
+
+}
@@ -1,10 +1,27 @@
 package org.roxy.parser;
 
 import org.junit.Test;
+import org.roxy.parser.metrics.AggregatedParserMetrics;
+import org.roxy.parser.metrics.JmxParserMetrics;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.lang.management.ManagementFactory;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static utils.Utils.AssertThrows;
 
 public class BasicTest {
 
@@ -36,63 +53,88 @@ Compile(Ast ast, Summary summary)
     return result;
 }
 
-Grammar grammar = new Grammar() {{
+static Grammar
+CreateGrammar(boolean tokens)
+{
+    return CreateGrammar(tokens, false);
+}
 
-    Node("decimal-digit").Def(CharRange('0', '9'));
-    Node("alphabetic").Def(CharRange('a', 'z').IncludeRange('A', 'Z'));
-    Node("whitespace").Def(AnyChar(" \t\r\n"));
+/**
+ * @param tokens Mark lexical nodes as tokens.
+ * @param utf8Transparent Declare the grammar UTF-8 transparent for byte mode parsing.
+ */
+static Grammar
+CreateGrammar(boolean tokens, boolean utf8Transparent)
+{
+    return new Grammar() {{
+
+        Node("decimal-digit").Def(CharRange('0', '9'));
+        Node("alphabetic").Def(CharRange('a', 'z').IncludeRange('A', 'Z'));
+        Node("whitespace").Def(AnyChar(" \t\r\n"));
+
+        Node("multiline-comment").Sequence(
+            String("/*"),
+            Any(
+                AnyChar().Exclude('*'),
+                Sequence(Char('*'), AnyChar().Exclude('/'))).NoneToMany(),
+            String("*/"));
+
+        Node("gap").Any(
+            NodeRef("whitespace"),
+            NodeRef("multiline-comment")).OneToMany();
+
+        Node("string-literal").Sequence(
+            Char('"'),
+            Any(AnyChar().Exclude("\"\\").Val(TestNodeTag.GetFabric(TestNodeTag.Type.STRING_CHAR), true),
+                Sequence(Char('\\'),
+                         AnyChar().Val(TestNodeTag.GetFabric(TestNodeTag.Type.STRING_ESCAPE), true)))
+                         .NoneToMany(),
+            Char('"')).Val(TestNodeTag.GetFabric(TestNodeTag.Type.STRING_LITERAL));
+
+        Node("number-literal").Sequence(Char('-').NoneToOne(), NodeRef("decimal-digit").OneToMany()).
+            Val(TestNodeTag.GetFabric(TestNodeTag.Type.NUM_LITERAL), true);
+
+        Node("identifier-first-char").Any(NodeRef("alphabetic"), Char('_'));
+        Node("identifier-char").Any(NodeRef("identifier-first-char"), NodeRef("decimal-digit"));
+        Node("identifier").Sequence(
+            NodeRef("identifier-first-char"),
+            NodeRef("identifier-char").NoneToMany())
+            .Val(TestNodeTag.GetFabric(TestNodeTag.Type.IDENTIFIER), true).Symbol();
+
+        Node("statement").Sequence(
+            NodeRef("identifier"),
+            NodeRef("gap").NoneToOne(),
+            Char('='),
+            NodeRef("gap").NoneToOne(),
+            Any(
+                NodeRef("string-literal"),
+                NodeRef("number-literal")),
+            NodeRef("gap").NoneToOne(),
+            Char(';')).Val(TestNodeTag.GetFabric(TestNodeTag.Type.STATEMENT));
+
+        Node("file").Sequence(
+            NodeRef("gap").NoneToOne(),
+            Sequence(
+                NodeRef("statement"),
+                NodeRef("gap").NoneToOne()
+            ).NoneToMany()).Val(TestNodeTag.GetFabric(TestNodeTag.Type.FILE));
+
+        //System.out.print(FindNode("file"));
+        if (tokens) {
+            FindNode("gap").Token();
+            FindNode("number-literal").Token();
+            FindNode("identifier").Token();
+        }
+        if (utf8Transparent) {
+            SetUtf8Transparent();
+        }
 
-    Node("multiline-comment").Sequence(
-        String("/*"),
-        Any(
-            AnyChar().Exclude('*'),
-            Sequence(Char('*'), AnyChar().Exclude('/'))).NoneToMany(),
-        String("*/"));
-
-    Node("gap").Any(
-        NodeRef("whitespace"),
-        NodeRef("multiline-comment")).OneToMany();
-
-    Node("string-literal").Sequence(
-        Char('"'),
-        Any(AnyChar().Exclude("\"\\").Val(TestNodeTag.GetFabric(TestNodeTag.Type.STRING_CHAR), true),
-            Sequence(Char('\\'),
-                     AnyChar().Val(TestNodeTag.GetFabric(TestNodeTag.Type.STRING_ESCAPE), true)))
-                     .NoneToMany(),
-        Char('"')).Val(TestNodeTag.GetFabric(TestNodeTag.Type.STRING_LITERAL));
-
-    Node("number-literal").Sequence(Char('-').NoneToOne(), NodeRef("decimal-digit").OneToMany()).
-        Val(TestNodeTag.GetFabric(TestNodeTag.Type.NUM_LITERAL), true);
-
-    Node("identifier-first-char").Any(NodeRef("alphabetic"), Char('_'));
-    Node("identifier-char").Any(NodeRef("identifier-first-char"), NodeRef("decimal-digit"));
-    Node("identifier").Sequence(
-        NodeRef("identifier-first-char"),
-        NodeRef("identifier-char").NoneToMany())
-        .Val(TestNodeTag.GetFabric(TestNodeTag.Type.IDENTIFIER), true);
-
-    Node("statement").Sequence(
-        NodeRef("identifier"),
-        NodeRef("gap").NoneToOne(),
-        Char('='),
-        NodeRef("gap").NoneToOne(),
-        Any(
-            NodeRef("string-literal"),
-            NodeRef("number-literal")),
-        NodeRef("gap").NoneToOne(),
-        Char(';')).Val(TestNodeTag.GetFabric(TestNodeTag.Type.STATEMENT));
-
-    Node("file").Sequence(
-        NodeRef("gap").NoneToOne(),
-        Sequence(
-            NodeRef("statement"),
-            NodeRef("gap").NoneToOne()
-        ).NoneToMany()).Val(TestNodeTag.GetFabric(TestNodeTag.Type.FILE));
-
-    //System.out.print(FindNode("file"));
-    Compile();
-    //System.out.print(FindNode("file"));
-}};
+        Compile();
+        //System.out.print(FindNode("file"));
+    }};
+}
+
+Grammar grammar = CreateGrammar(false);
 
 Grammar.Node fileNode = grammar.FindNode("file");
 
@@ -147,6 +189,402 @@ Spaces()
     ParserUtil.TestParser(fileNode, sb.toString());
 }
 
+@Test public void
+LongRuns()
+{
+    StringBuilder comment = new StringBuilder(), value = new StringBuilder(),
+        ident = new StringBuilder("id");
+    for (int i = 0; i < 10000; i++) {
+        comment.append(i % 80 == 0 ? '\n' : '/');
+        value.append((char)('a' + i % 26));
+        ident.append(i % 10);
+    }
+    String file = "/*" + comment + "*/ " + ident + " = \"" + value + "\";\r\n" +
+        "/*" + comment + "* */ x =   \t  42;";
+    Parser parser = ParserUtil.TestParser(fileNode, file);
+    Map<String, Object> result = Compile(parser.GetResult(), parser.GetSummary());
+    TreeMap<String, Object> expected = new TreeMap<>();
+    expected.put(ident.toString(), value.toString());
+    expected.put("x", 42);
+    VerifyResult(result, expected);
+
+    ParserUtil.TestParser(fileNode, "/*" + comment + "*",
+                          new ParserUtil.Error(Parser.ErrorCode.INCOMPLETE_NODE, 1, 0));
+}
+
+@Test public void
+Literals()
+{
+    Grammar grammar = new Grammar() {{
+        Node("keyword").Def(Literals(false, "in", "int", "interface", "if", "else"))
+            .Val(TestNodeTag.GetFabric(TestNodeTag.Type.IDENTIFIER), true);
+        Node("file").Sequence(
+            NodeRef("keyword"),
+            Sequence(AnyChar(" \t").OneToMany(), NodeRef("keyword")).NoneToMany())
+            .Val(TestNodeTag.GetFabric(TestNodeTag.Type.FILE));
+        Compile();
+        System.out.print(FindNode("file"));
+    }};
+    Grammar.Node fileNode = grammar.FindNode("file");
+
+    Parser parser = ParserUtil.TestParser(fileNode, "IF in  int\tInterface else iN");
+    String[] expected = {"IF", "in", "int", "Interface", "else", "iN"};
+    Ast.Node root = parser.GetResult().root;
+    assert root.children.size() == expected.length;
+    for (int i = 0; i < expected.length; i++) {
+        Ast.Node node = root.children.get(i);
+        assert node.str.equals(expected[i]);
+        assert ((TestNodeTag)node.tag).type == TestNodeTag.Type.IDENTIFIER;
+    }
+
+    ParserUtil.TestParser(fileNode, "if inx",
+                          new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 5));
+    ParserUtil.TestParser(fileNode, "if inte",
+                          new ParserUtil.Error(Parser.ErrorCode.INCOMPLETE_NODE, 1, 3));
+}
+
+/**
+ * @param compareEnd Compare also end positions.
+ */
+static void
+VerifySameAst(Ast.Node node1, Ast.Node node2, boolean compareEnd)
+{
+    assert node1.grammarNode.toString().equals(node2.grammarNode.toString());
+    assert node1.str == null ? node2.str == null : node1.str.equals(node2.str);
+    AstFileTest.AssertPositionEquals(node1.startPosition, node2.startPosition);
+    if (compareEnd) {
+        AstFileTest.AssertPositionEquals(node1.endPosition, node2.endPosition);
+    }
+    int numChildren = node1.children == null ? 0 : node1.children.size();
+    assert numChildren == (node2.children == null ? 0 : node2.children.size());
+    for (int i = 0; i < numChildren; i++) {
+        VerifySameAst(node1.children.get(i), node2.children.get(i), compareEnd);
+    }
+}
+
+/** Parser nodes are reclaimed into the pool, so their number does not grow with the input. */
+@Test public void
+NodesReclamation()
+    throws IOException
+{
+    long[] allocated = new long[2];
+    for (int i = 0; i < 2; i++) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < (i == 0 ? 1000 : 10000); j++) {
+            sb.append(String.format("v%d = \"%d\"; /* comment */ n%d = %d;\n", j, j, j, j));
+        }
+        Parser parser = ParserUtil.TestParser(fileNode, sb.toString());
+        ParseStats stats = parser.GetStats();
+        System.out.println(stats);
+        assert stats.numReclamations > 0;
+        allocated[i] = stats.nodesAllocated;
+    }
+    assert allocated[1] <= allocated[0] * 2;
+}
+
+@Test public void
+Tokens()
+    throws IOException
+{
+    Grammar.Node tokenFileNode = CreateGrammar(true).FindNode("file");
+    StringBuilder comment = new StringBuilder(), ident = new StringBuilder("id");
+    for (int i = 0; i < 1000; i++) {
+        comment.append(i % 80 == 0 ? '\n' : i % 3 == 1 ? '*' : 'x');
+        ident.append(i % 10);
+    }
+    String file = testFile1 + "\n/*" + comment + "*/ " + ident + "=-42 ;/**/";
+
+    Parser charParser = ParserUtil.TestParser(fileNode, file);
+    Parser tokenParser = ParserUtil.TestParser(tokenFileNode, file);
+    TreeMap<String, Object> expected = new TreeMap<>(expectedData);
+    expected.put(ident.toString(), -42);
+    VerifyResult(Compile(tokenParser.GetResult(), tokenParser.GetSummary()), expected);
+    VerifySameAst(tokenParser.GetResult().GetRoot(), charParser.GetResult().GetRoot(), true);
+    ParseStats charStats = charParser.GetStats(), tokenStats = tokenParser.GetStats();
+    System.out.println(charStats);
+    System.out.println(tokenStats);
+    assert tokenStats.numChars == charStats.numChars;
+    assert tokenStats.nodesAllocated + tokenStats.nodesReused <
+        charStats.nodesAllocated + charStats.nodesReused;
+
+    /* Errors are reported at the same positions. */
+    ParserUtil.TestParser(tokenFileNode, "a = 1 b = 2;",
+                          new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 6));
+    ParserUtil.TestParser(tokenFileNode, "a = 1",
+                          new ParserUtil.Error(Parser.ErrorCode.INCOMPLETE_NODE, 1, 5));
+    ParserUtil.TestParser(tokenFileNode, "a = /* 1;",
+                          new ParserUtil.Error(Parser.ErrorCode.INCOMPLETE_NODE, 1, 4));
+    ParserUtil.TestParser(tokenFileNode, "a = 9999999999999999999;",
+                          new ParserUtil.Error(TestNodeTag.ErrorCode.INVALID_NUMBER, 1, 4));
+
+    /* Longest match resolves what would be ambiguous otherwise. */
+    Grammar wordsGrammar = new Grammar() {{
+        Node("word").Sequence(CharRange('a', 'z').OneToMany()).Token()
+            .Val(TestNodeTag.GetFabric(TestNodeTag.Type.IDENTIFIER), true);
+        Node("file").Sequence(
+            NodeRef("word"),
+            Sequence(Char(' ').NoneToOne(), NodeRef("word")).NoneToMany())
+            .Val(TestNodeTag.GetFabric(TestNodeTag.Type.FILE));
+        Compile();
+    }};
+    Parser parser = ParserUtil.TestParser(wordsGrammar.FindNode("file"), "abc de fgh");
+    String[] expectedWords = {"abc", "de", "fgh"};
+    Ast.Node root = parser.GetResult().GetRoot();
+    assert root.children.size() == expectedWords.length;
+    for (int i = 0; i < expectedWords.length; i++) {
+        assert root.children.get(i).str.equals(expectedWords[i]);
+    }
+
+    /* Invalid tokens. */
+    AssertThrows(IllegalStateException.class, () -> new Grammar() {{
+        Node("t").Sequence(Char('a').Val(null), Char('b')).Token();
+        Compile();
+    }});
+    AssertThrows(IllegalStateException.class, () -> new Grammar() {{
+        Node("t").Sequence(Char('a').NoneToMany()).Token();
+        Compile();
+    }});
+    AssertThrows(IllegalStateException.class, () -> new Grammar() {{
+        Node("t").Sequence(Char('('), NodeRef("t").NoneToOne(), Char(')')).Token();
+        Compile();
+    }});
+}
+
+@Test public void
+Profile()
+    throws IOException
+{
+    ParserProfile profile = new ParserProfile();
+    Parser parser = new Parser(fileNode, testFile1).SetProfile(profile);
+    ParserUtil.VerifySummary(parser.Parse().GetSummary());
+    System.out.print(profile);
+    assert profile.GetCharsProcessed() == testFile1.length();
+
+    long prevTime = Long.MAX_VALUE;
+    for (ParserProfile.Entry e: profile.GetEntries()) {
+        assert e.timeNs <= prevTime;
+        prevTime = e.timeNs;
+    }
+    ParserProfile.Entry comment = profile.GetEntry("multiline-comment");
+    assert comment.charsMatched >= "/* Some comment a*b/*/".length();
+    assert comment.branchesCreated > 0 && comment.branchesDropped > 0;
+    assert profile.GetEntry("alphabetic").charsMatched > 0;
+}
+
+@Test public void
+Metrics()
+    throws IOException, JMException
+{
+    AggregatedParserMetrics metrics = new AggregatedParserMetrics();
+    JmxParserMetrics jmxMetrics = new JmxParserMetrics(metrics);
+    ObjectName name = jmxMetrics.Register("BasicTest");
+    try {
+        for (int i = 0; i < 2; i++) {
+            Parser parser = new Parser(fileNode, testFile1).SetMetrics(metrics);
+            ParserUtil.VerifySummary(parser.Parse().GetSummary());
+            System.out.println(parser.GetStats());
+            assert parser.GetStats().numChars == testFile1.length();
+            assert parser.GetStats().astNodesCreated > 0;
+            assert parser.GetStats().numCommittedChars == testFile1.length();
+            assert parser.GetStats().numCommits < parser.GetStats().numCommittedChars;
+        }
+        assert metrics.GetParsesCount() == 2;
+        assert metrics.GetCharsParsed() == 2 * testFile1.length();
+        assert metrics.GetPeakBranches() > 1;
+        assert metrics.GetMeanBranches() > 1;
+        assert metrics.GetPoolHitRate() > 0;
+        assert metrics.GetCommitsPerChar() > 0 && metrics.GetCommitsPerChar() < 1;
+        long numParses = 0;
+        for (long count: metrics.GetDurationHistogram()) {
+            numParses += count;
+        }
+        assert numParses == 2;
+
+        Object charsParsed = ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(name, "CharsParsed");
+        assert charsParsed.equals(2L * testFile1.length());
+
+        assert ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(name, "PeakRetainedInput").equals(0L);
+        Parser retainingParser =
+            new Parser(fileNode, testFile1).SetInputRetention(true).SetMetrics(metrics);
+        ParserUtil.VerifySummary(retainingParser.Parse().GetSummary());
+        long peakRetainedInput = retainingParser.GetStats().peakRetainedInput;
+        assert peakRetainedInput > 0;
+        assert ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(name, "PeakRetainedInput").equals(peakRetainedInput);
+    } finally {
+        jmxMetrics.Unregister();
+    }
+}
+
+@Test public void
+AsyncTags()
+    throws IOException
+{
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+        for (int i = 0; i < 20; i++) {
+            Parser parser = new Parser(fileNode, testFile1).SetTagExecutor(executor);
+            Summary summary = parser.Parse().GetSummary();
+            ParserUtil.VerifySummary(summary);
+            VerifyResult(Compile(parser.GetResult(), summary), expectedData);
+        }
+
+        /* Records order is the same as with synchronous tags production. */
+        String file = "a = \"\\w\"; b = 99999999999; c = \"\\q\"; d = 1 e";
+        Summary syncSummary = new Parser(fileNode, file).Parse().GetSummary();
+        Summary asyncSummary =
+            new Parser(fileNode, file).SetTagExecutor(executor).Parse().GetSummary();
+        System.out.println(asyncSummary);
+        assert syncSummary.GetErrorsCount() == 4;
+        assert asyncSummary.toString().equals(syncSummary.toString());
+
+        /* Input failure: tags of the nodes committed so far are produced before Parse() throws,
+         * and their records are added to the caller summary.
+         */
+        String failingFile = "a = \"\\w\"; b = 99999999999; c = \"\\q\";\n";
+        Summary syncFailedSummary = new Summary();
+        AssertThrows(IOException.class,
+                     () -> new Parser(fileNode, FailingReader(failingFile)).Parse(syncFailedSummary));
+        /* The last statement is not committed yet when reading fails. */
+        assert syncFailedSummary.GetErrorsCount() == 2;
+        Summary asyncFailedSummary = new Summary();
+        Parser failedParser =
+            new Parser(fileNode, FailingReader(failingFile)).SetTagExecutor(executor);
+        AssertThrows(IOException.class, () -> failedParser.Parse(asyncFailedSummary));
+        assert asyncFailedSummary.toString().equals(syncFailedSummary.toString());
+        assert failedParser.GetSummary() == asyncFailedSummary;
+        assert failedParser.GetResult().tagScheduler == null;
+    } finally {
+        executor.shutdown();
+    }
+}
+
+/** Reader which returns the string and then fails. */
+static Reader
+FailingReader(String s)
+{
+    return new Reader() {
+        int pos;
+
+        @Override public int
+        read(char[] cbuf, int off, int len)
+            throws IOException
+        {
+            if (pos == s.length()) {
+                throw new IOException("Test failure");
+            }
+            int size = Math.min(len, s.length() - pos);
+            s.getChars(pos, pos + size, cbuf, off);
+            pos += size;
+            return size;
+        }
+
+        @Override public void
+        close()
+        {}
+    };
+}
+
+@Test public void
+ReadAhead()
+    throws IOException
+{
+    StringBuilder sb = new StringBuilder();
+    TreeMap<String, Object> expected = new TreeMap<>();
+    for (int i = 0; i < 2000; i++) {
+        sb.append(String.format("v%d = %d; /* \u043a\u043e\u043c\u043c\u0435\u043d\u0442 */\n", i, i));
+        expected.put("v" + i, i);
+    }
+    byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+    for (int numBlocks: new int[] {1, 2, 16}) {
+        /* Small chunks to make the producer and consumer alternate often. */
+        InputStream stream = new ByteArrayInputStream(data) {
+            @Override public synchronized int
+            read(byte[] b, int off, int len)
+            {
+                return super.read(b, off, Math.min(len, 100));
+            }
+        };
+        Parser parser = new Parser(fileNode, stream).SetReadAhead(numBlocks);
+        Summary summary = parser.Parse().GetSummary();
+        ParserUtil.VerifySummary(summary);
+        VerifyResult(Compile(parser.GetResult(), summary), expected);
+        assert parser.GetStats().numChars == sb.length();
+    }
+
+    InputStream failingStream = new InputStream() {
+        int numRead;
+
+        @Override public int
+        read()
+            throws IOException
+        {
+            if (numRead == 10000) {
+                throw new IOException("Test failure");
+            }
+            return "a = 1; ".charAt(numRead++ % 7);
+        }
+    };
+    AssertThrows(IOException.class,
+                 () -> new Parser(fileNode, failingStream).SetReadAhead(2).Parse());
+}
+
+@Test public void
+ReadAheadStalled()
+    throws Exception
+{
+    for (boolean interrupt: new boolean[] {false, true}) {
+        PipedWriter writer = new PipedWriter();
+        Reader stalledReader = new PipedReader(writer);
+        /* Some input is parsed, then the reader blocks forever. */
+        writer.write("a = 1;\n");
+        writer.flush();
+        Parser parser = new Parser(fileNode, stalledReader).SetReadAhead(2);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                parser.Parse();
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        thread.start();
+        Thread.sleep(50);
+        if (interrupt) {
+            thread.interrupt();
+        } else {
+            parser.Cancel();
+        }
+        thread.join(10000);
+        assert !thread.isAlive();
+        if (interrupt) {
+            assert error.get() instanceof InterruptedIOException;
+        } else {
+            assert error.get() == null;
+            ParserUtil.VerifySummary(parser.GetSummary(),
+                                     new ParserUtil.Error(Parser.ErrorCode.CANCELLED, 2, 0));
+        }
+        writer.close();
+    }
+
+    /* Unchecked reader failure is rethrown in the parser thread. */
+    Reader failingReader = new Reader() {
+        @Override public int
+        read(char[] cbuf, int off, int len)
+        {
+            throw new IllegalStateException("Test failure");
+        }
+
+        @Override public void
+        close()
+        {}
+    };
+    AssertThrows(IllegalStateException.class,
+                 () -> new Parser(fileNode, failingReader).SetReadAhead(2).Parse());
+}
+
 @Test public void
 Empty()
 {
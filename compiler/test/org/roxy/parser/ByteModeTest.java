@@ -0,0 +1,135 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static utils.Utils.AssertThrows;
+
+public class ByteModeTest {
+
+BasicTest basicTest = new BasicTest();
+
+static Parser
+ParseBytes(Grammar.Node grammar, String file, ParserUtil.Record... expectedRecords)
+    throws IOException
+{
+    ByteBuffer input = ByteBuffer.wrap(file.getBytes(StandardCharsets.UTF_8));
+    Parser parser = new Parser(grammar, input);
+    Summary summary = parser.Parse().GetSummary();
+    System.out.println(summary);
+    ParserUtil.VerifySummary(summary, expectedRecords);
+    assert !input.hasRemaining();
+    return parser;
+}
+
+@Test public void
+SameAst()
+    throws IOException
+{
+    StringBuilder file = new StringBuilder(basicTest.testFile1);
+    /* Non-ASCII characters of all UTF-8 lengths, including one encoded as a surrogate pair. */
+    file.append("\n/* été привет € 😀 */\n");
+    for (int i = 0; i < 200; i++) {
+        file.append(String.format("v%d = %d; /* üß%d */\r\n", i, i, i));
+    }
+    for (boolean tokens: new boolean[] {false, true}) {
+        Grammar grammar = BasicTest.CreateGrammar(tokens, true);
+        assert grammar.GetByteModeError() == null;
+        Grammar.Node fileNode = grammar.FindNode("file");
+        Parser expected = ParserUtil.TestParser(fileNode, file.toString());
+        Parser parser = ParseBytes(fileNode, file.toString());
+        BasicTest.VerifySameAst(parser.GetResult().GetRoot(), expected.GetResult().GetRoot(),
+                                true);
+    }
+}
+
+@Test public void
+DecodedStrings()
+    throws IOException
+{
+    Grammar grammar = new Grammar() {{
+        Node("comment").Sequence(Char('#'), AnyChar().Exclude('\n').NoneToMany()).Token()
+            .Val(null, true);
+        Node("word").Sequence(CharRange('a', 'z').OneToMany()).Token().Val(null, true);
+        Node("file").Sequence(
+            Any(NodeRef("comment"), NodeRef("word"), AnyChar(" \n")).NoneToMany()).Val(null);
+        SetUtf8Transparent();
+        Compile();
+    }};
+    String file = "abc #été 😀\ndef #€\nxyz";
+    Grammar.Node fileNode = grammar.FindNode("file");
+    Ast.Node root = ParseBytes(fileNode, file).GetResult().GetRoot();
+    Ast.Node expectedRoot = ParserUtil.TestParser(fileNode, file).GetResult().GetRoot();
+    BasicTest.VerifySameAst(root, expectedRoot, true);
+    String[] expectedStr = {"abc", "#été 😀", "def", "#€", "xyz"};
+    assert root.children.size() == expectedStr.length;
+    for (int i = 0; i < expectedStr.length; i++) {
+        assert root.children.get(i).str.equals(expectedStr[i]);
+    }
+    assert root.children.get(4).startPosition.curOffset == file.indexOf("xyz");
+}
+
+@Test public void
+AsciiGrammar()
+    throws IOException
+{
+    Grammar grammar = new Grammar() {{
+        Node("word").Sequence(CharRange('a', 'z').OneToMany()).Token().Val(null, true);
+        Node("file").Sequence(
+            NodeRef("word"),
+            Sequence(Literals(", ", " and "), NodeRef("word")).NoneToMany()).Val(null);
+        Compile();
+    }};
+    assert grammar.GetByteModeError() == null;
+    Grammar.Node fileNode = grammar.FindNode("file");
+    Ast.Node root = ParseBytes(fileNode, "ab, cd and ef").GetResult().GetRoot();
+    assert root.children.size() == 3;
+    assert root.children.get(2).str.equals("ef");
+
+    /* Non-ASCII input does not match, the error is at the same position as for characters. */
+    ParseBytes(fileNode, "ab, cé",
+               new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 5));
+    ParserUtil.TestParser(fileNode, "ab, cé",
+                          new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 5));
+
+    AssertThrows(IllegalStateException.class,
+                 () -> new Parser(fileNode, ByteBuffer.allocate(0)).SetInputRetention(true));
+}
+
+@Test public void
+Unsupported()
+{
+    Grammar nonAscii = new Grammar() {{
+        Node("file").Sequence(CharRange('a', 'z').IncludeRange(0x430, 0x44f)).Val(null);
+        Compile();
+    }};
+    assert nonAscii.GetByteModeError() != null;
+    AssertThrows(IllegalArgumentException.class,
+                 () -> new Parser(nonAscii.FindNode("file"), ByteBuffer.allocate(0)));
+
+    /* Transparent grammar classes should include either all non-ASCII characters or none. */
+    Grammar partial = new Grammar() {{
+        Node("file").Sequence(AnyChar().Exclude(0x20ac)).Val(null);
+        SetUtf8Transparent();
+        Compile();
+    }};
+    assert partial.GetByteModeError() != null;
+
+    Grammar literal = new Grammar() {{
+        Node("file").Sequence(Literals("abc", "été")).Val(null);
+        SetUtf8Transparent();
+        Compile();
+    }};
+    assert literal.GetByteModeError() != null;
+    AssertThrows(IllegalStateException.class, literal::SetUtf8Transparent);
+
+    Grammar notCompiled = new Grammar() {{
+        Node("file").Sequence(Char('a')).Val(null);
+    }};
+    AssertThrows(IllegalStateException.class, notCompiled::GetByteModeError);
+}
+
+}
@@ -0,0 +1,116 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static utils.Utils.AssertThrows;
+
+public class CompiledGrammarTest {
+
+@Test public void
+DenseIds()
+{
+    Grammar grammar = BasicTest.CreateGrammar(false);
+    CompiledGrammar compiled = grammar.GetCompiled();
+    assert compiled != null;
+    int n = compiled.GetNodesCount();
+    assert n > 0;
+    for (int id = 0; id < n; id++) {
+        Grammar.Node node = compiled.GetNode(id);
+        assert node.GetId() == id;
+        assert compiled.GetNodeId(node) == id;
+        assert compiled.GetMinQuantity(id) == node.GetMinQuantity();
+        assert compiled.GetMaxQuantity(id) == node.GetMaxQuantity();
+        assert compiled.IsVal(id) == node.isVal;
+        assert compiled.IsToken(id) == node.IsToken();
+        assert compiled.IsCut(id) == node.IsCut();
+        assert compiled.IsSymbol(id) == node.IsSymbol();
+        Grammar.Node next = node.GetNextSibling();
+        assert compiled.GetNextSiblingId(id) == (next == null ? -1 : next.GetId());
+        Iterator<Grammar.Node> it = node.iterator();
+        for (int i = 0; i < compiled.GetChildrenCount(id); i++) {
+            assert it.next() == compiled.GetNode(compiled.GetChildId(id, i));
+        }
+        assert !it.hasNext();
+        if (node.GetName() != null) {
+            assert compiled.GetName(id).equals(node.GetName());
+        }
+    }
+
+    Grammar.Node fileNode = grammar.FindNode("file");
+    assert compiled.FindNode("file") == fileNode;
+    assert compiled.GetNode(compiled.FindNodeId("file")) == fileNode;
+    assert compiled.FindNodeId("nonexistent") == -1;
+    assert compiled.FindNode("nonexistent") == null;
+    assert compiled.GetNodeId(new Grammar().Char('a')) == -1;
+
+    /* Same ids for the same grammar definition. */
+    CompiledGrammar other = BasicTest.CreateGrammar(false).GetCompiled();
+    assert other.GetNodesCount() == n;
+    for (int id = 0; id < n; id++) {
+        assert compiled.GetNode(id).getClass() == other.GetNode(id).getClass();
+        assert compiled.GetChildrenCount(id) == other.GetChildrenCount(id);
+    }
+}
+
+@Test public void
+Fingerprint()
+{
+    CompiledGrammar compiled = BasicTest.CreateGrammar(false).GetCompiled();
+    assert compiled.GetFingerprint().length() == 64;
+    assert compiled.GetFingerprint().equals(
+        BasicTest.CreateGrammar(false).GetCompiled().GetFingerprint());
+
+    Grammar numGrammar = new Grammar() {{
+        Node("number").Sequence(CharRange('0', '9').OneToMany()).Val(null, true);
+        Node("file").Sequence(
+            NodeRef("number"), Sequence(Char(' '), NodeRef("number")).NoneToMany()).Val(null);
+        Compile();
+    }};
+    Grammar modified = new Grammar() {{
+        Node("number").Sequence(CharRange('0', '8').OneToMany()).Val(null, true);
+        Node("file").Sequence(
+            NodeRef("number"), Sequence(Char(' '), NodeRef("number")).NoneToMany()).Val(null);
+        Compile();
+    }};
+    assert !modified.GetCompiled().GetFingerprint().equals(
+        numGrammar.GetCompiled().GetFingerprint());
+    assert !compiled.GetFingerprint().equals(numGrammar.GetCompiled().GetFingerprint());
+}
+
+@Test public void
+Frozen()
+{
+    Grammar grammar = new Grammar();
+    Grammar.CharNode charNode = grammar.CharRange('a', 'z');
+    grammar.Node("file").Sequence(charNode.OneToMany()).Val(null);
+    CompiledGrammar compiled = grammar.Compile();
+    assert compiled == grammar.GetCompiled();
+    Grammar.Node fileNode = grammar.FindNode("file");
+
+    AssertThrows(IllegalStateException.class, () -> charNode.Exclude('x'));
+    AssertThrows(IllegalStateException.class, () -> charNode.Include("0"));
+    AssertThrows(IllegalStateException.class, () -> fileNode.Quantity(2));
+    AssertThrows(IllegalStateException.class, () -> fileNode.Val(null, true));
+    AssertThrows(IllegalStateException.class, fileNode::Token);
+    AssertThrows(IllegalStateException.class, grammar::Compile);
+    assert charNode.MatchChar('x');
+
+    /* Nodes created after compilation are not frozen. */
+    grammar.Char('a').Include('b').NoneToOne();
+}
+
+@Test public void
+NotCompiled()
+{
+    Grammar grammar = new Grammar() {{
+        Node("file").Sequence(Char('a')).Val(null);
+    }};
+    assert grammar.GetCompiled() == null;
+    assert grammar.FindNode("file").GetId() == -1;
+    AssertThrows(IllegalArgumentException.class,
+                 () -> new PackratParser(grammar.FindNode("file"), "a"));
+}
+
+}
@@ -0,0 +1,122 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class CutTest {
+
+@Test public void
+Pruning()
+{
+    for (boolean cut: new boolean[] {false, true}) {
+        Grammar grammar = new Grammar() {{
+            Node("ab").Sequence(cut ? Char('a').Cut() : Char('a'), Char('b')).Val(null);
+            Node("ac").Sequence(Char('a'), Char('c')).Val(null);
+            Node("file").Any(NodeRef("ab"), NodeRef("ac")).Val(null);
+            Compile();
+        }};
+        Grammar.Node fileNode = grammar.FindNode("file");
+        ParserUtil.TestParser(fileNode, "ab");
+        if (cut) {
+            /* The other alternative is dropped once "ab" passed the cut. */
+            Parser parser = ParserUtil.TestParser(
+                fileNode, "ac", new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 1));
+            assert parser.GetStats().numCuts == 1;
+            assert parser.GetStats().branchesKilled > 0;
+        } else {
+            ParserUtil.TestParser(fileNode, "ac");
+        }
+    }
+}
+
+@Test public void
+Scope()
+{
+    /* Alternatives within the same named node instance are not affected. */
+    Grammar grammar = new Grammar() {{
+        Node("stmt").Any(
+            Sequence(Literals("ab"), Char('x')),
+            Sequence(Char('a').Cut(), Char('b'), Char('y'))).Val(null);
+        Node("other").Sequence(Char('a'), Char('b'), Char('z')).Val(null);
+        Node("file").Sequence(
+            Sequence(Any(NodeRef("stmt"), NodeRef("other")), Char(';')).OneToMany()).Val(null);
+        Compile();
+    }};
+    Grammar.Node fileNode = grammar.FindNode("file");
+    Ast.Node root = ParserUtil.TestParser(fileNode, "abx;aby;").GetResult().GetRoot();
+    assert root.children.size() == 2;
+    assert root.children.get(1).grammarNode.name.equals("stmt");
+    ParserUtil.TestParser(fileNode, "abx;abz;",
+                          new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 6));
+}
+
+@Test public void
+Keywords()
+{
+    StringBuilder file = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+        file.append(i % 2 == 0 ? "if abcdefgh;" : "abcdefgh x();");
+    }
+    Ast.Node[] roots = new Ast.Node[2];
+    double[] meanBranches = new double[2];
+    for (int i = 0; i < 2; i++) {
+        boolean cut = i == 1;
+        Grammar grammar = new Grammar() {{
+            Node("ident").Sequence(CharRange('a', 'z').OneToMany()).Val(null, true);
+            Node("if").Sequence(cut ? Literals("if ").Cut() : Literals("if "), NodeRef("ident"))
+                .Val(null);
+            Node("call").Sequence(NodeRef("ident"), Char(' '), NodeRef("ident"), Literals("()"))
+                .Val(null);
+            Node("file").Sequence(
+                Sequence(Any(NodeRef("if"), NodeRef("call")), Char(';')).OneToMany())
+                .Val(null);
+            Compile();
+        }};
+        Parser parser = ParserUtil.TestParser(grammar.FindNode("file"), file.toString());
+        System.out.println(parser.GetStats());
+        roots[i] = parser.GetResult().GetRoot();
+        assert roots[i].children.size() == 200;
+        meanBranches[i] = parser.GetStats().GetMeanBranches();
+    }
+    /* End positions depend on commit points. */
+    BasicTest.VerifySameAst(roots[1], roots[0], false);
+    assert meanBranches[1] < meanBranches[0];
+}
+
+@Test public void
+Commit()
+    throws IOException
+{
+    /* Item kind is known only after its last character unless the cut is used. */
+    long[] peaks = new long[2];
+    int longLength = 50000;
+    for (int i = 0; i < 2; i++) {
+        boolean cut = i == 1;
+        Grammar grammar = new Grammar() {{
+            Node("x-item").Sequence(cut ? Char('<').Cut() : Char('<'),
+                                    AnyChar("ab").OneToMany(), Char('x')).Val(null);
+            Node("y-item").Sequence(Char('<'), AnyChar("ab").OneToMany(), Char('y')).Val(null);
+            Node("file").Sequence(
+                Any(NodeRef("x-item"), NodeRef("y-item")).OneToMany()).Val(null);
+            Compile();
+        }};
+        Parser parser = InputWindowTest.TestRetention(grammar.FindNode("file"), idx -> {
+            if (idx >= 100) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder("<");
+            int length = idx == 50 ? longLength : 3;
+            for (int j = 0; j < length; j++) {
+                sb.append(j % 3 == 0 ? 'a' : 'b');
+            }
+            return sb.append('x').toString();
+        });
+        assert parser.GetResult().GetRoot().children.size() == 100;
+        peaks[i] = parser.GetStats().peakRetainedInput;
+    }
+    assert peaks[0] >= longLength;
+    assert peaks[1] <= 3 * 4096;
+}
+
+}
@@ -0,0 +1,77 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+public class GrammarAnalyzerTest {
+
+Summary
+Analyze(GrammarAnalyzer analyzer, ParserUtil.Record... expectedRecords)
+{
+    Summary summary = analyzer.Analyze();
+    System.out.println(summary);
+    ParserUtil.VerifySummary(summary, expectedRecords);
+    return summary;
+}
+
+@Test public void
+BasicGrammar()
+{
+    Grammar grammar = new BasicTest().grammar;
+    GrammarAnalyzer analyzer = new GrammarAnalyzer(grammar.FindNode("file"));
+    /* Comment body repetition forks on each asterisk. */
+    Analyze(analyzer,
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.REPETITION_CONFLICT));
+
+    Grammar.Node identifier = grammar.FindNode("identifier");
+    assert !analyzer.IsNullable(identifier);
+    assert analyzer.GetFirst(identifier).equals(
+        CharSet.Range('a', 'z').Union(CharSet.Range('A', 'Z')).Union(CharSet.Of('_')));
+    assert analyzer.GetFollow(identifier).equals(CharSet.Of(' ', '\t', '\r', '\n', '/', '='));
+    assert !analyzer.CanFollowEof(identifier);
+    assert analyzer.IsNullable(grammar.FindNode("file"));
+    assert analyzer.CanFollowEof(grammar.FindNode("statement"));
+}
+
+@Test public void
+Expressions()
+{
+    Grammar grammar = new ExpressionsTest().grammar;
+    /* Each pair of alternatives except identifier and number overlaps. */
+    Analyze(new GrammarAnalyzer(grammar.FindNode("file")),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.LEFT_RECURSION),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.OVERLAPPING_VARIANTS),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.OVERLAPPING_VARIANTS),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.OVERLAPPING_VARIANTS),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.OVERLAPPING_VARIANTS),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.OVERLAPPING_VARIANTS));
+}
+
+@Test public void
+Conflicts()
+{
+    Grammar grammar = new Grammar() {{
+        Node("nested").Sequence(Char('a').OneToMany()).OneToMany();
+        Node("keyword").Any(String("abc"), String("abd"));
+        Node("empty").Any(Char('x').NoneToMany(), Char('y').Optional());
+        Node("wide").Any(
+            Char('0'), Char('1'), Char('2'), Char('3'), Char('4'), Char('5'), Char('6'),
+            Char('7'), Char('8'), Char('9'));
+        Node("file").Sequence(
+            NodeRef("nested"), Char(';'),
+            NodeRef("keyword"), Char(';'),
+            NodeRef("empty"), Char(';'),
+            NodeRef("wide")).Val(null);
+        Compile();
+    }};
+    GrammarAnalyzer analyzer = new GrammarAnalyzer(grammar.FindNode("file"))
+        .SetFanOutThreshold(8);
+    Analyze(analyzer,
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.NESTED_REPETITION),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.REPETITION_CONFLICT),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.OVERLAPPING_VARIANTS),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.AMBIGUOUS_EMPTY_VARIANTS),
+            new ParserUtil.Warning(GrammarAnalyzer.WarnCode.HIGH_FAN_OUT));
+    assert analyzer.GetFanOut(grammar.FindNode("wide")) == 10;
+}
+
+}
@@ -0,0 +1,180 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.function.IntFunction;
+
+import static utils.Utils.AssertThrows;
+
+public class InputWindowTest {
+
+/** Reader which generates input by parts without keeping it whole. Retained input is verified
+ * against the generated text on each read.
+ */
+static class GeneratingReader extends Reader {
+
+    /**
+     * @param generator Returns part with the specified index, null for end of input.
+     */
+    GeneratingReader(IntFunction<String> generator)
+    {
+        this.generator = generator;
+    }
+
+    @Override public int
+    read(char[] buf, int offset, int length)
+    {
+        if (parser != null) {
+            VerifyRetained();
+        }
+        int n = 0;
+        while (n < length) {
+            if (partPos == part.length()) {
+                String nextPart = generator.apply(partIdx);
+                if (nextPart == null) {
+                    break;
+                }
+                partIdx++;
+                history.append(nextPart);
+                part = nextPart;
+                partPos = 0;
+            }
+            int count = Math.min(length - n, part.length() - partPos);
+            part.getChars(partPos, partPos + count, buf, offset + n);
+            partPos += count;
+            n += count;
+        }
+        numRead += n;
+        return n == 0 ? -1 : n;
+    }
+
+    @Override public void
+    close()
+    {}
+
+    void
+    VerifyRetained()
+    {
+        long size = parser.GetRetainedInputSize();
+        long start = numRead - size;
+        String text = parser.GetRetainedInput(start, numRead);
+        /* Only the tail of generated text is kept in history. */
+        int historyStart = (int)(start - (numRead - history.length() + part.length() - partPos));
+        assert text.equals(history.substring(historyStart, historyStart + (int)size));
+        if (start > 0) {
+            long _start = start;
+            AssertThrows(IndexOutOfBoundsException.class,
+                         () -> parser.GetRetainedInput(_start - 1, _start));
+        }
+        /* Drop history which is not retained. */
+        history.delete(0, historyStart);
+    }
+
+    Parser parser;
+    final IntFunction<String> generator;
+    String part = "";
+    int partIdx, partPos;
+    long numRead;
+    /** Recently generated text, starts not later than retained input. */
+    final StringBuilder history = new StringBuilder();
+}
+
+static Parser
+TestRetention(Grammar.Node grammar, IntFunction<String> generator)
+    throws IOException
+{
+    GeneratingReader reader = new GeneratingReader(generator);
+    Parser parser = new Parser(grammar, reader).SetInputRetention(true);
+    reader.parser = parser;
+    Summary summary = parser.Parse().GetSummary();
+    System.out.println(summary);
+    System.out.println(parser.GetStats());
+    ParserUtil.VerifySummary(summary);
+    return parser;
+}
+
+@Test public void
+Window()
+{
+    InputWindow window = new InputWindow(4);
+    window.Append("abcdefg".toCharArray(), 0, 7);
+    window.Append("xhijx".toCharArray(), 1, 3);
+    assert window.GetRetainedSize() == 10;
+    assert window.GetText(0, 10).equals("abcdefghij");
+    assert window.GetText(3, 9).equals("defghi");
+    assert window.GetText(4, 4).isEmpty();
+
+    /* Only whole chunks before the offset are released. */
+    window.Release(3);
+    assert window.GetStartOffset() == 0;
+    window.Release(9);
+    assert window.GetStartOffset() == 8;
+    assert window.GetRetainedSize() == 2;
+    assert window.GetText(8, 10).equals("ij");
+    AssertThrows(IndexOutOfBoundsException.class, () -> window.GetText(7, 9));
+    AssertThrows(IndexOutOfBoundsException.class, () -> window.GetText(8, 11));
+
+    /* Released chunks are reused. */
+    window.Append("klmnopqrst".toCharArray(), 0, 10);
+    assert window.GetText(8, 20).equals("ijklmnopqrst");
+    assert window.GetPeakRetainedSize() == 12;
+    window.Release(100);
+    assert window.GetRetainedSize() == 0;
+}
+
+@Test public void
+BoundedRetention()
+    throws IOException
+{
+    Grammar.Node fileNode = BasicTest.CreateGrammar(false).FindNode("file");
+    long[] peaks = new long[2];
+    for (int i = 0; i < 2; i++) {
+        int numStatements = i == 0 ? 2000 : 20000;
+        Parser parser = TestRetention(fileNode, idx -> idx < numStatements ?
+            String.format("v%d = \"%d\"; /* comment */\n", idx, idx) : null);
+        peaks[i] = parser.GetStats().peakRetainedInput;
+        assert parser.GetResult().GetRoot().children.size() == numStatements;
+    }
+    /* Independent of the input size. */
+    assert peaks[1] <= 3 * 4096;
+    assert peaks[1] <= peaks[0] + 4096;
+
+    AssertThrows(IllegalStateException.class,
+                 () -> new Parser(fileNode, "a = 1;").GetRetainedInput(0, 1));
+    assert new Parser(fileNode, "a = 1;").GetRetainedInputSize() == 0;
+}
+
+@Test public void
+LongUncommittedRegion()
+    throws IOException
+{
+    /* Item kind is known only after its last character, so it stays uncommitted until then. */
+    Grammar grammar = new Grammar() {{
+        Node("item").Any(
+            Sequence(AnyChar("ab").OneToMany(), Char('x')),
+            Sequence(AnyChar("ab").OneToMany(), Char('y'))).Val(null);
+        Node("file").Sequence(
+            NodeRef("item"),
+            Sequence(Char(';'), NodeRef("item")).NoneToMany()).Val(null);
+        Compile();
+    }};
+    int longLength = 50000;
+    Parser parser = TestRetention(grammar.FindNode("file"), idx -> {
+        if (idx >= 2000) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(idx == 0 ? "" : ";");
+        int length = idx == 1000 ? longLength : 3;
+        for (int i = 0; i < length; i++) {
+            sb.append(i % 3 == 0 ? 'a' : 'b');
+        }
+        return sb.append(idx % 2 == 0 ? 'x' : 'y').toString();
+    });
+    long peak = parser.GetStats().peakRetainedInput;
+    assert peak >= longLength;
+    assert peak <= longLength + 3 * 4096;
+}
+
+}
@@ -0,0 +1,100 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static utils.Utils.AssertThrows;
+
+public class MatcherGeneratorTest {
+
+BasicTest basicTest = new BasicTest();
+
+/** Characters to check matching on: ASCII, around ranges bounds and some non-BMP ones. */
+static int[]
+TestChars()
+{
+    ArrayList<Integer> chars = new ArrayList<>();
+    for (int c = 0; c < 0x800; c++) {
+        chars.add(c);
+    }
+    for (int c: new int[] {0xfffe, 0xffff, 0x10000, 0x1f600, CharSet.MAX_CHAR}) {
+        chars.add(c);
+    }
+    return chars.stream().mapToInt(Integer::intValue).toArray();
+}
+
+@Test public void
+SameMatching()
+{
+    Grammar interpreted = new Grammar(), generated = new Grammar();
+    ArrayList<Grammar.CharNode> interpretedNodes = new ArrayList<>(),
+        generatedNodes = new ArrayList<>();
+    for (Grammar grammar: new Grammar[] {interpreted, generated}) {
+        ArrayList<Grammar.CharNode> nodes = grammar == interpreted ?
+            interpretedNodes : generatedNodes;
+        nodes.add(grammar.Char('a'));
+        nodes.add(grammar.CharRange('0', '9').IncludeRange('a', 'f').Exclude('c'));
+        nodes.add(grammar.AnyChar().Exclude("\r\n").ExcludeRange(0x400, 0x4ff).Include(0x450));
+        nodes.add(grammar.AnyChar("+-*/").Include(0x1f600));
+        nodes.add(grammar.AnyChar().Exclude(0x10000));
+        grammar.Node("token").Sequence(
+            grammar.Char('"'),
+            grammar.Any(grammar.AnyChar().Exclude("\"\\"),
+                        grammar.Sequence(grammar.Char('\\'), grammar.AnyChar("\"\\n"))
+            ).NoneToMany(),
+            grammar.Char('"')).Token();
+        ArrayList<Grammar.Node> content = new ArrayList<>(nodes);
+        content.add(grammar.NodeRef("token"));
+        grammar.Node("file").Sequence(content.toArray(new Grammar.Node[0])).Val(null);
+        grammar.Compile();
+    }
+    generated.GenerateMatchers();
+
+    int[] chars = TestChars();
+    for (int i = 0; i < interpretedNodes.size(); i++) {
+        for (int c: chars) {
+            assert interpretedNodes.get(i).MatchChar(c) == generatedNodes.get(i).MatchChar(c);
+        }
+    }
+    TokenAutomaton interpretedToken = interpreted.FindNode("token").token,
+        generatedToken = generated.FindNode("token").token;
+    for (int state = 0; state < interpretedToken.GetStatesCount(); state++) {
+        for (int c: chars) {
+            assert interpretedToken.NextState(state, c) == generatedToken.NextState(state, c);
+        }
+    }
+}
+
+@Test public void
+SameAst()
+    throws IOException
+{
+    StringBuilder comment = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+        comment.append(i % 80 == 0 ? '\n' : i % 3 == 1 ? '*' : 'x');
+    }
+    String file = basicTest.testFile1 + "\n/*" + comment + "*/ id = \"\\\\\";";
+    for (boolean tokens: new boolean[] {false, true}) {
+        Grammar grammar = BasicTest.CreateGrammar(tokens);
+        Parser expected = ParserUtil.TestParser(grammar.FindNode("file"), file);
+        grammar.GenerateMatchers();
+        Parser parser = ParserUtil.TestParser(grammar.FindNode("file"), file);
+        BasicTest.VerifySameAst(parser.GetResult().GetRoot(), expected.GetResult().GetRoot(),
+                                true);
+        ParserUtil.TestParser(grammar.FindNode("file"), "a = 1 b = 2;",
+                              new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 6));
+    }
+}
+
+@Test public void
+NotCompiled()
+{
+    Grammar grammar = new Grammar() {{
+        Node("file").Sequence(Char('a')).Val(null);
+    }};
+    AssertThrows(IllegalStateException.class, grammar::GenerateMatchers);
+}
+
+}
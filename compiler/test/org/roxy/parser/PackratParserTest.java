@@ -0,0 +1,146 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static utils.Utils.AssertThrows;
+
+public class PackratParserTest {
+
+BasicTest basicTest = new BasicTest();
+
+static PackratParser
+TestParser(Grammar.Node grammar, String file, ParserUtil.Record... expectedRecords)
+    throws IOException
+{
+    PackratParser parser = new PackratParser(grammar, file);
+    Summary summary = parser.Parse().GetSummary();
+    System.out.println(summary);
+    ParserUtil.VerifySummary(summary, expectedRecords);
+    return parser;
+}
+
+@Test public void
+SameAsBranching()
+    throws IOException
+{
+    StringBuilder comment = new StringBuilder(), ident = new StringBuilder("id");
+    for (int i = 0; i < 1000; i++) {
+        comment.append(i % 80 == 0 ? '\n' : '/');
+        ident.append(i % 10);
+    }
+    String file = basicTest.testFile1 + "\r\n/*" + comment + "*/ " + ident + " = \"\\\\\";";
+
+    for (boolean tokens: new boolean[] {false, true}) {
+        Grammar.Node fileNode = BasicTest.CreateGrammar(tokens).FindNode("file");
+        ParserEngine branching = ParserEngine.Create(ParserEngine.Kind.BRANCHING, fileNode,
+                                                     new StringReader(file)).Parse();
+        ParserEngine packrat = ParserEngine.Create(ParserEngine.Kind.PACKRAT, fileNode,
+                                                   new StringReader(file)).Parse();
+        ParserUtil.VerifySummary(packrat.GetSummary());
+        /* End positions differ, see PackratParser description. */
+        BasicTest.VerifySameAst(packrat.GetResult().GetRoot(), branching.GetResult().GetRoot(),
+                                false);
+        assert basicTest.Compile(packrat.GetResult(), packrat.GetSummary()).get(ident.toString())
+            .equals("\\");
+    }
+}
+
+@Test public void
+Errors()
+    throws IOException
+{
+    Grammar.Node fileNode = basicTest.fileNode;
+    TestParser(fileNode, "a = 1 b = 2;",
+               new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 6));
+    TestParser(fileNode, "a = \"some value",
+               new ParserUtil.Error(Parser.ErrorCode.INCOMPLETE_NODE, 1, 4));
+    TestParser(fileNode, "a = 1",
+               new ParserUtil.Error(Parser.ErrorCode.INCOMPLETE_NODE, 1, 5));
+    TestParser(fileNode, "/* comment *",
+               new ParserUtil.Error(Parser.ErrorCode.INCOMPLETE_NODE, 1, 0));
+    TestParser(fileNode, "a = \"some \\w value\";",
+               new ParserUtil.Error(TestNodeTag.ErrorCode.INVALID_ESCAPE, 1, 11));
+    TestParser(fileNode, "");
+
+    /* Parser instance is single-use. */
+    PackratParser parser = new PackratParser(fileNode, "a = 1;");
+    parser.Parse();
+    AssertThrows(IllegalStateException.class, parser::Parse);
+}
+
+@Test public void
+OrderedChoice()
+    throws IOException
+{
+    Grammar grammar = new Grammar() {{
+        Node("short-first").Sequence(Any(String("a"), String("ab")), Char('c')).Val(null);
+        Node("long-first").Sequence(Any(String("ab"), String("a")), Char('c')).Val(null);
+        Node("kw").Def(Literals("in", "int")).Val(null, true);
+        Node("keywords").Sequence(
+            NodeRef("kw"), Sequence(Char(' '), NodeRef("kw")).NoneToMany()).Val(null);
+        Compile();
+    }};
+    /* First matching variant is taken without backtracking into the choice. */
+    TestParser(grammar.FindNode("short-first"), "abc",
+               new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 1));
+    TestParser(grammar.FindNode("short-first"), "ac");
+    TestParser(grammar.FindNode("long-first"), "abc");
+    TestParser(grammar.FindNode("long-first"), "ac");
+
+    /* Longest literal is matched. */
+    Ast.Node root = TestParser(grammar.FindNode("keywords"), "int in").GetResult().GetRoot();
+    assert root.children.size() == 2;
+    assert root.children.get(0).str.equals("int");
+    assert root.children.get(1).str.equals("in");
+}
+
+@Test public void
+LeftRecursion()
+{
+    Grammar grammar = new Grammar() {{
+        Node("expr").Any(
+            Sequence(NodeRef("expr"), Char('+'), Char('1')),
+            Char('1')).Val(null);
+        Compile();
+    }};
+    AssertThrows(IllegalStateException.class,
+                 () -> new PackratParser(grammar.FindNode("expr"), "1+1").Parse());
+}
+
+@Test public void
+LinearMemo()
+    throws IOException
+{
+    StringBuilder sb = new StringBuilder();
+    long[] numEntries = new long[2];
+    for (int i = 0; i < 2; i++) {
+        for (int j = 0; j < 1000; j++) {
+            sb.append(String.format("v%d = %d; /* c */\n", sb.length(), j));
+        }
+        PackratParser parser = TestParser(basicTest.fileNode, sb.toString());
+        numEntries[i] = parser.GetMemoEntriesCount();
+        assert parser.GetResult().GetRoot().children.size() == 1000 * (i + 1);
+    }
+    assert numEntries[1] <= numEntries[0] * 2.2;
+}
+
+@Test public void
+Cancel()
+    throws IOException
+{
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+        sb.append("a = 1;\n");
+    }
+    PackratParser parser = new PackratParser(basicTest.fileNode, sb.toString());
+    parser.Cancel();
+    Summary summary = parser.Parse().GetSummary();
+    assert summary.GetErrorsCount() == 1;
+    assert summary.records.get(0).code == Parser.ErrorCode.CANCELLED;
+    assert parser.GetResult().GetRoot() == null;
+}
+
+}
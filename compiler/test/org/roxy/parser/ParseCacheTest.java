@@ -0,0 +1,225 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+public class ParseCacheTest {
+
+BasicTest basicTest = new BasicTest();
+
+static class NumTag implements Ast.Tag {
+    final int value;
+
+    NumTag(int value)
+    {
+        this.value = value;
+    }
+}
+
+Grammar numGrammar = new Grammar() {{
+    Node("number").Sequence(CharRange('0', '9').OneToMany()).Val(
+        (node, summary) -> {
+            NumTag tag = new NumTag(Integer.parseInt(node.str));
+            node.str = null;
+            return tag;
+        }, true);
+    Node("file").Sequence(
+        NodeRef("number"), Sequence(Char(' '), NodeRef("number")).NoneToMany()).Val(null);
+    Compile();
+}};
+
+ParseCache.TagCodec numTagCodec = new ParseCache.TagCodec() {
+    @Override public void
+    Encode(Ast.Node node, DataOutput out)
+        throws IOException
+    {
+        out.writeInt(((NumTag)node.tag).value);
+    }
+
+    @Override public Ast.Tag
+    Decode(Ast.Node node, DataInput in)
+        throws IOException
+    {
+        return new NumTag(in.readInt());
+    }
+};
+
+static void
+DeleteDir(Path dir)
+    throws IOException
+{
+    try (Stream<Path> s = Files.list(dir)) {
+        for (Object file: s.toArray()) {
+            Files.delete((Path)file);
+        }
+    }
+    Files.delete(dir);
+}
+
+Ast
+Parse(ParseCache cache, Grammar.Node grammar, String content, ParserUtil.Record... expectedRecords)
+    throws IOException
+{
+    Summary summary = new Summary();
+    Ast ast = cache.Parse(grammar, content, summary);
+    ParserUtil.VerifySummary(summary, expectedRecords);
+    return ast;
+}
+
+@Test public void
+HitAndMiss()
+    throws IOException
+{
+    Path dir = Files.createTempDirectory("roxy-cache");
+    try {
+        ParseCache cache = new ParseCache(dir, 1 << 20);
+        for (int i = 0; i < 2; i++) {
+            Summary summary = new Summary();
+            Ast ast = cache.Parse(basicTest.fileNode, basicTest.testFile1, summary);
+            assert summary.GetErrorsCount() == 0;
+            basicTest.VerifyResult(basicTest.Compile(ast, summary), basicTest.expectedData);
+            assert ((TestNodeTag)ast.GetRoot().tag).type == TestNodeTag.Type.FILE;
+        }
+        assert cache.GetMisses() == 1;
+        assert cache.GetHits() == 1;
+
+        /* Tag fabric errors are reproduced on load. */
+        for (int i = 0; i < 2; i++) {
+            Parse(cache, basicTest.fileNode, "a = \"some \\w value\";",
+                  new ParserUtil.Error(TestNodeTag.ErrorCode.INVALID_ESCAPE, 1, 11));
+            Parse(cache, basicTest.fileNode, "a = 1 b = 2;",
+                  new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 6));
+        }
+        assert cache.GetMisses() == 3;
+        assert cache.GetHits() == 3;
+        assert cache.GetEntriesCount() == 3;
+
+        /* Entries survive cache re-opening. */
+        cache = new ParseCache(dir, 1 << 20);
+        assert cache.GetEntriesCount() == 3;
+        Parse(cache, basicTest.fileNode, "a = 1;");
+        Parse(cache, basicTest.fileNode, basicTest.testFile1);
+        assert cache.GetMisses() == 1;
+        assert cache.GetHits() == 1;
+
+        /* Different grammar does not use the same entry. */
+        Ast ast = Parse(cache, numGrammar.FindNode("file"), "1 2");
+        assert ast.GetRoot().children.size() == 2;
+        assert cache.GetMisses() == 2;
+        /* Neither does different root node of the same grammar. */
+        Parse(cache, numGrammar.FindNode("file"), "1");
+        ast = Parse(cache, numGrammar.FindNode("number"), "1");
+        assert ast.GetRoot().grammarNode == numGrammar.FindNode("number");
+        assert cache.GetMisses() == 4;
+
+        cache.Clear();
+        assert cache.GetEntriesCount() == 0;
+        assert cache.GetSize() == 0;
+    } finally {
+        DeleteDir(dir);
+    }
+}
+
+/** Entry with huge size or count written at any offset is a cache miss rather than a crash. */
+@Test public void
+CorruptedEntry()
+    throws IOException
+{
+    Path dir = Files.createTempDirectory("roxy-cache");
+    try {
+        ParseCache cache = new ParseCache(dir, 1 << 20);
+        for (String content: new String[] {"abc = 1;", "a = 1 b = 2;"}) {
+            cache.Parse(basicTest.fileNode, content, new Summary());
+            Path entry;
+            try (Stream<Path> s = Files.list(dir)) {
+                entry = s.filter(p -> p.toString().endsWith(".ast")).findFirst().get();
+            }
+            byte[] data = Files.readAllBytes(entry);
+            for (int offset = 0; offset <= data.length - 4; offset++) {
+                byte[] corrupted = data.clone();
+                ByteBuffer.wrap(corrupted).putInt(offset, Integer.MAX_VALUE - 16);
+                Files.write(entry, corrupted);
+                /* Entries have no checksum, so only the absence of failure is checked. */
+                cache.Parse(basicTest.fileNode, content, new Summary());
+            }
+            cache.Clear();
+        }
+        /* Identifier string size. */
+        cache.Parse(basicTest.fileNode, "abc = 1;", new Summary());
+        Path entry;
+        try (Stream<Path> s = Files.list(dir)) {
+            entry = s.filter(p -> p.toString().endsWith(".ast")).findFirst().get();
+        }
+        byte[] data = Files.readAllBytes(entry);
+        int strOffset = new String(data, StandardCharsets.ISO_8859_1).indexOf("abc") - 4;
+        assert ByteBuffer.wrap(data).getInt(strOffset) == 3;
+        ByteBuffer.wrap(data).putInt(strOffset, Integer.MAX_VALUE - 16);
+        Files.write(entry, data);
+        long misses = cache.GetMisses();
+        Ast ast = Parse(cache, basicTest.fileNode, "abc = 1;");
+        assert cache.GetMisses() == misses + 1;
+        assert ast.GetRoot().children.size() == 1;
+    } finally {
+        DeleteDir(dir);
+    }
+}
+
+@Test public void
+Eviction()
+    throws IOException
+{
+    Path dir = Files.createTempDirectory("roxy-cache");
+    try {
+        ParseCache cache = new ParseCache(dir, 1 << 20);
+        Parse(cache, numGrammar.FindNode("file"), "0");
+        long entrySize = cache.GetSize();
+        cache = new ParseCache(dir, entrySize * 3);
+        Grammar.Node grammar = numGrammar.FindNode("file");
+        for (int i = 1; i < 10; i++) {
+            Parse(cache, grammar, String.valueOf(i));
+            /* Keep the first one recently used. */
+            Parse(cache, grammar, "0");
+        }
+        assert cache.GetEntriesCount() == 3;
+        assert cache.GetSize() <= entrySize * 3;
+        long misses = cache.GetMisses();
+        Parse(cache, grammar, "0");
+        Parse(cache, grammar, "9");
+        Parse(cache, grammar, "8");
+        assert cache.GetMisses() == misses;
+        Parse(cache, grammar, "1");
+        assert cache.GetMisses() == misses + 1;
+    } finally {
+        DeleteDir(dir);
+    }
+}
+
+@Test public void
+TagCodec()
+    throws IOException
+{
+    Path dir = Files.createTempDirectory("roxy-cache");
+    try {
+        ParseCache cache = new ParseCache(dir, 1 << 20).SetTagCodec(numTagCodec);
+        Grammar.Node grammar = numGrammar.FindNode("file");
+        for (int i = 0; i < 2; i++) {
+            Ast ast = Parse(cache, grammar, "12 34");
+            assert ast.GetRoot().children.size() == 2;
+            assert ((NumTag)ast.GetRoot().children.get(1).tag).value == 34;
+            assert ast.GetRoot().children.get(1).str == null;
+        }
+        assert cache.GetHits() == 1;
+    } finally {
+        DeleteDir(dir);
+    }
+}
+
+}
@@ -0,0 +1,179 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+
+public class ParseForestTest {
+
+/** Item is a sequence of words without separators, so it can be split in any way. */
+Grammar grammar = new Grammar() {{
+    Node("word").Sequence(CharRange('a', 'z').OneToMany()).Val(null, true);
+    Node("item").Sequence(NodeRef("word").OneToMany()).Val(null);
+    Node("file").Sequence(
+        NodeRef("item"),
+        Sequence(Char(';'), NodeRef("item")).NoneToMany()).Val(null);
+    Compile();
+}};
+
+Grammar.Node fileNode = grammar.FindNode("file");
+
+static ParseForest
+TestForest(Grammar.Node grammar, String file)
+{
+    Parser parser = new Parser(grammar, file).SetForestOutput(true);
+    Summary summary;
+    try {
+        summary = parser.Parse().GetSummary();
+    } catch (Throwable t) {
+        throw new RuntimeException(t);
+    }
+    System.out.println(summary);
+    ParserUtil.VerifySummary(summary);
+    assert parser.GetResult().GetRoot() == null;
+    return parser.GetForest();
+}
+
+/** Get words of the tree items, items separated by '|', words by ' '. */
+static String
+DescribeTree(Ast ast)
+{
+    StringBuilder sb = new StringBuilder();
+    for (Ast.Node item: ast.GetRoot().children) {
+        if (sb.length() != 0) {
+            sb.append('|');
+        }
+        for (Ast.Node word: item.children) {
+            if (word != item.children.get(0)) {
+                sb.append(' ');
+            }
+            sb.append(word.str);
+        }
+    }
+    return sb.toString();
+}
+
+static HashSet<String>
+ExtractTrees(ParseForest forest)
+{
+    HashSet<String> trees = new HashSet<>();
+    for (long i = 0; i < forest.CountTrees(); i++) {
+        Summary summary = new Summary();
+        assert trees.add(DescribeTree(forest.ExtractTree(i, summary)));
+        ParserUtil.VerifySummary(summary);
+    }
+    return trees;
+}
+
+@Test public void
+Ambiguity()
+{
+    /* Reported as error by default. */
+    ParserUtil.TestParser(fileNode, "abcd",
+                          new ParserUtil.Error(Parser.ErrorCode.AMBIGUOUS_SYNTAX, 1, 4));
+    /* Unambiguous input does not produce forest. */
+    Parser parser = new Parser(fileNode, "a;b").SetForestOutput(true);
+    try {
+        parser.Parse();
+    } catch (Throwable t) {
+        throw new RuntimeException(t);
+    }
+    assert parser.GetForest() == null;
+    assert parser.GetResult().GetRoot().children.size() == 2;
+
+    ParseForest forest = TestForest(fileNode, "abcd");
+    assert forest.CountTrees() == 8;
+    assert forest.GetRoot().GetGrammarNode() == fileNode;
+    HashSet<String> trees = ExtractTrees(forest);
+    assert trees.contains("abcd");
+    assert trees.contains("a b c d");
+    assert trees.contains("ab cd");
+}
+
+@Test public void
+CommittedPrefix()
+{
+    ParseForest forest = TestForest(fileNode, "x;ab");
+    HashSet<String> trees = ExtractTrees(forest);
+    assert trees.size() == 2;
+    assert trees.contains("x|ab");
+    assert trees.contains("x|a b");
+    /* Committed item is shared by both trees. */
+    int numFixed = 0;
+    for (ParseForest.Packed packed: forest.GetRoot().GetPackedNodes()) {
+        ParseForest.Node first = packed.GetLeft().GetPackedNodes().get(0).GetRight();
+        if (first.GetAstNode() != null) {
+            numFixed++;
+        }
+    }
+    assert numFixed == forest.GetRoot().GetPackedNodes().size();
+}
+
+@Test public void
+SharedNodes()
+{
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 12; i++) {
+        sb.append((char)('a' + i));
+    }
+    ParseForest forest = TestForest(fileNode, sb.toString());
+    assert forest.CountTrees() == 1 << 11;
+    /* Each word range is represented once, intermediate nodes once per item prefix range. */
+    assert forest.GetNodesCount() <= 12 * 13 / 2 * 2 + 1;
+}
+
+/** Prefixes of different alternatives with the same range should not be merged. */
+@Test public void
+SharedPrefixRange()
+{
+    Grammar grammar = new Grammar() {{
+        Node("p").Sequence(Literals("xx")).Val(null, true);
+        Node("q").Sequence(Literals("xx")).Val(null, true);
+        Node("b").Sequence(Char('y').OneToMany()).Val(null, true);
+        Node("d").Sequence(Char('y').OneToMany()).Val(null, true);
+        Node("e").Sequence(Char('y').OneToMany()).Val(null, true);
+        Node("file").Any(
+            Sequence(NodeRef("p"), NodeRef("b")),
+            Sequence(NodeRef("q"), NodeRef("d"), NodeRef("e"))).Val(null);
+        Compile();
+    }};
+    ParseForest forest = TestForest(grammar.FindNode("file"), "xxyyy");
+    assert forest.CountTrees() == 3;
+    HashSet<String> trees = new HashSet<>();
+    for (long i = 0; i < forest.CountTrees(); i++) {
+        Summary summary = new Summary();
+        StringBuilder sb = new StringBuilder();
+        for (Ast.Node child: forest.ExtractTree(i, summary).GetRoot().children) {
+            if (sb.length() != 0) {
+                sb.append(' ');
+            }
+            sb.append(child.grammarNode.name).append('=').append(child.str);
+        }
+        ParserUtil.VerifySummary(summary);
+        assert trees.add(sb.toString());
+    }
+    assert trees.contains("p=xx b=yyy");
+    assert trees.contains("q=xx d=y e=yy");
+    assert trees.contains("q=xx d=yy e=y");
+}
+
+@Test public void
+Filter()
+{
+    ParseForest forest = TestForest(fileNode, "abcd");
+    /* Reject single-letter words. */
+    forest.Filter((node, packed) ->
+        !node.GetGrammarNode().GetName().equals("word") ||
+        packed.GetStr().length() > 1);
+    HashSet<String> trees = ExtractTrees(forest);
+    assert trees.size() == 2;
+    assert trees.contains("abcd");
+    assert trees.contains("ab cd");
+
+    /* Reject everything. */
+    forest.Filter((node, packed) -> false);
+    assert forest.CountTrees() == 0;
+    assert forest.GetRoot() == null;
+}
+
+}
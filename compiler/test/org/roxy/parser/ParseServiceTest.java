@@ -0,0 +1,107 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class ParseServiceTest {
+
+BasicTest basicTest = new BasicTest();
+
+/** Reader which blocks until interrupted. */
+PipedReader
+StalledReader()
+    throws IOException
+{
+    PipedReader reader = new PipedReader();
+    new PipedWriter(reader);
+    return reader;
+}
+
+@Test public void
+Concurrent()
+    throws Exception
+{
+    try (ParseService service = new ParseService(4)) {
+        ArrayList<Future<ParseService.Result>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(service.Submit("file" + i, basicTest.fileNode,
+                                       new StringReader(basicTest.testFile1), 0));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            ParseService.Result result = futures.get(i).get();
+            assert result.name.equals("file" + i);
+            assert result.status == ParseService.Status.OK;
+            assert result.summary.GetErrorsCount() == 0;
+            basicTest.VerifyResult(basicTest.Compile(result.ast, result.summary),
+                                   basicTest.expectedData);
+        }
+    }
+}
+
+@Test public void
+Deadline()
+    throws Exception
+{
+    try (ParseService service = new ParseService(1)) {
+        Future<ParseService.Result> stalled =
+            service.Submit("stalled", basicTest.fileNode, StalledReader(), 50);
+        /* Queued behind the stalled one, should complete after its deadline. */
+        Future<ParseService.Result> queued =
+            service.Submit("queued", basicTest.fileNode, new StringReader("a = 1;"), 0);
+        ParseService.Result result = stalled.get();
+        assert result.status == ParseService.Status.DEADLINE_EXCEEDED;
+        assert result.ast == null;
+        result = queued.get();
+        assert result.status == ParseService.Status.OK;
+        assert result.summary.GetErrorsCount() == 0;
+        assert service.GetActiveCount() == 0;
+    }
+}
+
+@Test public void
+Scope()
+    throws Exception
+{
+    try (ParseService service = new ParseService(2)) {
+        List<ParseService.Result> results;
+        try (ParseService.Scope scope = service.OpenScope(100)) {
+            scope.Fork("good", basicTest.fileNode, new StringReader("a = 1;"));
+            scope.Fork("stalled", basicTest.fileNode, StalledReader());
+            scope.Fork("bad", basicTest.fileNode, new StringReader("a = ;"));
+            results = scope.Join();
+        }
+        assert results.size() == 3;
+        assert results.get(0).status == ParseService.Status.OK;
+        assert results.get(1).status == ParseService.Status.DEADLINE_EXCEEDED;
+        assert results.get(2).status == ParseService.Status.OK;
+        assert results.get(2).summary.GetErrorsCount() != 0;
+
+        Future<ParseService.Result> stalled;
+        try (ParseService.Scope scope = service.OpenScope(0)) {
+            stalled = scope.Fork("stalled", basicTest.fileNode, StalledReader());
+        }
+        /* Closing the scope cancels incomplete requests. */
+        assert stalled.isDone();
+        assert stalled.get().status == ParseService.Status.CANCELLED;
+    }
+}
+
+@Test public void
+Cancel()
+    throws IOException
+{
+    Parser parser = new Parser(basicTest.fileNode, basicTest.testFile1);
+    parser.Cancel();
+    Summary summary = new Summary();
+    parser.Parse(summary);
+    ParserUtil.VerifySummary(summary, new ParserUtil.Error(Parser.ErrorCode.CANCELLED, 1, 0));
+}
+
+}
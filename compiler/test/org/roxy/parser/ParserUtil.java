@@ -79,7 +79,7 @@ VerifySummary(Summary summary, Record... expectedRecords)
 {
     HashSet<Summary.Record> matchedRecords = new HashSet<>();
     for (Record rec: expectedRecords) {
-        Summary.Record _rec = FindRecord(rec, summary);
+        Summary.Record _rec = FindRecord(rec, summary, matchedRecords);
         if (_rec == null) {
             throw new AssertionError("Expected record not found: " + rec);
         }
@@ -132,10 +132,10 @@ TestParser(Grammar.Node grammar, String file, Record... expectedRecords)
 }
 
 private static Summary.Record
-FindRecord(Record rec, Summary summary)
+FindRecord(Record rec, Summary summary, HashSet<Summary.Record> matchedRecords)
 {
     for (Summary.Record _rec: summary.records) {
-        if (rec.Match(_rec)) {
+        if (!matchedRecords.contains(_rec) && rec.Match(_rec)) {
             return _rec;
         }
     }
@@ -0,0 +1,176 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static utils.Utils.AssertThrows;
+
+public class PredicateTest {
+
+/** Keywords and words with optional separators, boundaries are defined by predicates only. */
+static Grammar
+CreateWordsGrammar()
+{
+    return new Grammar() {{
+        Node("keyword").Sequence(Literals("if", "else"), NotFollowedBy(CharRange('a', 'z')))
+            .Val(null, true);
+        Node("word").Sequence(
+            NotFollowedBy(Sequence(Literals("if", "else"), AnyChar(" ;"))),
+            CharRange('a', 'z').OneToMany(),
+            NotFollowedBy(CharRange('a', 'z'))).Val(null, true);
+        Node("item").Any(NodeRef("keyword"), NodeRef("word"));
+        Node("file").Sequence(
+            NodeRef("item"),
+            Sequence(Char(' ').NoneToMany(), NodeRef("item")).NoneToMany(),
+            Char(';')).Val(null);
+        Compile();
+    }};
+}
+
+static void
+VerifyItems(Ast.Node root, String... expected)
+{
+    assert root.children.size() == expected.length;
+    for (int i = 0; i < expected.length; i++) {
+        Ast.Node child = root.children.get(i);
+        assert (child.grammarNode.name + ":" + child.str).equals(expected[i]) :
+            child.grammarNode.name + ":" + child.str;
+    }
+}
+
+@Test public void
+Keywords()
+    throws IOException
+{
+    Grammar.Node fileNode = CreateWordsGrammar().FindNode("file");
+    String file = "if iffy else elsewhere ifelse x;";
+    Parser parser = ParserUtil.TestParser(fileNode, file);
+    System.out.println(parser.GetStats());
+    Ast.Node root = parser.GetResult().GetRoot();
+    VerifyItems(root, "keyword:if", "word:iffy", "keyword:else", "word:elsewhere",
+                "word:ifelse", "word:x");
+    assert parser.GetStats().numPredicates > 0;
+    assert parser.GetStats().branchesKilled > 0;
+
+    Ast.Node packratRoot = PackratParserTest.TestParser(fileNode, file).GetResult().GetRoot();
+    BasicTest.VerifySameAst(packratRoot, root, false);
+
+    /* Separator is required between keywords since each of them is not followed by a letter. */
+    VerifyItems(ParserUtil.TestParser(fileNode, "ifelse if;").GetResult().GetRoot(),
+                "word:ifelse", "keyword:if");
+    ParserUtil.TestParser(fileNode, "if1;",
+                          new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 2));
+}
+
+@Test public void
+FollowedBy()
+    throws IOException
+{
+    Grammar grammar = new Grammar() {{
+        Node("name").Sequence(CharRange('a', 'z').OneToMany(), NotFollowedBy(CharRange('a', 'z')))
+            .Val(null, true);
+        Node("label").Sequence(NodeRef("name"), FollowedBy(Char(':'))).Val(null);
+        Node("ref").Sequence(NodeRef("name"), NotFollowedBy(Char(':'))).Val(null);
+        Node("file").Sequence(
+            Any(Sequence(NodeRef("label"), Char(':')), NodeRef("ref"), Char(' ')).OneToMany())
+            .Val(null);
+        Compile();
+    }};
+    Grammar.Node fileNode = grammar.FindNode("file");
+    String file = "start: a b loop: c";
+    Ast.Node root = ParserUtil.TestParser(fileNode, file).GetResult().GetRoot();
+    String[] expected = {"label", "ref", "ref", "label", "ref"};
+    assert root.children.size() == expected.length;
+    for (int i = 0; i < expected.length; i++) {
+        assert root.children.get(i).grammarNode.name.equals(expected[i]);
+    }
+    Ast.Node packratRoot = PackratParserTest.TestParser(fileNode, file).GetResult().GetRoot();
+    BasicTest.VerifySameAst(packratRoot, root, false);
+}
+
+@Test public void
+InputEnd()
+    throws IOException
+{
+    Grammar grammar = new Grammar() {{
+        Node("file").Sequence(
+            Char('a'),
+            FollowedBy(Char('b')),
+            AnyChar("bc").NoneToMany(),
+            NotFollowedBy(Char('x'))).Val(null);
+        Compile();
+    }};
+    Grammar.Node fileNode = grammar.FindNode("file");
+    ParserUtil.TestParser(fileNode, "abc");
+    ParserUtil.TestParser(fileNode, "ac",
+                          new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 1));
+    /* Lookahead is not matched at the input end. */
+    ParserUtil.TestParser(fileNode, "a",
+                          new ParserUtil.Error(Parser.ErrorCode.PARSING_FAILED, 1, 1));
+    PackratParserTest.TestParser(fileNode, "abc");
+    /* Failure at the input end is reported as incomplete node by packrat parser. */
+    PackratParserTest.TestParser(fileNode, "a",
+                                 new ParserUtil.Error(Parser.ErrorCode.INCOMPLETE_NODE, 1, 0));
+}
+
+@Test public void
+BranchesReduced()
+    throws IOException
+{
+    /* Without predicate the call alternative is alive until the statement end. */
+    StringBuilder file = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+        file.append(i % 2 == 0 ? "if abcdefgh;" : "abcdefgh x();");
+    }
+    double[] meanBranches = new double[2];
+    for (int i = 0; i < 2; i++) {
+        boolean usePredicate = i == 1;
+        Grammar grammar = new Grammar() {{
+            if (usePredicate) {
+                Node("ident").Sequence(NotFollowedBy(Literals("if ")),
+                                       CharRange('a', 'z').OneToMany()).Val(null, true);
+            } else {
+                Node("ident").Sequence(CharRange('a', 'z').OneToMany()).Val(null, true);
+            }
+            Node("if").Sequence(Literals("if "), NodeRef("ident")).Val(null);
+            Node("call").Sequence(NodeRef("ident"), Char(' '), NodeRef("ident"), Literals("()"))
+                .Val(null);
+            Node("file").Sequence(
+                Sequence(Any(NodeRef("if"), NodeRef("call")), Char(';')).OneToMany())
+                .Val(null);
+            Compile();
+        }};
+        Parser parser = ParserUtil.TestParser(grammar.FindNode("file"), file.toString());
+        System.out.println(parser.GetStats());
+        assert parser.GetResult().GetRoot().children.size() == 200;
+        meanBranches[i] = parser.GetStats().GetMeanBranches();
+    }
+    assert meanBranches[1] < meanBranches[0];
+}
+
+@Test public void
+Invalid()
+{
+    AssertThrows(IllegalStateException.class, () -> new Grammar() {{
+        Node("file").Sequence(Char('a'), FollowedBy(Char('b')).OneToMany()).Val(null);
+        Compile();
+    }});
+    AssertThrows(IllegalStateException.class, () -> new Grammar() {{
+        Node("file").Sequence(Char('a'), FollowedBy(Char('b')).Val(null)).Val(null);
+        Compile();
+    }});
+    AssertThrows(IllegalStateException.class, () -> new Grammar() {{
+        Node("file").Sequence(NotFollowedBy(Sequence(Char('a'), FollowedBy(Char('b')))))
+            .Val(null);
+        Compile();
+    }});
+    AssertThrows(IllegalStateException.class, () -> new Grammar() {{
+        Node("word").Sequence(CharRange('a', 'z').OneToMany(), NotFollowedBy(Char('1')))
+            .Token();
+        Node("file").Sequence(NodeRef("word")).Val(null);
+        Compile();
+    }});
+}
+
+}
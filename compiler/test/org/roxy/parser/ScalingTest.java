@@ -0,0 +1,237 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.function.IntFunction;
+
+/** Checks that parsing time and peak number of branches grow not faster than expected with the
+ * input size. Inputs of growing size are generated, growth exponent is fitted by least squares in
+ * log-log scale. Bounds can be overridden by "roxy.scaling.maxTimeExponent" and
+ * "roxy.scaling.maxBranchesExponent" system properties.
+ *
+ * Peak branches number is deterministic and always checked. Time measurement is noisy on loaded
+ * machines and takes several runs per size, so it is done only when "roxy.scaling.enabled" system
+ * property is set to true.
+ */
+public class ScalingTest {
+
+static final boolean TIME_ENABLED = Boolean.getBoolean("roxy.scaling.enabled");
+static final double MAX_TIME_EXPONENT =
+    Double.parseDouble(System.getProperty("roxy.scaling.maxTimeExponent", "1.3"));
+static final double MAX_BRANCHES_EXPONENT =
+    Double.parseDouble(System.getProperty("roxy.scaling.maxBranchesExponent", "0.1"));
+/** Input size multipliers. */
+static final int[] SIZES = {1, 2, 4, 8};
+/** Number of parses per size when measuring time, minimal time is taken. */
+static final int NUM_RUNS = 5;
+
+/** Same language as ExpressionsTest grammar but with operators chain instead of left recursion
+ * (which is rejected by the parser). Right recursion is not used either since each operand end
+ * then walks all the enclosing expressions, which is quadratic for long chains. Parenthesized
+ * group is allowed as the first operand only, recursion in the repeated part is rejected.
+ */
+Grammar expressionsGrammar = new Grammar() {{
+    Node("decimal-digit").Def(CharRange('0', '9'));
+    Node("alphabetic").Def(CharRange('a', 'z').IncludeRange('A', 'Z'));
+    Node("gap").Def(AnyChar(" \t\r\n").OneToMany());
+
+    Node("number-literal").Sequence(Char('-').NoneToOne(), NodeRef("decimal-digit").OneToMany()).
+        Val(TestNodeTag.GetFabric(TestNodeTag.Type.NUM_LITERAL), true);
+    Node("identifier").Sequence(
+        Any(NodeRef("alphabetic"), Char('_')),
+        Any(NodeRef("alphabetic"), Char('_'), NodeRef("decimal-digit")).NoneToMany())
+        .Val(TestNodeTag.GetFabric(TestNodeTag.Type.IDENTIFIER), true);
+
+    Node("atom").Any(NodeRef("identifier"), NodeRef("number-literal"));
+    Node("group").Sequence(
+        Char('('), NodeRef("gap").NoneToOne(), NodeRef("expression"),
+        NodeRef("gap").NoneToOne(), Char(')'));
+    Node("expression").Sequence(
+        Any(NodeRef("atom"), NodeRef("group")),
+        Sequence(NodeRef("gap").NoneToOne(), AnyChar("+*"), NodeRef("gap").NoneToOne(),
+                 NodeRef("atom")).NoneToMany()).Val(null);
+
+    Node("statement").Sequence(
+        NodeRef("identifier"),
+        NodeRef("gap").NoneToOne(),
+        Char('='),
+        NodeRef("gap").NoneToOne(),
+        NodeRef("expression"),
+        NodeRef("gap").NoneToOne(),
+        Char(';')).Val(null);
+
+    Node("file").Sequence(
+        NodeRef("gap").NoneToOne(),
+        Sequence(
+            NodeRef("statement"),
+            NodeRef("gap").NoneToOne()
+        ).NoneToMany()).Val(null);
+
+    Compile();
+}};
+
+static class Sample {
+    final double size, timeNs, peakBranches;
+
+    Sample(double size, double timeNs, double peakBranches)
+    {
+        this.size = size;
+        this.timeNs = timeNs;
+        this.peakBranches = peakBranches;
+    }
+}
+
+/** Fit exponent k of y = a * x^k by least squares over log values. */
+static double
+FitExponent(double[] x, double[] y)
+{
+    int n = x.length;
+    double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+    for (int i = 0; i < n; i++) {
+        double lx = Math.log(x[i]), ly = Math.log(y[i]);
+        sumX += lx;
+        sumY += ly;
+        sumXX += lx * lx;
+        sumXY += lx * ly;
+    }
+    return (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+}
+
+/** Get CPU time of the current thread if supported, so that JIT compilation and garbage
+ * collection in other threads are not accounted, wall-clock time otherwise.
+ */
+static long
+GetTimeNs()
+{
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    return threads.isCurrentThreadCpuTimeSupported() ?
+        threads.getCurrentThreadCpuTime() : System.nanoTime();
+}
+
+static Sample
+Measure(Grammar.Node grammar, String input)
+    throws IOException
+{
+    long bestTime = Long.MAX_VALUE;
+    int peakBranches = 0;
+    for (int run = 0; run < (TIME_ENABLED ? NUM_RUNS : 1); run++) {
+        Parser parser = new Parser(grammar, input);
+        if (TIME_ENABLED) {
+            /* Do not account collection of previous runs garbage. */
+            System.gc();
+        }
+        long startTime = GetTimeNs();
+        Summary summary = parser.Parse().GetSummary();
+        bestTime = Math.min(bestTime, GetTimeNs() - startTime);
+        ParserUtil.VerifySummary(summary);
+        peakBranches = parser.GetStats().peakBranches;
+    }
+    return new Sample(input.length(), bestTime, peakBranches);
+}
+
+/** Measure parsing of the generated inputs and verify growth exponents.
+ *
+ * @param generator Generates input for the specified size multiplier.
+ */
+static void
+TestScaling(String name, Grammar.Node grammar, IntFunction<String> generator)
+    throws IOException
+{
+    String[] inputs = new String[SIZES.length];
+    for (int i = 0; i < SIZES.length; i++) {
+        inputs[i] = generator.apply(SIZES[i]);
+        if (TIME_ENABLED) {
+            /* Warm up JIT. */
+            Measure(grammar, inputs[i]);
+        }
+    }
+
+    double[] sizes = new double[SIZES.length], times = new double[SIZES.length],
+        branches = new double[SIZES.length];
+    for (int i = 0; i < SIZES.length; i++) {
+        Sample sample = Measure(grammar, inputs[i]);
+        sizes[i] = sample.size;
+        times[i] = sample.timeNs;
+        branches[i] = sample.peakBranches;
+        System.out.format("%s: %d chars, %.3f ms, %d peak branches\n", name,
+                          (long)sample.size, sample.timeNs / 1e6, (long)sample.peakBranches);
+    }
+    double timeExponent = FitExponent(sizes, times),
+        branchesExponent = FitExponent(sizes, branches);
+    System.out.format("%s: time exponent %.3f, peak branches exponent %.3f\n", name,
+                      timeExponent, branchesExponent);
+    assert !TIME_ENABLED || timeExponent <= MAX_TIME_EXPONENT :
+        String.format("%s: time grows as n^%.3f", name, timeExponent);
+    assert branchesExponent <= MAX_BRANCHES_EXPONENT :
+        String.format("%s: peak branches grow as n^%.3f", name, branchesExponent);
+}
+
+@Test public void
+FitExponent()
+{
+    double[] x = {1, 2, 4, 8}, linear = {3, 6, 12, 24}, quadratic = {1, 4, 16, 64};
+    assert Math.abs(FitExponent(x, linear) - 1) < 1e-9;
+    assert Math.abs(FitExponent(x, quadratic) - 2) < 1e-9;
+}
+
+@Test public void
+Statements()
+    throws IOException
+{
+    for (boolean tokens: new boolean[] {false, true}) {
+        Grammar.Node fileNode = BasicTest.CreateGrammar(tokens).FindNode("file");
+        TestScaling(tokens ? "statements (tokens)" : "statements", fileNode, size -> {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < size * 1000; i++) {
+                sb.append(i % 2 == 0 ?
+                    String.format("var%d = %d;\n", i, i) :
+                    String.format("str_%d = \"value \\\"%d\\\"\"; /* comment */\n", i, i));
+            }
+            return sb.toString();
+        });
+    }
+}
+
+@Test public void
+Comments()
+    throws IOException
+{
+    TestScaling("comments", BasicTest.CreateGrammar(false).FindNode("file"), size -> {
+        StringBuilder sb = new StringBuilder("a = 1;\n/*");
+        for (int i = 0; i < size * 10000; i++) {
+            sb.append(i % 80 == 0 ? '\n' : i % 3 == 1 ? '*' : 'x');
+        }
+        return sb.append("x*/\nb = 2;\n").toString();
+    });
+}
+
+@Test public void
+Expressions()
+    throws IOException
+{
+    Grammar.Node fileNode = expressionsGrammar.FindNode("file");
+    TestScaling("long expressions", fileNode, size -> {
+        StringBuilder sb = new StringBuilder("a = ");
+        for (int i = 0; i < size * 2000; i++) {
+            sb.append(i % 2 == 0 ? "x" : "12").append(i % 3 == 0 ? " * " : " + ");
+        }
+        return sb.append("1;\n").toString();
+    });
+    TestScaling("nested expressions", fileNode, size -> {
+        StringBuilder sb = new StringBuilder("a = ");
+        int depth = size * 500;
+        for (int i = 0; i < depth; i++) {
+            sb.append('(');
+        }
+        sb.append('1');
+        for (int i = 0; i < depth; i++) {
+            sb.append(" + x").append(i).append(')');
+        }
+        return sb.append(";\n").toString();
+    });
+}
+
+}
@@ -0,0 +1,141 @@
+package org.roxy.parser;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+import static utils.Utils.AssertThrows;
+
+public class SymbolTableTest {
+
+BasicTest basicTest = new BasicTest();
+
+/** Verify that identifiers with equal strings share the string instance and the symbol id. */
+static void
+VerifySymbols(Ast ast, SymbolTable symbols)
+{
+    HashMap<String, Ast.Node> seen = new HashMap<>();
+    int numIdentifiers = 0;
+    for (Ast.Node stmtNode: ast.GetRoot().children) {
+        Ast.Node identNode = stmtNode.children.get(0);
+        numIdentifiers++;
+        assert identNode.symbolId >= 0;
+        assert symbols.GetSymbol(identNode.symbolId) == identNode.str;
+        Ast.Node other = seen.putIfAbsent(identNode.str, identNode);
+        if (other != null) {
+            assert other.symbolId == identNode.symbolId;
+            assert other.str == identNode.str;
+        }
+        /* Values are not symbols. */
+        assert stmtNode.children.get(1).symbolId == -1;
+    }
+    assert numIdentifiers > seen.size();
+}
+
+String
+CreateFile(int numStatements)
+{
+    StringBuilder file = new StringBuilder(basicTest.testFile1);
+    for (int i = 0; i < numStatements; i++) {
+        file.append(String.format("\nv%d = %d;", i % 10, i));
+    }
+    return file.toString();
+}
+
+@Test public void
+Table()
+{
+    SymbolTable symbols = new SymbolTable();
+    assert symbols.GetSize() == 0;
+    assert symbols.Find("a") == -1;
+    for (int i = 0; i < 1000; i++) {
+        assert symbols.Intern("s" + i) == i;
+    }
+    for (int i = 0; i < 1000; i++) {
+        assert symbols.Intern(new StringBuilder("s").append(i)) == i;
+        assert symbols.Find("s" + i) == i;
+        assert symbols.GetSymbol(i).equals("s" + i);
+    }
+    assert symbols.GetSize() == 1000;
+    assert symbols.Intern("") == 1000;
+    assert symbols.Find("") == 1000;
+    AssertThrows(IndexOutOfBoundsException.class, () -> symbols.GetSymbol(1001));
+    AssertThrows(IndexOutOfBoundsException.class, () -> symbols.GetSymbol(-1));
+}
+
+@Test public void
+Parse()
+    throws IOException
+{
+    String file = CreateFile(100);
+    for (boolean tokens: new boolean[] {false, true}) {
+        Grammar grammar = BasicTest.CreateGrammar(tokens, true);
+        Grammar.Node fileNode = grammar.FindNode("file");
+        SymbolTable symbols = new SymbolTable();
+        Parser parser = new Parser(fileNode, file).SetSymbolTable(symbols);
+        Ast ast = parser.Parse().GetResult();
+        ParserUtil.VerifySummary(parser.GetSummary());
+        assert ast.GetSymbolTable() == symbols;
+        VerifySymbols(ast, symbols);
+        /* someIdent, a, b, c, v0..v9 */
+        assert symbols.GetSize() == 14;
+
+        /* Same ids in other engines sharing the table. */
+        PackratParser packrat = new PackratParser(fileNode, file).SetSymbolTable(symbols);
+        VerifySymbols(packrat.Parse().GetResult(), symbols);
+        Parser bytesParser = new Parser(fileNode,
+                                        ByteBuffer.wrap(file.getBytes(StandardCharsets.UTF_8)))
+            .SetSymbolTable(symbols);
+        VerifySymbols(bytesParser.Parse().GetResult(), symbols);
+        assert symbols.GetSize() == 14;
+
+        /* No interning without a table. */
+        Ast plain = ParserUtil.TestParser(fileNode, file).GetResult();
+        assert plain.GetSymbolTable() == null;
+        assert plain.GetRoot().children.get(0).children.get(0).symbolId == -1;
+    }
+}
+
+@Test public void
+SharedInScope()
+    throws Exception
+{
+    SymbolTable symbols = new SymbolTable();
+    try (ParseService service = new ParseService(4);
+         ParseService.Scope scope = service.OpenScope(0).SetSymbolTable(symbols)) {
+
+        for (int i = 0; i < 20; i++) {
+            scope.Fork("file" + i, basicTest.fileNode, new StringReader(CreateFile(i * 10)));
+        }
+        List<ParseService.Result> results = scope.Join();
+        for (ParseService.Result result: results) {
+            assert result.status == ParseService.Status.OK;
+            assert result.ast.GetSymbolTable() == symbols;
+        }
+        /* The same identifier has the same id in all the results. */
+        Ast.Node ident0 = results.get(19).ast.GetRoot().children.get(0).children.get(0);
+        for (ParseService.Result result: results) {
+            Ast.Node ident = result.ast.GetRoot().children.get(0).children.get(0);
+            assert ident.str.equals(ident0.str);
+            assert ident.symbolId == ident0.symbolId;
+        }
+        VerifySymbols(results.get(19).ast, symbols);
+        assert symbols.GetSize() == 14;
+    }
+}
+
+@Test public void
+NonStringSymbol()
+{
+    AssertThrows(IllegalStateException.class, () -> new Grammar() {{
+        Node("file").Sequence(Char('a')).Val(null).Symbol();
+        Compile();
+    }});
+}
+
+}